@@ -0,0 +1,110 @@
+package com.calamp.services.kinesis.events.bench;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.calamp.services.kinesis.events.local.LocalKinesis;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.KinesisPutSender;
+import com.calamp.services.kinesis.events.utils.RecordAggregator;
+import com.calamp.services.kinesis.events.utils.Utils;
+
+/**
+ * Checks that aggregated records survive the KCL's de-aggregation on a
+ * multi-shard stream. Events are aggregated by RecordAggregator, put to a
+ * LocalKinesis stream and read back shard by shard, de-aggregated against
+ * each shard's hash key range the way the KCL does; an aggregate with an
+ * event outside the range is dropped whole. This is run once with events
+ * keyed by partition key only and once with an explicit hash key per machine,
+ * as LoadGenerator puts them when shard aware. Exits with status 1 if any
+ * event is lost or a key goes out of order.
+ *
+ * Usage: AggregationCheck [events] [shards] [keys] [seed]
+ */
+public class AggregationCheck {
+
+    private static final String STREAM = "aggregation-check-stream";
+
+    public static void main(String[] args) {
+        int numEvents = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int numShards = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int numKeys = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+        System.out.println("events=" + numEvents + " shards=" + numShards + " keys=" + numKeys + " seed=" + seed);
+
+        boolean ok = run("partitionKey", numEvents, numShards, numKeys, false, new Random(seed));
+        ok &= run("explicitHashKey", numEvents, numShards, numKeys, true, new Random(seed));
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean run(String name, int numEvents, int numShards, int numKeys, boolean hashKeys, Random rand) {
+        LocalKinesis lk = new LocalKinesis(rand);
+        lk.createStream(STREAM, numShards);
+        AmazonKinesis kc = lk.client();
+        List<Shard> shards = kc.describeStream(STREAM).getStreamDescription().getShards();
+
+        KinesisPutSender sender = new KinesisPutSender(kc, STREAM, 4);
+        int[] next = new int[numKeys];
+        List<PutRecordsRequestEntry> batch = new ArrayList<PutRecordsRequestEntry>();
+        for (int i = 0; i < numEvents; i++) {
+            int key = rand.nextInt(numKeys);
+            String payload = key + ":" + next[key]++;
+            PutRecordsRequestEntry e = new PutRecordsRequestEntry().withData(ByteBuffer.wrap(payload.getBytes()))
+                    .withPartitionKey(String.valueOf(key));
+            if (hashKeys) {
+                // LoadGenerator's shard aware keys: the middle of a shard's range, picked per machine.
+                Shard s = shards.get(key % shards.size());
+                BigInteger start = new BigInteger(s.getHashKeyRange().getStartingHashKey());
+                BigInteger end = new BigInteger(s.getHashKeyRange().getEndingHashKey());
+                e.setExplicitHashKey(start.add(end).shiftRight(1).toString());
+            }
+            batch.add(e);
+            if (batch.size() >= 500 || i == numEvents - 1) {
+                sender.send(RecordAggregator.aggregate(batch, CalAmpParameters.aggregationBuckets,
+                        CalAmpParameters.aggregationMaxBytes)).await();
+                batch = new ArrayList<PutRecordsRequestEntry>();
+            }
+        }
+        sender.shutdown();
+
+        Map<String, Integer> last = new HashMap<String, Integer>();
+        int read = 0;
+        int violations = 0;
+        for (Shard s : shards) {
+            BigInteger start = new BigInteger(s.getHashKeyRange().getStartingHashKey());
+            BigInteger end = new BigInteger(s.getHashKeyRange().getEndingHashKey());
+            String iterator = kc.getShardIterator(STREAM, s.getShardId(), "TRIM_HORIZON").getShardIterator();
+            while (true) {
+                GetRecordsResult result = kc.getRecords(new GetRecordsRequest().withShardIterator(iterator).withLimit(10000));
+                if (result.getRecords().isEmpty()) {
+                    break;
+                }
+                iterator = result.getNextShardIterator();
+                for (Record r : RecordAggregator.deaggregate(result.getRecords(), start, end)) {
+                    String[] parts = new String(Utils.bytesOf(r.getData())).split(":");
+                    int n = Integer.parseInt(parts[1]);
+                    Integer prev = last.get(parts[0]);
+                    if (prev != null && n <= prev) {
+                        violations++;
+                    }
+                    last.put(parts[0], n);
+                    read++;
+                }
+            }
+        }
+        System.out.println(String.format("%-16s records=%d eventsRead=%d/%d orderViolations=%d",
+                name, lk.storedRecords(STREAM).size(), read, numEvents, violations));
+        return read == numEvents && violations == 0;
+    }
+}
@@ -0,0 +1,403 @@
+package com.calamp.services.kinesis.events.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+import com.calamp.services.kinesis.events.local.LocalCheckpointer;
+import com.calamp.services.kinesis.events.local.LocalKinesis;
+import com.calamp.services.kinesis.events.sort.HeldRecord;
+import com.calamp.services.kinesis.events.sort.KeyRadixSort;
+import com.calamp.services.kinesis.events.sort.SortBuffer;
+import com.calamp.services.kinesis.events.processor.UnorderedRecordProcessor;
+import com.calamp.services.kinesis.events.utils.CalAmpEventPriorityComparator;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.KinesisPutSender;
+import com.calamp.services.kinesis.events.utils.LazyLogger;
+import com.calamp.services.kinesis.events.utils.RecordAggregator;
+import com.calamp.services.kinesis.events.utils.Utils;
+import com.calamp.services.kinesis.events.writer.CalAmpEventGenerator;
+
+/**
+ * Micro benchmarks of the sorter's per record paths, run offline against
+ * LocalKinesis. Data comes from a fixed seed, so runs are comparable across
+ * revisions; pass a CSV path to append the results of each run.
+ *
+ * ns/op and B/op are per event for the batch cases (for example sort.*.10k
+ * sorts 10000 events per call and reports the cost per event).
+ *
+ * Usage: HotPathBenchmarks [filter regex] [warmups] [iterations] [iterationMillis] [csv]
+ */
+public class HotPathBenchmarks {
+
+    private static final long SEED = 20150801L;
+    private static final String STREAM = "bench-stream";
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : ".";
+        int warmups = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        long iterationMillis = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+        String csv = args.length > 4 ? args[4] : null;
+        System.setProperty("org.apache.commons.logging.Log", "org.apache.commons.logging.impl.NoOpLog");
+
+        final List<CalAmpEvent> events = events(new Random(SEED), 10000, CalAmpParameters.randomMillisWindow);
+        final String logPath = new File(System.getProperty("java.io.tmpdir"), "hotpath-bench.log").getPath();
+
+        MicroBench bench = new MicroBench(warmups, iterations, iterationMillis);
+        for (final CalAmpEventCodec codec : CalAmpEventCodec.values()) {
+            final String c = codec.name().toLowerCase();
+            bench.add(new MicroBench.Case("codec." + c + ".encode", 1000) {
+                @Override
+                protected long invoke() {
+                    long n = 0;
+                    for (int i = 0; i < 1000; i++) {
+                        n += codec.encode(events.get(i)).length;
+                    }
+                    return n;
+                }
+            });
+            final byte[][] encoded = encode(codec, events, 1000);
+            bench.add(new MicroBench.Case("codec." + c + ".decode", 1000) {
+                @Override
+                protected long invoke() {
+                    long n = 0;
+                    for (byte[] b : encoded) {
+                        n += CalAmpEventCodec.decode(b).getTimeStamp();
+                    }
+                    return n;
+                }
+            });
+            bench.add(new MicroBench.Case("key." + c + ".read", 1000) {
+                @Override
+                protected long invoke() {
+                    long n = 0;
+                    for (byte[] b : encoded) {
+                        n += CalAmpEventKey.read(ByteBuffer.wrap(b)).getTimeStamp();
+                    }
+                    return n;
+                }
+            });
+        }
+
+        bench.add(new MicroBench.Case("sort.comparator.10k", 10000) {
+            private final CalAmpEventPriorityComparator comparator = new CalAmpEventPriorityComparator();
+
+            @Override
+            protected long invoke() {
+                List<CalAmpEvent> batch = new ArrayList<CalAmpEvent>(events);
+                Collections.sort(batch, comparator);
+                return batch.get(0).getTimeStamp();
+            }
+        });
+        final List<CalAmpEventKey> keys = new ArrayList<CalAmpEventKey>(events.size());
+        for (CalAmpEvent e : events) {
+            keys.add(CalAmpEventKey.of(e));
+        }
+        bench.add(new MicroBench.Case("sort.keys.10k", 10000) {
+            @Override
+            protected long invoke() {
+                CalAmpEventKey[] batch = keys.toArray(new CalAmpEventKey[keys.size()]);
+                java.util.Arrays.sort(batch, new java.util.Comparator<CalAmpEventKey>() {
+                    @Override
+                    public int compare(CalAmpEventKey a, CalAmpEventKey b) {
+                        return CalAmpEventPriorityComparator.compareKeys(a, b);
+                    }
+                });
+                return batch[0].getTimeStamp();
+            }
+        });
+
+        final long[] time = new long[keys.size()];
+        final long[] seq = new long[keys.size()];
+        final long[] tie = new long[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            CalAmpEventKey k = keys.get(i);
+            time[i] = k.getTimeStamp();
+            seq[i] = k.getSequenceNumber();
+            tie[i] = KeyRadixSort.tie(k.getIsAnAck(), k.getMachineId());
+        }
+        bench.add(new MicroBench.Case("sort.radix.10k", 10000) {
+            private final KeyRadixSort radix = new KeyRadixSort();
+            private final int[] order = new int[time.length];
+
+            @Override
+            protected long invoke() {
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                radix.sort(time, seq, tie, order, order.length);
+                return time[order[0]];
+            }
+        });
+
+        bench.add(new SortBufferCase("sort.buffer.heap.10k", Long.MAX_VALUE));
+        bench.add(new SortBufferCase("sort.buffer.spill.10k", 4L * 1024 * 1024));
+
+        bench.add(new ProcessRecordsCase(1000));
+
+        final List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>(events.size());
+        for (byte[] b : encode(CalAmpParameters.wireCodec, events, events.size())) {
+            entries.add(new PutRecordsRequestEntry().withData(ByteBuffer.wrap(b)).withPartitionKey(String.valueOf(b.length % 1000)));
+        }
+        bench.add(new MicroBench.Case("gen.randomMessage", 1) {
+            @Override
+            protected long invoke() {
+                return CalAmpEventGenerator.getRandomMessage().getMachineId();
+            }
+        });
+        bench.add(new MicroBench.Case("gen.workload.10k", 10000) {
+            private final CalAmpEventGenerator workload = workload();
+            private final List<CalAmpEvent> out = new ArrayList<CalAmpEvent>(10000);
+            private long now;
+
+            @Override
+            protected long invoke() {
+                // Each call is a second of 10k events, delivering the ones now due.
+                now += 1000;
+                workload.generate(10000, now);
+                out.clear();
+                return workload.poll(now, Integer.MAX_VALUE, out);
+            }
+
+            private CalAmpEventGenerator workload() {
+                CalAmpEventGenerator w = new CalAmpEventGenerator(1000, 2048, SEED);
+                w.setDelay(CalAmpEventGenerator.Delay.pareto(50, 1.5, 5000));
+                w.setSkew(1.0);
+                return w;
+            }
+        });
+        bench.add(new MicroBench.Case("put.pack.10k", 10000) {
+            @Override
+            protected long invoke() {
+                return KinesisPutSender.pack(entries).size();
+            }
+        });
+        bench.add(new MicroBench.Case("put.aggregate.10k", 10000) {
+            @Override
+            protected long invoke() {
+                return RecordAggregator.aggregate(entries, CalAmpParameters.aggregationBuckets,
+                        CalAmpParameters.aggregationMaxBytes).size();
+            }
+        });
+        final List<PutRecordsRequestEntry> aggregated = RecordAggregator.aggregate(entries, CalAmpParameters.aggregationBuckets,
+                CalAmpParameters.aggregationMaxBytes);
+        bench.add(new MicroBench.Case("get.deaggregate.10k", 10000) {
+            @Override
+            protected long invoke() {
+                // De-aggregation consumes the records' data, so each call gets fresh ones.
+                List<Record> records = new ArrayList<Record>(aggregated.size());
+                for (PutRecordsRequestEntry e : aggregated) {
+                    records.add(new Record().withData(e.getData().duplicate()).withPartitionKey(e.getPartitionKey())
+                            .withSequenceNumber(String.valueOf(records.size())));
+                }
+                return RecordAggregator.deaggregate(records).size();
+            }
+        });
+        bench.add(new MicroBench.Case("put.putByParts.1k", 1000) {
+            private LocalKinesis local;
+            private AmazonKinesis kc;
+            private final List<CalAmpEvent> batch = events.subList(0, 1000);
+
+            @Override
+            protected void setUp() {
+                local = new LocalKinesis(new Random(SEED));
+                local.setMaxRecordsPerShard(10000);
+                local.createStream(STREAM);
+                kc = local.client();
+            }
+
+            @Override
+            protected long invoke() {
+                Utils.putByParts(batch, STREAM, kc, logPath);
+                return 1;
+            }
+
+            @Override
+            protected void endIteration() {
+                LazyLogger.flush();
+            }
+
+            @Override
+            protected void tearDown() {
+                Utils.senderFor(kc, STREAM).shutdown();
+            }
+        });
+
+        bench.add(new MicroBench.Case("log.lazyLogger", 100) {
+            private int n;
+
+            @Override
+            protected long invoke() {
+                for (int i = 0; i < 100; i++) {
+                    LazyLogger.log(logPath, true, "PUT TO [" + STREAM + "]  Part-K: " + (n++ & 1023) + " Time: 1438387200000 Seq: 42");
+                }
+                return n;
+            }
+
+            @Override
+            protected void endIteration() {
+                LazyLogger.flush();
+            }
+        });
+
+        bench.run(filter, csv);
+        System.exit(0);
+    }
+
+    /**
+     * Events with random headers and 2 KB payloads, timestamps spread over
+     * spreadMillis, from the given random source.
+     */
+    static List<CalAmpEvent> events(Random rand, int n, int spreadMillis) {
+        long base = 1438387200000L;
+        List<CalAmpEvent> events = new ArrayList<CalAmpEvent>(n);
+        for (int i = 0; i < n; i++) {
+            byte[] data = new byte[2048];
+            rand.nextBytes(data);
+            events.add(new CalAmpEvent(Long.toHexString(rand.nextLong()), Long.toHexString(rand.nextLong()),
+                    Long.toHexString(rand.nextLong()), Long.toHexString(rand.nextLong()), data,
+                    base + rand.nextInt(spreadMillis), rand.nextInt(511), rand.nextBoolean(), rand.nextInt(10000)));
+        }
+        return events;
+    }
+
+    private static byte[][] encode(CalAmpEventCodec codec, List<CalAmpEvent> events, int n) {
+        byte[][] encoded = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            encoded[i] = codec.encode(events.get(i));
+        }
+        return encoded;
+    }
+
+    /**
+     * SortBuffer add and release of 10000 records with 2 KB payloads per call,
+     * event time moving 1 ms per record with up to 3 s of disorder and the
+     * watermark 5 s behind, so about 50000 records are held. With a byte budget
+     * most of them are spilled and read back on release.
+     */
+    private static class SortBufferCase extends MicroBench.Case {
+        private final long maxBytes;
+        private final byte[] payload = new byte[2048];
+        private final Random rand = new Random(SEED);
+        private SortBuffer buffer;
+        private long eventTime;
+        private long recordSequence;
+
+        SortBufferCase(String name, long maxBytes) {
+            super(name, 10000);
+            this.maxBytes = maxBytes;
+            rand.nextBytes(payload);
+        }
+
+        @Override
+        protected void setUp() {
+            buffer = maxBytes < Long.MAX_VALUE
+                    ? new SortBuffer(maxBytes, new File(System.getProperty("java.io.tmpdir")), 16 * 1024 * 1024)
+                    : new SortBuffer();
+            eventTime = 1438387200000L;
+        }
+
+        @Override
+        protected long invoke() {
+            for (int i = 0; i < 10000; i++) {
+                long seq = ++recordSequence;
+                CalAmpEventKey key = new CalAmpEventKey(eventTime++ - rand.nextInt(3000), seq, false, (int) (seq % 1000));
+                buffer.add(key, new Record().withData(ByteBuffer.wrap(payload.clone()))
+                        .withPartitionKey(String.valueOf(seq % 1000)).withSequenceNumber(String.valueOf(seq)));
+            }
+            long sum = 0;
+            for (HeldRecord h : buffer.releaseThrough(eventTime - 5000)) {
+                sum += h.getRecord().getData().remaining();
+            }
+            return sum;
+        }
+
+        @Override
+        protected void tearDown() {
+            buffer.close();
+        }
+    }
+
+    /**
+     * UnorderedRecordProcessor.processRecords on batches of fresh BINARY
+     * records whose event time moves forward, so every call reads keys,
+     * dedups, buffers, releases, puts to LocalKinesis and checkpoints. Records
+     * are stamped from a template; the copy is part of the measured cost.
+     */
+    private static class ProcessRecordsCase extends MicroBench.Case {
+        private final int batchSize;
+        private final byte[] template;
+        private UnorderedRecordProcessor processor;
+        private LocalCheckpointer checkpointer;
+        private PrintStream stdout;
+        private long eventTime;
+        private long sequence;
+        private long recordSequence;
+        private final Random rand = new Random(SEED);
+
+        ProcessRecordsCase(int batchSize) {
+            super("processor.processRecords.1k", batchSize);
+            this.batchSize = batchSize;
+            this.template = CalAmpEventCodec.BINARY.encode(events(new Random(SEED), 1, 1).get(0));
+        }
+
+        @Override
+        protected void setUp() {
+            stdout = System.out;
+            // processRecords prints a progress line per call.
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            }));
+            LocalKinesis local = new LocalKinesis(new Random(SEED));
+            local.setMaxRecordsPerShard(10000);
+            local.createStream(CalAmpParameters.orderedStreamName);
+            local.createStream(CalAmpParameters.lateStreamName);
+            processor = new UnorderedRecordProcessor(local.client(), CalAmpEventCodec.BINARY);
+            processor.initialize("shardId-000000000000");
+            checkpointer = new LocalCheckpointer();
+            eventTime = System.currentTimeMillis();
+        }
+
+        @Override
+        protected long invoke() {
+            List<Record> records = new ArrayList<Record>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                byte[] data = template.clone();
+                ByteBuffer b = ByteBuffer.wrap(data);
+                // Forward by 1 ms per event with up to 50 ms of disorder.
+                b.putLong(2, eventTime++ - rand.nextInt(50));
+                b.putLong(10, sequence++);
+                int machine = (int) (sequence % 1000);
+                b.putInt(18, machine);
+                records.add(new Record().withData(b).withPartitionKey(String.valueOf(machine))
+                        .withSequenceNumber(String.valueOf(++recordSequence)));
+            }
+            processor.processRecords(records, checkpointer);
+            return checkpointer.getCheckpointCount();
+        }
+
+        @Override
+        protected void endIteration() {
+            LazyLogger.flush();
+        }
+
+        @Override
+        protected void tearDown() {
+            System.setOut(stdout);
+        }
+    }
+}
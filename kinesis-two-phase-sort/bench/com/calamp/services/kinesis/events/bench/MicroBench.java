@@ -0,0 +1,198 @@
+package com.calamp.services.kinesis.events.bench;
+
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Small JMH-style runner for offline micro benchmarks: per case a number of
+ * timed warm up iterations, then timed measurement iterations, each calling
+ * the case back to back for a fixed wall time.
+ *
+ * Per case it reports time per operation (mean and standard deviation over
+ * iterations), allocation per operation and allocation rate, and the garbage
+ * collections (count and time) during measurement. Allocation is summed over
+ * all live threads through the HotSpot ThreadMXBean, so work a case hands to
+ * background threads is included; it is reported as n/a on JVMs without it.
+ */
+public class MicroBench {
+
+    /**
+     * One benchmark. invoke() does opsPerInvoke operations and returns a value
+     * that is consumed so the work cannot be optimised away.
+     */
+    public abstract static class Case {
+        final String name;
+        final int opsPerInvoke;
+
+        protected Case(String name, int opsPerInvoke) {
+            this.name = name;
+            this.opsPerInvoke = opsPerInvoke;
+        }
+
+        protected void setUp() throws Exception {
+        }
+
+        protected abstract long invoke() throws Exception;
+
+        /**
+         * Called at the end of every iteration, inside the timed region, for
+         * cases that must wait for background work (for example a log flush).
+         */
+        protected void endIteration() throws Exception {
+        }
+
+        protected void tearDown() throws Exception {
+        }
+    }
+
+    private final int warmups;
+    private final int iterations;
+    private final long iterationMillis;
+    private final List<Case> cases = new ArrayList<Case>();
+    // Captured up front, as cases may silence System.out while they run.
+    private final PrintStream out = System.out;
+    private long sink;
+
+    public MicroBench(int warmups, int iterations, long iterationMillis) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    public MicroBench add(Case c) {
+        cases.add(c);
+        return this;
+    }
+
+    /**
+     * Runs the cases whose name matches the filter, printing one row each, and
+     * appends the rows to csvPath when it is not null.
+     */
+    public void run(String filter, String csvPath) throws Exception {
+        Pattern p = Pattern.compile(filter);
+        PrintWriter csv = csvPath == null ? null : new PrintWriter(new FileWriter(csvPath, true));
+        out.println(String.format("%-34s %12s %10s %12s %10s %6s %8s", "benchmark", "ns/op", "+-", "B/op", "MB/s", "gc", "gc ms"));
+        try {
+            for (Case c : cases) {
+                if (!p.matcher(c.name).find()) {
+                    continue;
+                }
+                String row = measure(c);
+                if (csv != null) {
+                    csv.println(row);
+                    csv.flush();
+                }
+            }
+        } finally {
+            if (csv != null) {
+                csv.close();
+            }
+        }
+        if (sink == 42) {
+            out.println();
+        }
+    }
+
+    private String measure(Case c) throws Exception {
+        c.setUp();
+        try {
+            for (int i = 0; i < warmups; i++) {
+                iteration(c);
+            }
+            System.gc();
+            double[] nsPerOp = new double[iterations];
+            long ops = 0;
+            long nanos = 0;
+            long gcCount0 = gcCount();
+            long gcMillis0 = gcMillis();
+            long alloc0 = allocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                long[] r = iteration(c);
+                nsPerOp[i] = (double) r[1] / r[0];
+                ops += r[0];
+                nanos += r[1];
+            }
+            long alloc = alloc0 < 0 ? -1 : allocatedBytes() - alloc0;
+            long gcs = gcCount() - gcCount0;
+            long gcMs = gcMillis() - gcMillis0;
+
+            double mean = 0;
+            for (double v : nsPerOp) {
+                mean += v;
+            }
+            mean /= iterations;
+            double var = 0;
+            for (double v : nsPerOp) {
+                var += (v - mean) * (v - mean);
+            }
+            double sd = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+            String bytesPerOp = alloc < 0 ? "n/a" : String.format("%.0f", (double) alloc / ops);
+            String mbPerSec = alloc < 0 ? "n/a" : String.format("%.1f", alloc / 1048576.0 / (nanos / 1e9));
+            out.println(String.format("%-34s %12.1f %10.1f %12s %10s %6d %8d", c.name, mean, sd, bytesPerOp, mbPerSec, gcs, gcMs));
+            return String.format("%s,%.1f,%.1f,%s,%s,%d,%d", c.name, mean, sd, bytesPerOp, mbPerSec, gcs, gcMs);
+        } finally {
+            c.tearDown();
+        }
+    }
+
+    /**
+     * @return { operations, nanos }
+     */
+    private long[] iteration(Case c) throws Exception {
+        long deadline = System.nanoTime() + iterationMillis * 1000000L;
+        long invokes = 0;
+        long t0 = System.nanoTime();
+        long now;
+        do {
+            sink += c.invoke();
+            invokes++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        c.endIteration();
+        return new long[] { invokes * c.opsPerInvoke, System.nanoTime() - t0 };
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(0, gc.getCollectionCount());
+        }
+        return n;
+    }
+
+    private static long gcMillis() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(0, gc.getCollectionTime());
+        }
+        return n;
+    }
+
+    /**
+     * @return bytes allocated so far by all live threads, or -1 if the JVM cannot tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+        long sum = 0;
+        for (long b : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (b > 0) {
+                sum += b;
+            }
+        }
+        return sum;
+    }
+}
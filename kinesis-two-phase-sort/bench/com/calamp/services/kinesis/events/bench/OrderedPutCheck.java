@@ -0,0 +1,112 @@
+package com.calamp.services.kinesis.events.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.local.LocalKinesis;
+import com.calamp.services.kinesis.events.utils.KeyOrderedPutSender;
+import com.calamp.services.kinesis.events.utils.KinesisPutSender;
+import com.calamp.services.kinesis.events.utils.PutCompletion;
+
+/**
+ * Checks that KeyOrderedPutSender keeps per partition key order while
+ * LocalKinesis throttles a random share of every PutRecords request and
+ * appends the accepted entries in random order. The plain KinesisPutSender is
+ * run on the same load for comparison. Exits with status 1 if the ordered
+ * sender lets any key go out of order or loses a record.
+ *
+ * Usage: OrderedPutCheck [records] [keys] [failureRate] [seed]
+ */
+public class OrderedPutCheck {
+
+    private static final String STREAM = "ordered-check-stream";
+
+    public static void main(String[] args) {
+        int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        double failureRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.3;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+        System.out.println("records=" + numRecords + " keys=" + numKeys + " failureRate=" + failureRate + " seed=" + seed);
+
+        List<List<PutRecordsRequestEntry>> batches = batches(numRecords, numKeys, new Random(seed));
+
+        LocalKinesis plainBackend = backend(failureRate, seed);
+        KinesisPutSender plain = new KinesisPutSender(plainBackend.client(), STREAM, 4);
+        long t0 = System.currentTimeMillis();
+        for (List<PutRecordsRequestEntry> batch : batches) {
+            plain.send(batch).await();
+        }
+        report("KinesisPutSender", plainBackend, numRecords, System.currentTimeMillis() - t0);
+        plain.shutdown();
+
+        LocalKinesis orderedBackend = backend(failureRate, seed);
+        KeyOrderedPutSender ordered = new KeyOrderedPutSender(orderedBackend.client(), STREAM, 4);
+        t0 = System.currentTimeMillis();
+        List<PutCompletion> pending = new ArrayList<PutCompletion>();
+        for (List<PutRecordsRequestEntry> batch : batches) {
+            pending.add(ordered.send(batch));
+        }
+        for (PutCompletion c : pending) {
+            c.await();
+        }
+        int violations = report("KeyOrderedPutSender", orderedBackend, numRecords, System.currentTimeMillis() - t0);
+        ordered.shutdown();
+
+        System.exit(violations == 0 && orderedBackend.storedRecords(STREAM).size() == numRecords ? 0 : 1);
+    }
+
+    private static LocalKinesis backend(double failureRate, long seed) {
+        LocalKinesis lk = new LocalKinesis(new Random(seed));
+        lk.createStream(STREAM);
+        lk.setPutFailureRate(failureRate);
+        lk.setShuffleWithinRequest(true);
+        return lk;
+    }
+
+    /**
+     * Entries carry "key:n" where n counts up per key; they are cut into
+     * batches of random size the way the sorter hands over released events.
+     */
+    private static List<List<PutRecordsRequestEntry>> batches(int numRecords, int numKeys, Random rand) {
+        int[] next = new int[numKeys];
+        List<List<PutRecordsRequestEntry>> batches = new ArrayList<List<PutRecordsRequestEntry>>();
+        List<PutRecordsRequestEntry> batch = new ArrayList<PutRecordsRequestEntry>();
+        for (int i = 0; i < numRecords; i++) {
+            int key = rand.nextInt(numKeys);
+            String payload = key + ":" + next[key]++;
+            batch.add(new PutRecordsRequestEntry().withData(ByteBuffer.wrap(payload.getBytes())).withPartitionKey(String.valueOf(key)));
+            if (batch.size() >= 1 + rand.nextInt(2000)) {
+                batches.add(batch);
+                batch = new ArrayList<PutRecordsRequestEntry>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static int report(String name, LocalKinesis backend, int numRecords, long millis) {
+        Map<String, Integer> last = new HashMap<String, Integer>();
+        int violations = 0;
+        List<Record> records = backend.storedRecords(STREAM);
+        for (Record r : records) {
+            String[] parts = new String(r.getData().array()).split(":");
+            int n = Integer.parseInt(parts[1]);
+            Integer prev = last.get(parts[0]);
+            if (prev != null && n <= prev) {
+                violations++;
+            }
+            last.put(parts[0], n);
+        }
+        System.out.println(String.format("%-20s written=%d/%d orderViolations=%d millis=%d",
+                name, records.size(), numRecords, violations, millis));
+        return violations;
+    }
+}
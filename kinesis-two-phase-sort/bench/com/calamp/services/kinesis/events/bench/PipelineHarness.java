@@ -0,0 +1,351 @@
+package com.calamp.services.kinesis.events.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+import com.calamp.services.kinesis.events.local.LocalKinesis;
+import com.calamp.services.kinesis.events.local.LocalWorker;
+import com.calamp.services.kinesis.events.processor.GlobalOrderStage;
+import com.calamp.services.kinesis.events.processor.OrderedRecordProcessor;
+import com.calamp.services.kinesis.events.processor.UnorderedRecordProcessor;
+import com.calamp.services.kinesis.events.sort.OrderingScope;
+import com.calamp.services.kinesis.events.utils.CalAmpEventPriorityComparator;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.Metrics;
+import com.calamp.services.kinesis.events.writer.CalAmpEventGenerator;
+import com.calamp.services.kinesis.events.writer.LoadGenerator;
+
+/**
+ * End to end run of writer, UnorderedRecordProcessor and OrderedRecordProcessor
+ * against LocalKinesis, driven by LocalWorker instead of the KCL.
+ *
+ * A LoadGenerator puts events at a target rate from several threads
+ * (PutRecords batches, partition key = machineId, machines spread evenly over
+ * the shards) from a CalAmpEventGenerator workload: every machine stamps its
+ * events with their creation time and numbers them 0, 1, 2, ..., and each
+ * event is delivered after a delay (an integer is a uniform delay of up to
+ * that many milliseconds, or a Delay spec such as pareto:50:1.5:5000).
+ * Machines are picked with Zipf skew if given, and may go offline and replay
+ * their backlog on reconnect; events lost to a full device buffer are
+ * reported apart from missing ones. The ordered stream's records are
+ * watched as OrderedRecordProcessor receives them.
+ *
+ * Reports sustained throughput, latency from event timeStamp to ordered
+ * emission, put amplification (entries sent per entry accepted, failed
+ * attempts included), and ordering violations: an event emitted after a later
+ * event (by the sort order) of the same machine. In GLOBAL ordering scope the
+ * sorter shares one GlobalOrderStage over all shards, and violations of the
+ * total order of the ordered stream are reported as well. With releaseOnSequence the
+ * sorter releases by machine sequence number (SequenceGapRelease), and a
+ * violation is an event emitted after a higher sequence number of its machine.
+ * Records put per shard second show what aggregateRecords saves against the
+ * 1000 records per second shard limit.
+ *
+ * Given a backlog delay, the sorter starts only that long after the put
+ * phase, from TRIM_HORIZON, so it has the whole run to catch up on. Catch-up
+ * mode needs a backlog of more than catchUpEnterPolls full reads
+ * (maxRecPerPoll records each, after aggregation) per shard; its time and rate
+ * are reported per shard.
+ *
+ * Usage: PipelineHarness [events] [shards] [eventsPerSecond] [disorderMillis or delay spec]
+ *        [putFailureRate] [shardLimits true|false] [JSON|BINARY] [GLOBAL|SHARD|MACHINE]
+ *        [releaseOnSequence true|false] [payloadBytes] [skew]
+ *        [reconnects outagePerEvent:meanOutageMillis:maxBuffered] [backlogMillis, -1 to sort as events come]
+ */
+public class PipelineHarness {
+
+    private static final int MACHINES = 1000;
+    private static final int WRITERS = 4;
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final long STALL_MILLIS = 15000;
+
+    public static void main(String[] args) throws Exception {
+        int numEvents = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 10000;
+        String disorder = args.length > 3 ? args[3] : "500";
+        double failureRate = args.length > 4 ? Double.parseDouble(args[4]) : 0.05;
+        boolean shardLimits = args.length > 5 && Boolean.parseBoolean(args[5]);
+        CalAmpEventCodec codec = args.length > 6 ? CalAmpEventCodec.fromName(args[6]) : CalAmpParameters.wireCodec;
+        final OrderingScope scope = args.length > 7 ? OrderingScope.valueOf(args[7].toUpperCase()) : OrderingScope.SHARD;
+        boolean globalOrder = scope == OrderingScope.GLOBAL;
+        final boolean releaseOnSequence = args.length > 8 && Boolean.parseBoolean(args[8]);
+        int payloadBytes = args.length > 9 ? Integer.parseInt(args[9]) : 2048;
+        double skew = args.length > 10 ? Double.parseDouble(args[10]) : 0;
+        String reconnects = args.length > 11 ? args[11] : "0:0:0";
+        long backlogMillis = args.length > 12 ? Long.parseLong(args[12]) : -1;
+        CalAmpEventGenerator workload = new CalAmpEventGenerator(MACHINES, payloadBytes, 42);
+        workload.setDelay(disorder.matches("\\d+") ? CalAmpEventGenerator.Delay.uniform(Long.parseLong(disorder))
+                : CalAmpEventGenerator.Delay.parse(disorder));
+        workload.setSkew(skew);
+        String[] r = reconnects.split(":");
+        workload.setReconnects(Double.parseDouble(r[0]), Double.parseDouble(r[1]), Integer.parseInt(r[2]));
+
+        // OrderedRecordProcessor logs every event at info and the senders warn on every retried put.
+        System.setProperty("org.apache.commons.logging.Log", "org.apache.commons.logging.impl.NoOpLog");
+        System.out.println(String.format("events=%d shards=%d rate=%.0f/s disorder=%s putFailureRate=%.2f shardLimits=%b codec=%s scope=%s releaseOnSequence=%b payload=%dB aggregate=%b skew=%.2f reconnects=%s backlog=%dms",
+                numEvents, shards, rate, disorder, failureRate, shardLimits, codec, scope, releaseOnSequence, payloadBytes,
+                CalAmpParameters.aggregateRecords, skew, reconnects, backlogMillis));
+
+        LocalKinesis local = new LocalKinesis();
+        if (shardLimits) {
+            local.setShardLimits(1000, 1024 * 1024, 5);
+        }
+        local.setPutFailureRate(failureRate);
+        local.createStream(CalAmpParameters.unorderdStreamName, shards);
+        local.createStream(CalAmpParameters.orderedStreamName, shards);
+        local.createStream(CalAmpParameters.lateStreamName, shards);
+        final AmazonKinesis kc = local.client();
+        final CalAmpEventCodec outCodec = codec;
+        final Emissions emissions = new Emissions(releaseOnSequence);
+        final GlobalOrderStage stage = globalOrder ? new GlobalOrderStage(kc, codec) : null;
+
+        LocalWorker sorter = new LocalWorker(kc, CalAmpParameters.unorderdStreamName, new IRecordProcessorFactory() {
+            @Override
+            public IRecordProcessor createProcessor() {
+                return new UnorderedRecordProcessor(kc, outCodec, scope, stage, releaseOnSequence);
+            }
+        }, CalAmpParameters.maxRecPerPoll, IDLE_POLL_MILLIS, CalAmpParameters.alwaysPoll);
+        LocalWorker consumer = new LocalWorker(kc, CalAmpParameters.orderedStreamName, new IRecordProcessorFactory() {
+            @Override
+            public IRecordProcessor createProcessor() {
+                return new ObservedProcessor(new OrderedRecordProcessor(), emissions);
+            }
+        }, CalAmpParameters.maxRecPerPoll, IDLE_POLL_MILLIS, false);
+        if (backlogMillis < 0) {
+            sorter.start();
+        }
+        consumer.start();
+
+        long start = System.currentTimeMillis();
+        LoadGenerator load = new LoadGenerator(kc, CalAmpParameters.unorderdStreamName, codec, rate, WRITERS,
+                CalAmpParameters.maxRecordsPerPut);
+        load.setWorkload(workload);
+        load.setMaxEvents(numEvents);
+        load.setReport(null, 1000);
+        load.start();
+        long peakHeld = 0;
+        while (!load.isDone()) {
+            peakHeld = Math.max(peakHeld, shardMetric(shards, "heldEvents"));
+            Thread.sleep(50);
+        }
+        load.shutdown();
+        long written = System.currentTimeMillis();
+        long expected = numEvents - workload.getLost();
+        long sortStart = start;
+        if (backlogMillis >= 0) {
+            Thread.sleep(backlogMillis);
+            sortStart = System.currentTimeMillis();
+            sorter.start();
+        }
+
+        // Wait until every event is either emitted or known late, or progress stops.
+        long lastProgress = System.currentTimeMillis();
+        long lastCount = -1;
+        while (true) {
+            peakHeld = Math.max(peakHeld, shardMetric(shards, "heldEvents"));
+            long accounted = emissions.distinct() + lateEvents(shards);
+            if (accounted >= expected) {
+                break;
+            }
+            if (accounted != lastCount) {
+                lastCount = accounted;
+                lastProgress = System.currentTimeMillis();
+            }
+            else if (System.currentTimeMillis() - lastProgress > STALL_MILLIS) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        long drained = emissions.lastEmission();
+        sorter.shutdown(ShutdownReason.TERMINATE);
+        consumer.shutdown(ShutdownReason.TERMINATE);
+
+        long late = lateEvents(shards);
+        double seconds = Math.max(1, drained - sortStart) / 1000.0;
+        System.out.println(String.format("put phase %.2fs (%.0f events/s), drained after %.2fs%s",
+                (written - start) / 1000.0, numEvents / ((written - start) / 1000.0), seconds,
+                backlogMillis >= 0 ? " from the sorter's start" : ""));
+        System.out.println(String.format("emitted %d of %d (late %d, missing %d, lost in device buffers %d, duplicate emissions %d)",
+                emissions.distinct(), numEvents, late, expected - emissions.distinct() - late, workload.getLost(),
+                emissions.duplicates()));
+        System.out.println(String.format("sustained throughput %.0f events/s", emissions.distinct() / seconds));
+        long[] lat = emissions.latencies();
+        System.out.println(String.format("latency ms  p50 %d  p90 %d  p99 %d  p99.9 %d  max %d",
+                percentile(lat, 0.5), percentile(lat, 0.9), percentile(lat, 0.99), percentile(lat, 0.999), percentile(lat, 1.0)));
+        System.out.println(String.format("put amplification  unordered %.3f  ordered %.3f  (throttled %d / %d)",
+                amplification(local, CalAmpParameters.unorderdStreamName), amplification(local, CalAmpParameters.orderedStreamName),
+                local.getThrottled(CalAmpParameters.unorderdStreamName), local.getThrottled(CalAmpParameters.orderedStreamName)));
+        System.out.println(String.format("ordered stream records per unique event %.3f",
+                (double) local.getPutAccepted(CalAmpParameters.orderedStreamName) / Math.max(1, emissions.distinct())));
+        System.out.println(String.format("records put per shard second  unordered %.1f  ordered %.1f  (events per record %.1f / %.1f)",
+                local.getPutAccepted(CalAmpParameters.unorderdStreamName) / (shards * seconds),
+                local.getPutAccepted(CalAmpParameters.orderedStreamName) / (shards * seconds),
+                (double) numEvents / Math.max(1, local.getPutAccepted(CalAmpParameters.unorderdStreamName)),
+                (double) emissions.distinct() / Math.max(1, local.getPutAccepted(CalAmpParameters.orderedStreamName))));
+        System.out.println(String.format("reads of the unordered stream %d (%d empty), %.1f per shard second",
+                local.getReads(CalAmpParameters.unorderdStreamName), local.getEmptyReads(CalAmpParameters.unorderdStreamName),
+                local.getReads(CalAmpParameters.unorderdStreamName) / (shards * seconds)));
+        System.out.println("peak events held by the sorter " + peakHeld + "");
+        System.out.println("ordering violations " + emissions.violations());
+        if (globalOrder) {
+            System.out.println("total order violations " + emissions.totalOrderViolations());
+        }
+        if (releaseOnSequence) {
+            System.out.println("released on sequence " + shardMetric(shards, "sequenceReleasedEvents") + ", behind a gap at the end "
+                    + shardMetric(shards, "gapWaitingEvents"));
+        }
+        for (int i = 0; i < shards; i++) {
+            String shard = "sort." + String.format("shardId-%012d", i) + ".";
+            if (Metrics.get(shard + "catchUpEpisodes") > 0) {
+                System.out.println(String.format("%s caught up %d time(s), last in %d ms at %d events/s", shard,
+                        Metrics.get(shard + "catchUpEpisodes"), Metrics.get(shard + "catchUpMillis"),
+                        Metrics.get(shard + "catchUpEventsPerSecond")));
+            }
+        }
+        System.out.println("sorter checkpoints " + sorter.getCheckpointCount() + " at " + sorter.getCheckpoints());
+        System.exit(emissions.violations() == 0 && (!globalOrder || emissions.totalOrderViolations() == 0) ? 0 : 1);
+    }
+
+    private static long lateEvents(int shards) {
+        return shardMetric(shards, "lateEvents");
+    }
+
+    private static long shardMetric(int shards, String name) {
+        long sum = 0;
+        for (int i = 0; i < shards; i++) {
+            sum += Metrics.get("sort." + String.format("shardId-%012d", i) + "." + name);
+        }
+        return sum;
+    }
+
+    private static double amplification(LocalKinesis local, String stream) {
+        return (double) local.getPutAttempts(stream) / Math.max(1, local.getPutAccepted(stream));
+    }
+
+    private static long percentile(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    /**
+     * Everything seen on the ordered stream, over all of its shards.
+     */
+    private static class Emissions {
+        private final boolean bySequence;
+        private final Map<Integer, CalAmpEventKey> lastByMachine = new HashMap<Integer, CalAmpEventKey>();
+        private final Set<Long> seen = new HashSet<Long>();
+        private long[] latencies = new long[1024];
+        private int count;
+        private long duplicates;
+        private long violations;
+        private long totalOrderViolations;
+        private CalAmpEventKey last;
+        private long lastEmission;
+
+        Emissions(boolean bySequence) {
+            this.bySequence = bySequence;
+        }
+
+        synchronized void emitted(CalAmpEventKey key, long now) {
+            if (!seen.add(((long) key.getMachineId() << 32) | (key.getSequenceNumber() & 0xffffffffL))) {
+                duplicates++;
+                return;
+            }
+            CalAmpEventKey prev = lastByMachine.put(key.getMachineId(), key);
+            if (prev != null && (bySequence ? prev.getSequenceNumber() > key.getSequenceNumber()
+                    : CalAmpEventPriorityComparator.compareKeys(prev, key) > 0)) {
+                violations++;
+            }
+            if (last != null && CalAmpEventPriorityComparator.compareKeys(last, key) > 0) {
+                totalOrderViolations++;
+            }
+            last = key;
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = now - key.getTimeStamp();
+            lastEmission = now;
+        }
+
+        synchronized long distinct() {
+            return count;
+        }
+
+        synchronized long duplicates() {
+            return duplicates;
+        }
+
+        synchronized long violations() {
+            return violations;
+        }
+
+        /**
+         * Meaningful only when the ordered stream is fed by one sequence, as in global order mode.
+         */
+        synchronized long totalOrderViolations() {
+            return totalOrderViolations;
+        }
+
+        synchronized long lastEmission() {
+            return lastEmission;
+        }
+
+        synchronized long[] latencies() {
+            long[] copy = Arrays.copyOf(latencies, count);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    /**
+     * Hands records to the real consumer, then records when each was emitted.
+     */
+    private static class ObservedProcessor implements IRecordProcessor {
+        private final IRecordProcessor delegate;
+        private final Emissions emissions;
+
+        ObservedProcessor(IRecordProcessor delegate, Emissions emissions) {
+            this.delegate = delegate;
+            this.emissions = emissions;
+        }
+
+        @Override
+        public void initialize(String shardId) {
+            delegate.initialize(shardId);
+        }
+
+        @Override
+        public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
+            delegate.processRecords(records, checkpointer);
+            long now = System.currentTimeMillis();
+            for (Record r : records) {
+                CalAmpEventKey key = CalAmpEventKey.read(r.getData());
+                if (key != null) {
+                    emissions.emitted(key, now);
+                }
+            }
+        }
+
+        @Override
+        public void shutdown(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
+            delegate.shutdown(checkpointer, reason);
+        }
+    }
+}
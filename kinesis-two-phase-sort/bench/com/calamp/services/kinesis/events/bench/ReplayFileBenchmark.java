@@ -0,0 +1,142 @@
+package com.calamp.services.kinesis.events.bench;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.writer.CalAmpEventGenerator;
+import com.calamp.services.kinesis.events.writer.EventFileFormat;
+import com.calamp.services.kinesis.events.writer.EventFileReader;
+import com.calamp.services.kinesis.events.writer.EventFileWriter;
+
+/**
+ * Compares reading a replay file the old way (a Scanner over JSON lines, all
+ * events onto a list) with streaming it through EventFileReader, in both
+ * file formats: file size, read time per event and the heap still in use
+ * once the last event has been read. Also checks
+ * that every event reads back as written. Runs offline, no AWS access needed.
+ *
+ * Usage: ReplayFileBenchmark [events] [payloadBytes]
+ */
+public class ReplayFileBenchmark {
+
+    private static long gcNanos;
+
+    public static void main(String[] args) throws Exception {
+        int numEvents = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int payloadBytes = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+
+        CalAmpEventGenerator workload = new CalAmpEventGenerator(1000, payloadBytes, 20150801L);
+        workload.setDelay(CalAmpEventGenerator.Delay.uniform(500));
+        File json = File.createTempFile("replay-bench", ".jsonl");
+        File framed = File.createTempFile("replay-bench", ".events");
+        json.deleteOnExit();
+        framed.deleteOnExit();
+        long checksum = write(workload, numEvents, json, framed);
+
+        System.out.println(String.format("%-18s %12s %12s %14s %14s", "reader", "file MB", "ns/event", "live heap MB",
+                "events"));
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT and the page cache.
+            boolean print = round == 1;
+            measure("scanner.json", json, null, checksum, print);
+            measure("stream.json", json, EventFileFormat.JSON_LINES, checksum, print);
+            measure("stream.framed", framed, EventFileFormat.FRAMED, checksum, print);
+        }
+    }
+
+    private static long write(CalAmpEventGenerator workload, int numEvents, File json, File framed) throws IOException {
+        EventFileWriter jw = new EventFileWriter(json, EventFileFormat.JSON_LINES);
+        EventFileWriter fw = new EventFileWriter(framed, EventFileFormat.FRAMED);
+        List<CalAmpEvent> batch = new ArrayList<CalAmpEvent>();
+        long checksum = 0;
+        long now = 0;
+        try {
+            while (jw.getWritten() < numEvents) {
+                now += 10;
+                workload.generate((int) Math.min(1000, numEvents - workload.getCreated()), now);
+                batch.clear();
+                workload.poll(workload.getCreated() < numEvents ? now : Long.MAX_VALUE, Integer.MAX_VALUE, batch);
+                for (CalAmpEvent e : batch) {
+                    jw.write(e);
+                    fw.write(e);
+                    checksum += checksum(e);
+                }
+            }
+        } finally {
+            jw.close();
+            fw.close();
+        }
+        return checksum;
+    }
+
+    private static void measure(String name, File file, EventFileFormat expected, long checksum, boolean print)
+            throws IOException {
+        long baseline = usedHeap();
+        long live;
+        long sum = 0;
+        long n = 0;
+        long t0 = System.nanoTime();
+        if (expected == null) {
+            List<CalAmpEvent> events = new ArrayList<CalAmpEvent>();
+            Scanner scan = new Scanner(new FileReader(file));
+            while (scan.hasNext()) {
+                events.add(CalAmpEvent.fromJsonAsString(scan.nextLine()));
+            }
+            scan.close();
+            for (CalAmpEvent e : events) {
+                sum += checksum(e);
+            }
+            live = usedHeap() - baseline;
+            // Used after the collection, so the list counts as live heap.
+            n = events.size();
+        }
+        else {
+            EventFileReader reader = new EventFileReader(file);
+            if (reader.getFormat() != expected) {
+                throw new IllegalStateException(file + " read as " + reader.getFormat() + ", expected " + expected);
+            }
+            CalAmpEvent e;
+            while ((e = reader.next()) != null) {
+                sum += checksum(e);
+                n++;
+            }
+            live = usedHeap() - baseline;
+            reader.close();
+        }
+        long nanos = System.nanoTime() - t0 - gcNanos;
+        gcNanos = 0;
+        if (sum != checksum) {
+            throw new IllegalStateException(name + " read back different events");
+        }
+        if (print) {
+            System.out.println(String.format("%-18s %12.1f %12.0f %14.1f %14d", name, file.length() / 1e6,
+                    (double) nanos / n, Math.max(0, live) / 1e6, n));
+        }
+    }
+
+    private static long checksum(CalAmpEvent e) {
+        long h = e.getTimeStamp() * 31 + e.getSequenceNumber();
+        h = h * 31 + e.getMachineId();
+        h = h * 31 + (e.getIsAnAck() ? 1 : 0);
+        h = h * 31 + Arrays.hashCode(e.getDataBytes());
+        return h * 31 + e.getMessageContent().hashCode();
+    }
+
+    /**
+     * @return heap in use after a full collection, whose time is left out of the measurement
+     */
+    private static long usedHeap() {
+        long t0 = System.nanoTime();
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        gcNanos += System.nanoTime() - t0;
+        return used;
+    }
+}
@@ -0,0 +1,119 @@
+package com.calamp.services.kinesis.events.bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+import com.calamp.services.kinesis.events.utils.LazyLogger;
+import com.calamp.services.kinesis.events.utils.Trace;
+import com.calamp.services.kinesis.events.utils.Utils;
+import com.calamp.services.kinesis.events.writer.CalAmpEventGenerator;
+
+/**
+ * CPU per record of the sorter's per record work (read the sort key, trace
+ * the record in and the entry out) under each trace setting, against the
+ * tracing it replaced, which decoded every payload and logged the full event.
+ * CPU is summed over all threads, so the log writer thread is included.
+ *
+ * Usage: TraceBenchmark [records] [rounds] [codec]
+ */
+public class TraceBenchmark {
+
+    private static final String STREAM = "unordered-message-stream";
+    private static final String SHARD = "shardId-000000000000";
+
+    public static void main(String[] args) {
+        int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        CalAmpEventCodec codec = args.length > 2 ? CalAmpEventCodec.fromName(args[2]) : CalAmpEventCodec.JSON;
+
+        List<Record> records = new ArrayList<Record>(numRecords);
+        for (int i = 0; i < numRecords; i++) {
+            Record r = new Record();
+            r.setData(ByteBuffer.wrap(codec.encode(CalAmpEventGenerator.getRandomMessage())));
+            r.setPartitionKey(String.valueOf(i % 100));
+            r.setSequenceNumber(String.valueOf(49540000000000000L + i));
+            records.add(r);
+        }
+        File dir = new File(System.getProperty("java.io.tmpdir"), "trace-bench");
+        dir.mkdirs();
+        String inLog = new File(dir, "in.log").getPath();
+        String outLog = new File(dir, "out.log").getPath();
+
+        System.out.println("records=" + numRecords + " rounds=" + rounds + " codec=" + codec);
+        System.out.println(String.format("%-22s %14s", "trace", "cpu ns/rec"));
+        measure("legacy (decode+event)", null, 1, records, rounds, inLog, outLog);
+        measure("PAYLOAD", Trace.Level.PAYLOAD, 1, records, rounds, inLog, outLog);
+        measure("KEYS", Trace.Level.KEYS, 1, records, rounds, inLog, outLog);
+        measure("KEYS 1-in-100", Trace.Level.KEYS, 100, records, rounds, inLog, outLog);
+        measure("OFF", Trace.Level.OFF, 1, records, rounds, inLog, outLog);
+    }
+
+    /**
+     * A null level runs the old tracing code path.
+     */
+    private static void measure(String name, Trace.Level level, int every, List<Record> records, int rounds,
+            String inLog, String outLog) {
+        if (level != null) {
+            Trace.configure(level, every, 0);
+        }
+        run(level, records, inLog, outLog);
+        LazyLogger.flush();
+        long cpu0 = totalCpuNanos();
+        for (int r = 0; r < rounds; r++) {
+            run(level, records, inLog, outLog);
+        }
+        LazyLogger.flush();
+        long cpu = totalCpuNanos() - cpu0;
+        System.out.println(String.format("%-22s %14.1f", name, (double) cpu / ((long) records.size() * rounds)));
+    }
+
+    private static void run(Trace.Level level, List<Record> records, String inLog, String outLog) {
+        for (Record r : records) {
+            CalAmpEventKey key = CalAmpEventKey.read(r.getData());
+            PutRecordsRequestEntry prre = Utils.forwardEntry(r);
+            if (level == null) {
+                legacyTrace(r, prre, inLog, outLog);
+            }
+            else {
+                Utils.lazyLog(r, SHARD, key, STREAM, inLog);
+                Utils.lazyLog(prre, key, STREAM, outLog);
+            }
+        }
+    }
+
+    /**
+     * What the trace lines cost before: both lines decoded the payload and
+     * printed the whole event.
+     */
+    private static void legacyTrace(Record r, PutRecordsRequestEntry prre, String inLog, String outLog) {
+        String in = "GET AT [" + STREAM + "] ";
+        in += " Seq-ID: " + r.getSequenceNumber();
+        in += " Part-K: " + r.getPartitionKey();
+        in += " Data: " + CalAmpEventCodec.decode(r.getData().array());
+        LazyLogger.log(inLog, true, in);
+        String out = "PUT TO [" + STREAM + "] ";
+        out += " Part-K: " + prre.getPartitionKey();
+        out += " Data: " + CalAmpEventCodec.decode(prre.getData().array());
+        LazyLogger.log(outLog, true, out);
+    }
+
+    private static long totalCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long sum = 0;
+        for (long id : threads.getAllThreadIds()) {
+            long t = threads.getThreadCpuTime(id);
+            if (t > 0) {
+                sum += t;
+            }
+        }
+        return sum;
+    }
+}
@@ -2,9 +2,9 @@
 package com.calamp.services.kinesis.events.data;
 
 import java.io.IOException;
-import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.commons.codec.binary.Base64;
 
@@ -32,8 +32,6 @@ public class CalAmpEvent /*extends MessageContent*/{
     private String messageHeader;
     private String messageContent;
     private byte [] dataBytes;
-    
-    private Random rand;
 
     /*This default constructor must exist for JSON serialization*/
     public CalAmpEvent(){}
@@ -52,18 +50,17 @@ public class CalAmpEvent /*extends MessageContent*/{
         this.dataBytes = dataBytes;
     }
     public CalAmpEvent(String ipUdpHeader, String optionsHeader, String messageHeader, String messageContent) {
-    	this.rand = new Random();
+    	Random rand = ThreadLocalRandom.current();
     	this.ipUdpHeader = ipUdpHeader;
         this.optionsHeader = optionsHeader;
         this.messageHeader = messageHeader;
         this.messageContent = messageContent;
         
-        this.timeStamp = System.currentTimeMillis() + this.rand.nextInt(CalAmpParameters.randomMillisWindow);
-        this.sequenceNumber = this.rand.nextInt(511);
-        this.isAnAck = this.rand.nextBoolean();
-        this.machineId = this.rand.nextInt(10000);
-        this.dataBytes = randomString(2048).getBytes();
-        
+        this.timeStamp = System.currentTimeMillis() + rand.nextInt(CalAmpParameters.randomMillisWindow);
+        this.sequenceNumber = rand.nextInt(511);
+        this.isAnAck = rand.nextBoolean();
+        this.machineId = rand.nextInt(10000);
+        this.dataBytes = new byte[2048];
         rand.nextBytes(this.dataBytes);
     }
     
@@ -126,7 +123,7 @@ public class CalAmpEvent /*extends MessageContent*/{
 	    		
 	    		mayEqual &= (this.ipUdpHeader == null && e2.ipUdpHeader == null) ? true : this.ipUdpHeader != null && e2.getIpUdpHeader() != null && ( this.ipUdpHeader.equals(e2.getIpUdpHeader()) );
 	    		mayEqual &= (this.optionsHeader == null && e2.optionsHeader == null) ? true : this.optionsHeader != null && e2.getOptionsHeader() != null && ( this.optionsHeader.equals(e2.getOptionsHeader())   );
-	    		mayEqual &= (this.messageHeader == null && e2.messageHeader == null) ? true : this.messageHeader == null && e2.getMessageHeader() != null && ( this.messageHeader.equals(e2.getMessageHeader()) );
+	    		mayEqual &= (this.messageHeader == null && e2.messageHeader == null) ? true : this.messageHeader != null && e2.getMessageHeader() != null && ( this.messageHeader.equals(e2.getMessageHeader()) );
 	    		mayEqual &= (this.messageContent == null && e2.messageContent == null) ? true : this.messageContent != null && e2.getMessageContent() != null && ( this.messageContent.equals(e2.getMessageContent()) );
 	    		mayEqual &= Arrays.equals(this.dataBytes, e2.getDataBytes());
 	    		
@@ -138,20 +135,18 @@ public class CalAmpEvent /*extends MessageContent*/{
     
     @Override 
     public int hashCode() {
-        int result = 0; 
-        result += 41 * ( this.timeStamp ^ (this.timeStamp >>> 32) );
-    	result += 41 * this.sequenceNumber;
-    	result += 41 * (this.isAnAck ? 1 : 0);
-        result += 41 * this.machineId;
-
-        result += 41 * ( (this.ipUdpHeader == null) ? 0 : this.ipUdpHeader.hashCode() );
-        result += 41 * ( (this.optionsHeader == null) ? 0 : this.optionsHeader.hashCode() );
-        result += 41 * ( (this.messageHeader == null) ? 0 : this.messageHeader.hashCode() );
-        result += 41 * ( (this.messageContent == null) ? 0 : this.messageContent.hashCode() );
+        int result = (int) ( this.timeStamp ^ (this.timeStamp >>> 32) );
+    	result = 41 * result + (int) ( this.sequenceNumber ^ (this.sequenceNumber >>> 32) );
+    	result = 41 * result + (this.isAnAck ? 1 : 0);
+        result = 41 * result + this.machineId;
+
+        result = 41 * result + ( (this.ipUdpHeader == null) ? 0 : this.ipUdpHeader.hashCode() );
+        result = 41 * result + ( (this.optionsHeader == null) ? 0 : this.optionsHeader.hashCode() );
+        result = 41 * result + ( (this.messageHeader == null) ? 0 : this.messageHeader.hashCode() );
+        result = 41 * result + ( (this.messageContent == null) ? 0 : this.messageContent.hashCode() );
         
-        for (Byte b : this.dataBytes){
-        	result += 41 * (int) b;
-        }
+        // Arrays.hashCode works on the primitive array, no boxing per byte.
+        result = 41 * result + Arrays.hashCode(this.dataBytes);
         return result;
     }
 
@@ -180,7 +175,7 @@ public class CalAmpEvent /*extends MessageContent*/{
 	}
 
 	public long getMachineId() {
-		return sequenceNumber;
+		return machineId;
 	}
 	
 	public boolean getIsAnAck() {
@@ -193,7 +188,7 @@ public class CalAmpEvent /*extends MessageContent*/{
 	
 	public static String randomString(int length) {
 		char[] characterSet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
-	    Random random = new SecureRandom();
+	    Random random = ThreadLocalRandom.current();
 	    char[] result = new char[length];
 	    for (int i = 0; i < result.length; i++) {
 	        // picks a random index out of character set > random character
@@ -0,0 +1,166 @@
+package com.calamp.services.kinesis.events.data;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Wire formats for CalAmpEvent records.
+ *
+ * JSON is the original Jackson encoding (dataBytes as base64). BINARY is a
+ * compact versioned layout:
+ *
+ * <pre>
+ * magic(1)=0xCA version(1)
+ * timeStamp(8) sequenceNumber(8) machineId(4) isAnAck(1)
+ * ipUdpHeader, optionsHeader, messageHeader, messageContent : length(4) + UTF-8 bytes
+ * dataBytes : length(4) + raw bytes
+ * </pre>
+ *
+ * A length of -1 stands for null. A JSON record always starts with '{', so
+ * {@link #decode(byte[])} recognises both formats and consumers can read a
+ * stream holding a mix of the two while producers migrate.
+ */
+public enum CalAmpEventCodec {
+
+    JSON {
+        @Override
+        public byte[] encode(CalAmpEvent e) {
+            return e.toJsonAsBytes();
+        }
+    },
+    BINARY {
+        @Override
+        public byte[] encode(CalAmpEvent e) {
+            byte[] ip = utf8(e.getIpUdpHeader());
+            byte[] opt = utf8(e.getOptionsHeader());
+            byte[] msgh = utf8(e.getMessageHeader());
+            byte[] msgc = utf8(e.getMessageContent());
+            byte[] data = e.getDataBytes();
+            int size = HEADER_SIZE + fieldSize(ip) + fieldSize(opt) + fieldSize(msgh) + fieldSize(msgc) + fieldSize(data);
+
+            ByteBuffer bb = ByteBuffer.allocate(size);
+            bb.put(MAGIC).put(VERSION);
+            bb.putLong(e.getTimeStamp());
+            bb.putLong(e.getSequenceNumber());
+            bb.putInt((int) e.getMachineId());
+            bb.put((byte) (e.getIsAnAck() ? 1 : 0));
+            putField(bb, ip);
+            putField(bb, opt);
+            putField(bb, msgh);
+            putField(bb, msgc);
+            putField(bb, data);
+            return bb.array();
+        }
+    };
+
+    public static final byte MAGIC = (byte) 0xCA;
+    public static final byte VERSION = 1;
+    /** magic, version, timeStamp, sequenceNumber, machineId, isAnAck */
+    public static final int HEADER_SIZE = 1 + 1 + 8 + 8 + 4 + 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public abstract byte[] encode(CalAmpEvent e);
+
+    /**
+     * @return true if the bytes carry the binary format.
+     */
+    public static boolean isBinary(byte[] bytes) {
+        return bytes != null && bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    /**
+     * @return true if the record data carries the binary format. The buffer's position is not changed.
+     */
+    public static boolean isBinary(ByteBuffer data) {
+        return data != null && data.remaining() > 0 && data.get(data.position()) == MAGIC;
+    }
+
+    /**
+     * Decodes either wire format.
+     *
+     * @return the event, or null if the bytes cannot be parsed.
+     */
+    public static CalAmpEvent decode(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        if (!isBinary(bytes)) {
+            return CalAmpEvent.fromJsonAsBytes(bytes);
+        }
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(bytes);
+            bb.get();
+            byte version = bb.get();
+            if (version != VERSION) {
+                System.err.println("Unknown CalAmpEvent binary version " + version);
+                return null;
+            }
+            long timeStamp = bb.getLong();
+            long sequenceNumber = bb.getLong();
+            int machineId = bb.getInt();
+            boolean isAnAck = bb.get() != 0;
+            String ip = getString(bb);
+            String opt = getString(bb);
+            String msgh = getString(bb);
+            String msgc = getString(bb);
+            byte[] data = getField(bb);
+            return new CalAmpEvent(ip, opt, msgh, msgc, data, timeStamp, sequenceNumber, isAnAck, machineId);
+        } catch (BufferUnderflowException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Picks a codec by name, as given on a command line.
+     */
+    public static CalAmpEventCodec fromName(String name) {
+        return CalAmpEventCodec.valueOf(name.trim().toUpperCase());
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(UTF8);
+    }
+
+    private static int fieldSize(byte[] b) {
+        return 4 + (b == null ? 0 : b.length);
+    }
+
+    private static void putField(ByteBuffer bb, byte[] b) {
+        if (b == null) {
+            bb.putInt(-1);
+        }
+        else {
+            bb.putInt(b.length);
+            bb.put(b);
+        }
+    }
+
+    private static byte[] getField(ByteBuffer bb) {
+        int len = bb.getInt();
+        if (len < 0) {
+            return null;
+        }
+        if (len > bb.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] b = new byte[len];
+        bb.get(b);
+        return b;
+    }
+
+    private static String getString(ByteBuffer bb) {
+        int len = bb.getInt();
+        if (len < 0) {
+            return null;
+        }
+        if (len > bb.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(bb.array(), bb.arrayOffset() + bb.position(), len, UTF8);
+        bb.position(bb.position() + len);
+        return s;
+    }
+}
@@ -0,0 +1,173 @@
+package com.calamp.services.kinesis.events.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The four fields the sorter orders by (see CalAmpEventPriorityComparator),
+ * read straight from a record's bytes without building a CalAmpEvent.
+ *
+ * For BINARY records the fields sit at fixed offsets. For JSON records a
+ * streaming parser reads tokens only until the four fields are found; Jackson
+ * writes them before the headers and the base64 payload, so in practice the
+ * payload is never touched.
+ */
+public final class CalAmpEventKey {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final int FOUND_TIME = 1;
+    private static final int FOUND_SEQ = 2;
+    private static final int FOUND_ACK = 4;
+    private static final int FOUND_MACHINE = 8;
+    private static final int FOUND_ALL = FOUND_TIME | FOUND_SEQ | FOUND_ACK | FOUND_MACHINE;
+
+    private final long timeStamp;
+    private final long sequenceNumber;
+    private final boolean isAnAck;
+    private final int machineId;
+
+    public CalAmpEventKey(long timeStamp, long sequenceNumber, boolean isAnAck, int machineId) {
+        this.timeStamp = timeStamp;
+        this.sequenceNumber = sequenceNumber;
+        this.isAnAck = isAnAck;
+        this.machineId = machineId;
+    }
+
+    public static CalAmpEventKey of(CalAmpEvent e) {
+        return new CalAmpEventKey(e.getTimeStamp(), e.getSequenceNumber(), e.getIsAnAck(), (int) e.getMachineId());
+    }
+
+    /**
+     * Reads the key from either wire format. The buffer's position is not changed.
+     *
+     * @return the key, or null if the bytes hold no parseable key.
+     */
+    public static CalAmpEventKey read(ByteBuffer data) {
+        if (data == null || data.remaining() == 0) {
+            return null;
+        }
+        int pos = data.position();
+        if (data.get(pos) == CalAmpEventCodec.MAGIC) {
+            return readBinary(data, pos);
+        }
+        return readJson(data, pos);
+    }
+
+    private static CalAmpEventKey readBinary(ByteBuffer data, int pos) {
+        if (data.remaining() < CalAmpEventCodec.HEADER_SIZE || data.get(pos + 1) != CalAmpEventCodec.VERSION) {
+            return null;
+        }
+        long timeStamp = data.getLong(pos + 2);
+        long sequenceNumber = data.getLong(pos + 10);
+        int machineId = data.getInt(pos + 18);
+        boolean isAnAck = data.get(pos + 22) != 0;
+        return new CalAmpEventKey(timeStamp, sequenceNumber, isAnAck, machineId);
+    }
+
+    private static CalAmpEventKey readJson(ByteBuffer data, int pos) {
+        if (!data.hasArray()) {
+            byte[] copy = new byte[data.remaining()];
+            data.duplicate().get(copy);
+            return readJson(copy, 0, copy.length);
+        }
+        return readJson(data.array(), data.arrayOffset() + pos, data.remaining());
+    }
+
+    private static CalAmpEventKey readJson(byte[] bytes, int offset, int length) {
+        long timeStamp = 0;
+        long sequenceNumber = 0;
+        boolean isAnAck = false;
+        int machineId = 0;
+        int found = 0;
+        JsonParser p = null;
+        try {
+            p = JSON_FACTORY.createParser(bytes, offset, length);
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (found != FOUND_ALL && p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                JsonToken value = p.nextToken();
+                if ("timeStamp".equals(name)) {
+                    timeStamp = p.getLongValue();
+                    found |= FOUND_TIME;
+                }
+                else if ("sequenceNumber".equals(name)) {
+                    sequenceNumber = p.getLongValue();
+                    found |= FOUND_SEQ;
+                }
+                else if ("isAnAck".equals(name)) {
+                    isAnAck = (value == JsonToken.VALUE_TRUE);
+                    found |= FOUND_ACK;
+                }
+                else if ("machineId".equals(name)) {
+                    machineId = p.getIntValue();
+                    found |= FOUND_MACHINE;
+                }
+                else {
+                    p.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (found != FOUND_ALL) {
+            return null;
+        }
+        return new CalAmpEventKey(timeStamp, sequenceNumber, isAnAck, machineId);
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public boolean getIsAnAck() {
+        return isAnAck;
+    }
+
+    public int getMachineId() {
+        return machineId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof CalAmpEventKey)) {
+            return false;
+        }
+        CalAmpEventKey k = (CalAmpEventKey) other;
+        return timeStamp == k.timeStamp && sequenceNumber == k.sequenceNumber
+                && isAnAck == k.isAnAck && machineId == k.machineId;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (timeStamp ^ (timeStamp >>> 32));
+        result = 31 * result + (int) (sequenceNumber ^ (sequenceNumber >>> 32));
+        result = 31 * result + (isAnAck ? 1 : 0);
+        result = 31 * result + machineId;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Time: %d Seq: %d Ack: %b Machine: %d", timeStamp, sequenceNumber, isAnAck, machineId);
+    }
+}
@@ -0,0 +1,51 @@
+package com.calamp.services.kinesis.events.local;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Checkpointer handed to processors by LocalWorker. Keeps the last checkpoint
+ * in memory; checkpoint() with no argument means the last record delivered
+ * to the processor, as with the KCL.
+ */
+public class LocalCheckpointer implements IRecordProcessorCheckpointer {
+
+    private volatile String lastDelivered;
+    private volatile String checkpoint;
+    private volatile long checkpoints;
+
+    void delivered(String sequenceNumber) {
+        lastDelivered = sequenceNumber;
+    }
+
+    @Override
+    public void checkpoint() {
+        if (lastDelivered != null) {
+            checkpoint(lastDelivered);
+        }
+    }
+
+    @Override
+    public void checkpoint(Record record) {
+        checkpoint(record.getSequenceNumber());
+    }
+
+    @Override
+    public void checkpoint(String sequenceNumber) {
+        checkpoint = sequenceNumber;
+        checkpoints++;
+    }
+
+    @Override
+    public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+        checkpoint(sequenceNumber);
+    }
+
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    public long getCheckpointCount() {
+        return checkpoints;
+    }
+}
@@ -0,0 +1,494 @@
+package com.calamp.services.kinesis.events.local;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.GetShardIteratorRequest;
+import com.amazonaws.services.kinesis.model.GetShardIteratorResult;
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.InvalidArgumentException;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+import com.calamp.services.kinesis.events.utils.TokenBucket;
+
+/**
+ * In-process stand-in for Kinesis, so the pipeline can be exercised without
+ * AWS. {@link #client()} returns an AmazonKinesis whose calls are served by the
+ * public methods of this class with the same name and parameter types; any
+ * other call throws UnsupportedOperationException.
+ *
+ * A stream has one or more shards that split the 128 bit hash key space
+ * evenly; a record goes to the shard owning the MD5 of its partition key (or
+ * its explicit hash key), as in Kinesis. Sequence numbers increase across the
+ * whole instance. Records are kept in memory and read back through shard
+ * iterators and GetRecords.
+ *
+ * Faults can be injected: a put failure rate answers a random share of
+ * PutRecords entries with a throttling error, per shard write limits (records
+ * and bytes per second) and read limits (GetRecords calls per second) throttle
+ * like a provisioned shard, and PutRecords can append the accepted entries of
+ * a request in random order, which Kinesis is free to do as well.
+ *
+ * A shard can be capped to its newest records, the way the retention period
+ * trims a real shard, so long runs do not keep every record in memory.
+ */
+public class LocalKinesis {
+
+    public static final String THROTTLED = "ProvisionedThroughputExceededException";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final BigInteger HASH_SPACE = BigInteger.ONE.shiftLeft(128);
+
+    private final Map<String, LocalStream> streams = new HashMap<String, LocalStream>();
+    private final Random rand;
+    private final MessageDigest md5;
+    private volatile double putFailureRate;
+    private volatile boolean shuffleWithinRequest;
+    private double shardRecordsPerSecond;
+    private double shardBytesPerSecond;
+    private double shardReadsPerSecond;
+    private volatile int maxRecordsPerShard;
+    private BigInteger nextSequenceNumber = new BigInteger("49540000000000000000000000000000000000000000000000000000");
+
+    public LocalKinesis() {
+        this(new Random());
+    }
+
+    public LocalKinesis(Random rand) {
+        this.rand = rand;
+        try {
+            this.md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return an AmazonKinesis client backed by this instance
+     */
+    public AmazonKinesis client() {
+        final LocalKinesis backend = this;
+        return (AmazonKinesis) Proxy.newProxyInstance(AmazonKinesis.class.getClassLoader(),
+                new Class<?>[] { AmazonKinesis.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                        if (m.getDeclaringClass() == Object.class) {
+                            return m.invoke(backend, args);
+                        }
+                        Method impl;
+                        try {
+                            impl = LocalKinesis.class.getMethod(m.getName(), m.getParameterTypes());
+                        } catch (NoSuchMethodException e) {
+                            throw new UnsupportedOperationException("LocalKinesis does not implement " + m.getName());
+                        }
+                        try {
+                            return impl.invoke(backend, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    public synchronized void createStream(String streamName) {
+        createStream(streamName, 1);
+    }
+
+    public synchronized void createStream(String streamName, int shardCount) {
+        if (streams.containsKey(streamName)) {
+            return;
+        }
+        LocalStream stream = new LocalStream();
+        BigInteger width = HASH_SPACE.divide(BigInteger.valueOf(shardCount));
+        for (int i = 0; i < shardCount; i++) {
+            BigInteger start = width.multiply(BigInteger.valueOf(i));
+            BigInteger end = i == shardCount - 1 ? HASH_SPACE.subtract(BigInteger.ONE) : start.add(width).subtract(BigInteger.ONE);
+            stream.shards.add(new LocalShard(String.format("shardId-%012d", i), start, end));
+        }
+        streams.put(streamName, stream);
+    }
+
+    /**
+     * Fraction (0..1) of PutRecords entries answered with a throttling error.
+     */
+    public void setPutFailureRate(double putFailureRate) {
+        this.putFailureRate = putFailureRate;
+    }
+
+    /**
+     * Appends the accepted entries of each PutRecords request in random order.
+     */
+    public void setShuffleWithinRequest(boolean shuffleWithinRequest) {
+        this.shuffleWithinRequest = shuffleWithinRequest;
+    }
+
+    /**
+     * Per shard limits, applied to shards of streams created afterwards. Zero
+     * means unlimited. Kinesis allows 1000 records and 1 MB per second written
+     * and 5 GetRecords calls per second.
+     */
+    public synchronized void setShardLimits(double recordsPerSecond, double bytesPerSecond, double readsPerSecond) {
+        this.shardRecordsPerSecond = recordsPerSecond;
+        this.shardBytesPerSecond = bytesPerSecond;
+        this.shardReadsPerSecond = readsPerSecond;
+    }
+
+    /**
+     * Keeps at most this many of the newest records per shard (0 keeps all).
+     * Iterators behind the trimmed records continue at the oldest one kept.
+     */
+    public void setMaxRecordsPerShard(int maxRecordsPerShard) {
+        this.maxRecordsPerShard = maxRecordsPerShard;
+    }
+
+    /**
+     * @return a copy of every record kept on the stream, in sequence number order
+     */
+    public synchronized List<Record> storedRecords(String streamName) {
+        List<Record> all = new ArrayList<Record>();
+        for (LocalShard shard : stream(streamName).shards) {
+            all.addAll(shard.records);
+        }
+        Collections.sort(all, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return new BigInteger(a.getSequenceNumber()).compareTo(new BigInteger(b.getSequenceNumber()));
+            }
+        });
+        return all;
+    }
+
+    /**
+     * @return PutRecord and PutRecords entries received for the stream, accepted or not
+     */
+    public synchronized long getPutAttempts(String streamName) {
+        return stream(streamName).putAttempts;
+    }
+
+    public synchronized long getPutAccepted(String streamName) {
+        return stream(streamName).putAccepted;
+    }
+
+    /**
+     * @return puts and reads refused by the per shard limits
+     */
+    public synchronized long getThrottled(String streamName) {
+        return stream(streamName).throttled;
+    }
+
+    /**
+     * @return GetRecords calls on the stream, including throttled ones
+     */
+    public synchronized long getReads(String streamName) {
+        return stream(streamName).reads;
+    }
+
+    /**
+     * @return GetRecords calls on the stream that returned no records
+     */
+    public synchronized long getEmptyReads(String streamName) {
+        return stream(streamName).emptyReads;
+    }
+
+    // AmazonKinesis calls served by the proxy.
+
+    public void setRegion(com.amazonaws.regions.Region region) {
+    }
+
+    public void setEndpoint(String endpoint) {
+    }
+
+    public void shutdown() {
+    }
+
+    public synchronized DescribeStreamResult describeStream(String streamName) {
+        List<Shard> shards = new ArrayList<Shard>();
+        for (LocalShard s : stream(streamName).shards) {
+            HashKeyRange range = new HashKeyRange();
+            range.setStartingHashKey(s.startingHashKey.toString());
+            range.setEndingHashKey(s.endingHashKey.toString());
+            Shard shard = new Shard();
+            shard.setShardId(s.shardId);
+            shard.setHashKeyRange(range);
+            shards.add(shard);
+        }
+        StreamDescription sd = new StreamDescription();
+        sd.setStreamName(streamName);
+        sd.setStreamStatus("ACTIVE");
+        sd.setShards(shards);
+        sd.setHasMoreShards(false);
+        DescribeStreamResult result = new DescribeStreamResult();
+        result.setStreamDescription(sd);
+        return result;
+    }
+
+    public DescribeStreamResult describeStream(DescribeStreamRequest request) {
+        return describeStream(request.getStreamName());
+    }
+
+    public synchronized PutRecordResult putRecord(PutRecordRequest request) {
+        LocalStream stream = stream(request.getStreamName());
+        stream.putAttempts++;
+        LocalShard shard = route(stream, request.getPartitionKey(), request.getExplicitHashKey());
+        if (!shard.admitWrite(request.getData().remaining())) {
+            stream.throttled++;
+            throw new ProvisionedThroughputExceededException("Rate exceeded for shard " + shard.shardId);
+        }
+        Record r = append(stream, shard, request.getData(), request.getPartitionKey());
+        PutRecordResult result = new PutRecordResult();
+        result.setShardId(shard.shardId);
+        result.setSequenceNumber(r.getSequenceNumber());
+        return result;
+    }
+
+    public synchronized PutRecordsResult putRecords(PutRecordsRequest request) {
+        LocalStream stream = stream(request.getStreamName());
+        List<PutRecordsRequestEntry> entries = request.getRecords();
+        List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>();
+        List<Integer> accepted = new ArrayList<Integer>();
+        LocalShard[] target = new LocalShard[entries.size()];
+        int failed = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            PutRecordsRequestEntry e = entries.get(i);
+            stream.putAttempts++;
+            target[i] = route(stream, e.getPartitionKey(), e.getExplicitHashKey());
+            PutRecordsResultEntry re = new PutRecordsResultEntry();
+            boolean injected = putFailureRate > 0 && rand.nextDouble() < putFailureRate;
+            if (injected || !target[i].admitWrite(e.getData().remaining())) {
+                if (!injected) {
+                    stream.throttled++;
+                }
+                re.setErrorCode(THROTTLED);
+                re.setErrorMessage("Rate exceeded for shard " + target[i].shardId);
+                failed++;
+            }
+            else {
+                accepted.add(i);
+            }
+            results.add(re);
+        }
+        if (shuffleWithinRequest) {
+            Collections.shuffle(accepted, rand);
+        }
+        for (int i : accepted) {
+            PutRecordsRequestEntry e = entries.get(i);
+            Record r = append(stream, target[i], e.getData(), e.getPartitionKey());
+            results.get(i).setShardId(target[i].shardId);
+            results.get(i).setSequenceNumber(r.getSequenceNumber());
+        }
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(failed);
+        result.setRecords(results);
+        return result;
+    }
+
+    public synchronized GetShardIteratorResult getShardIterator(String streamName, String shardId, String shardIteratorType) {
+        return getShardIterator(new GetShardIteratorRequest().withStreamName(streamName).withShardId(shardId)
+                .withShardIteratorType(shardIteratorType));
+    }
+
+    /**
+     * Supports TRIM_HORIZON, LATEST, AT_SEQUENCE_NUMBER and AFTER_SEQUENCE_NUMBER.
+     */
+    public synchronized GetShardIteratorResult getShardIterator(GetShardIteratorRequest request) {
+        LocalShard shard = shard(stream(request.getStreamName()), request.getShardId());
+        String type = request.getShardIteratorType();
+        long position;
+        if ("TRIM_HORIZON".equals(type)) {
+            position = shard.trimmed;
+        }
+        else if ("LATEST".equals(type)) {
+            position = shard.trimmed + shard.records.size();
+        }
+        else if ("AT_SEQUENCE_NUMBER".equals(type) || "AFTER_SEQUENCE_NUMBER".equals(type)) {
+            BigInteger seq = new BigInteger(request.getStartingSequenceNumber());
+            position = shard.trimmed + shard.positionOf(seq, "AFTER_SEQUENCE_NUMBER".equals(type));
+        }
+        else {
+            throw new InvalidArgumentException("Unsupported shard iterator type " + type);
+        }
+        GetShardIteratorResult result = new GetShardIteratorResult();
+        result.setShardIterator(iterator(request.getStreamName(), shard.shardId, position));
+        return result;
+    }
+
+    public synchronized GetRecordsResult getRecords(GetRecordsRequest request) {
+        String[] it = request.getShardIterator().split("\\|");
+        if (it.length != 3) {
+            throw new InvalidArgumentException("Invalid shard iterator " + request.getShardIterator());
+        }
+        LocalStream stream = stream(it[0]);
+        LocalShard shard = shard(stream, it[1]);
+        stream.reads++;
+        if (!shard.admitRead()) {
+            stream.throttled++;
+            throw new ProvisionedThroughputExceededException("Rate exceeded for shard " + shard.shardId);
+        }
+        long position = Math.max(Long.parseLong(it[2]), shard.trimmed);
+        int from = (int) (position - shard.trimmed);
+        int limit = request.getLimit() == null ? 10000 : request.getLimit();
+        int to = Math.min(shard.records.size(), from + limit);
+        List<Record> records = new ArrayList<Record>(to - from);
+        for (int i = from; i < to; i++) {
+            Record r = shard.records.get(i);
+            // Each reader gets its own buffer position, as with records off the wire.
+            records.add(new Record().withData(r.getData().duplicate()).withPartitionKey(r.getPartitionKey())
+                    .withSequenceNumber(r.getSequenceNumber()));
+        }
+        if (records.isEmpty()) {
+            stream.emptyReads++;
+        }
+        GetRecordsResult result = new GetRecordsResult();
+        result.setRecords(records);
+        result.setNextShardIterator(iterator(it[0], shard.shardId, shard.trimmed + to));
+        result.setMillisBehindLatest(to >= shard.records.size() ? 0L : System.currentTimeMillis() - shard.arrivals.get(to));
+        return result;
+    }
+
+    private static String iterator(String streamName, String shardId, long position) {
+        return streamName + "|" + shardId + "|" + position;
+    }
+
+    private LocalShard route(LocalStream stream, String partitionKey, String explicitHashKey) {
+        if (stream.shards.size() == 1) {
+            return stream.shards.get(0);
+        }
+        BigInteger hash;
+        if (explicitHashKey != null) {
+            hash = new BigInteger(explicitHashKey);
+        }
+        else {
+            hash = new BigInteger(1, md5.digest(partitionKey.getBytes(UTF8)));
+        }
+        for (LocalShard s : stream.shards) {
+            if (hash.compareTo(s.endingHashKey) <= 0) {
+                return s;
+            }
+        }
+        throw new InvalidArgumentException("Hash key " + hash + " outside the hash key range");
+    }
+
+    private Record append(LocalStream stream, LocalShard shard, ByteBuffer data, String partitionKey) {
+        byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        nextSequenceNumber = nextSequenceNumber.add(BigInteger.ONE);
+        Record r = new Record();
+        r.setData(ByteBuffer.wrap(copy));
+        r.setPartitionKey(partitionKey);
+        r.setSequenceNumber(nextSequenceNumber.toString());
+        shard.records.add(r);
+        shard.arrivals.add(System.currentTimeMillis());
+        stream.putAccepted++;
+        int max = maxRecordsPerShard;
+        if (max > 0 && shard.records.size() > max + max / 4) {
+            // Trim in chunks so appends stay cheap.
+            int drop = shard.records.size() - max;
+            shard.records.subList(0, drop).clear();
+            shard.arrivals.subList(0, drop).clear();
+            shard.trimmed += drop;
+        }
+        return r;
+    }
+
+    private LocalStream stream(String streamName) {
+        LocalStream stream = streams.get(streamName);
+        if (stream == null) {
+            throw new ResourceNotFoundException("Stream " + streamName + " not found");
+        }
+        return stream;
+    }
+
+    private static LocalShard shard(LocalStream stream, String shardId) {
+        for (LocalShard s : stream.shards) {
+            if (s.shardId.equals(shardId)) {
+                return s;
+            }
+        }
+        throw new ResourceNotFoundException("Shard " + shardId + " not found");
+    }
+
+    private static final class LocalStream {
+        final List<LocalShard> shards = new ArrayList<LocalShard>();
+        long putAttempts;
+        long putAccepted;
+        long throttled;
+        long reads;
+        long emptyReads;
+    }
+
+    private final class LocalShard {
+        final String shardId;
+        final BigInteger startingHashKey;
+        final BigInteger endingHashKey;
+        final List<Record> records = new ArrayList<Record>();
+        final List<Long> arrivals = new ArrayList<Long>();
+        long trimmed;
+        final TokenBucket writeRecords = new TokenBucket(shardRecordsPerSecond, shardRecordsPerSecond);
+        final TokenBucket writeBytes = new TokenBucket(shardBytesPerSecond, shardBytesPerSecond);
+        final TokenBucket reads = new TokenBucket(shardReadsPerSecond, shardReadsPerSecond);
+
+        LocalShard(String shardId, BigInteger startingHashKey, BigInteger endingHashKey) {
+            this.shardId = shardId;
+            this.startingHashKey = startingHashKey;
+            this.endingHashKey = endingHashKey;
+        }
+
+        boolean admitWrite(int bytes) {
+            if (!writeBytes.tryTake(bytes)) {
+                return false;
+            }
+            return writeRecords.tryTake(1);
+        }
+
+        boolean admitRead() {
+            return reads.tryTake(1);
+        }
+
+        /**
+         * @return index of the first record at (or after) the sequence number
+         */
+        int positionOf(BigInteger seq, boolean after) {
+            int lo = 0;
+            int hi = records.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = new BigInteger(records.get(mid).getSequenceNumber()).compareTo(seq);
+                if (c < 0 || (after && c == 0)) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
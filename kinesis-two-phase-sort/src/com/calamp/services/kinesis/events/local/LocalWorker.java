@@ -0,0 +1,190 @@
+package com.calamp.services.kinesis.events.local;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.PollController;
+import com.calamp.services.kinesis.events.utils.RecordAggregator;
+
+/**
+ * Minimal stand-in for the KCL Worker: one thread per shard of a stream,
+ * each with its own record processor, reading from TRIM_HORIZON with
+ * GetRecords and handing every batch, de-aggregated against the shard's hash
+ * key range as the KCL does, to processRecords.
+ * There are no leases; every shard is owned by this worker for its whole life.
+ *
+ * Each shard's reads are paced by a PollController: full batches back to back
+ * while behind, a growing pause while reads come back empty. Throttled reads
+ * back off and retry. shutdown(TERMINATE) first reads each shard to its end,
+ * as when a shard closes; shutdown(ZOMBIE) stops at once.
+ */
+public class LocalWorker {
+
+    private static final Log LOG = LogFactory.getLog(LocalWorker.class);
+
+    private final AmazonKinesis kc;
+    private final String streamName;
+    private final IRecordProcessorFactory factory;
+    private final int maxRecords;
+    private final long idleMillis;
+    private final boolean callForEmpty;
+    private final Map<String, ShardConsumer> consumers = new LinkedHashMap<String, ShardConsumer>();
+    private final AtomicLong delivered = new AtomicLong();
+    private volatile ShutdownReason stopReason;
+
+    public LocalWorker(AmazonKinesis kc, String streamName, IRecordProcessorFactory factory) {
+        this(kc, streamName, factory, CalAmpParameters.maxRecPerPoll, CalAmpParameters.pollDelayMillis, CalAmpParameters.alwaysPoll);
+    }
+
+    /**
+     * @param maxRecords largest read limit
+     * @param idleMillis shortest pause between reads
+     * @param callForEmpty call processRecords even when a read returned nothing
+     */
+    public LocalWorker(AmazonKinesis kc, String streamName, IRecordProcessorFactory factory, int maxRecords,
+            long idleMillis, boolean callForEmpty) {
+        this.kc = kc;
+        this.streamName = streamName;
+        this.factory = factory;
+        this.maxRecords = maxRecords;
+        this.idleMillis = idleMillis;
+        this.callForEmpty = callForEmpty;
+    }
+
+    public synchronized void start() {
+        for (Shard shard : kc.describeStream(streamName).getStreamDescription().getShards()) {
+            ShardConsumer c = new ShardConsumer(shard);
+            consumers.put(shard.getShardId(), c);
+            Thread t = new Thread(c, "local-worker-" + streamName + "-" + shard.getShardId());
+            t.setDaemon(true);
+            c.thread = t;
+            t.start();
+        }
+    }
+
+    /**
+     * Stops every shard consumer, calls the processors' shutdown and waits for
+     * them to finish.
+     */
+    public void shutdown(ShutdownReason reason) throws InterruptedException {
+        stopReason = reason;
+        List<ShardConsumer> all;
+        synchronized (this) {
+            all = new ArrayList<ShardConsumer>(consumers.values());
+        }
+        for (ShardConsumer c : all) {
+            c.thread.join();
+        }
+    }
+
+    /**
+     * @return last checkpoint per shard id, null where none was made
+     */
+    public synchronized Map<String, String> getCheckpoints() {
+        Map<String, String> cps = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, ShardConsumer> e : consumers.entrySet()) {
+            cps.put(e.getKey(), e.getValue().checkpointer.getCheckpoint());
+        }
+        return cps;
+    }
+
+    public synchronized long getCheckpointCount() {
+        long n = 0;
+        for (ShardConsumer c : consumers.values()) {
+            n += c.checkpointer.getCheckpointCount();
+        }
+        return n;
+    }
+
+    /**
+     * @return records handed to processors so far, over all shards
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    private class ShardConsumer implements Runnable {
+        private final String shardId;
+        private final BigInteger startingHashKey;
+        private final BigInteger endingHashKey;
+        private final LocalCheckpointer checkpointer = new LocalCheckpointer();
+        private final PollController pace;
+        private Thread thread;
+
+        ShardConsumer(Shard shard) {
+            this.shardId = shard.getShardId();
+            this.startingHashKey = new BigInteger(shard.getHashKeyRange().getStartingHashKey());
+            this.endingHashKey = new BigInteger(shard.getHashKeyRange().getEndingHashKey());
+            this.pace = new PollController("poll." + streamName + "." + shardId, CalAmpParameters.pollMinRecords, maxRecords,
+                    idleMillis, CalAmpParameters.pollMaxIdleMillis, CalAmpParameters.pollCatchUpMillis);
+        }
+
+        @Override
+        public void run() {
+            IRecordProcessor processor = factory.createProcessor();
+            processor.initialize(shardId);
+            String iterator = kc.getShardIterator(streamName, shardId, "TRIM_HORIZON").getShardIterator();
+            int throttledInARow = 0;
+            try {
+                while (true) {
+                    ShutdownReason reason = stopReason;
+                    if (reason == ShutdownReason.ZOMBIE) {
+                        break;
+                    }
+                    GetRecordsResult result;
+                    int limit = pace.getLimit();
+                    try {
+                        result = kc.getRecords(new GetRecordsRequest().withShardIterator(iterator).withLimit(limit));
+                        throttledInARow = 0;
+                    } catch (ProvisionedThroughputExceededException e) {
+                        throttledInARow++;
+                        Thread.sleep(Math.min(1000L, 50L << Math.min(throttledInARow, 5)));
+                        continue;
+                    }
+                    iterator = result.getNextShardIterator();
+                    pace.observe(result.getRecords().size(), limit, result.getMillisBehindLatest());
+                    // As the KCL does, processors get one record per event of an aggregated record,
+                    // and an aggregate with an event that hashes outside the shard is dropped.
+                    List<Record> records = RecordAggregator.deaggregate(result.getRecords(), startingHashKey, endingHashKey);
+                    if (!records.isEmpty()) {
+                        checkpointer.delivered(records.get(records.size() - 1).getSequenceNumber());
+                        delivered.addAndGet(records.size());
+                    }
+                    if (!records.isEmpty() || callForEmpty) {
+                        try {
+                            processor.processRecords(records, checkpointer);
+                        } catch (RuntimeException e) {
+                            LOG.error("processRecords failed on " + shardId + ", continuing with the next batch.", e);
+                        }
+                    }
+                    if (records.isEmpty() && reason == ShutdownReason.TERMINATE) {
+                        break;
+                    }
+                    if (pace.getIdleMillis() > 0) {
+                        Thread.sleep(pace.getIdleMillis());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processor.shutdown(checkpointer, stopReason == null ? ShutdownReason.ZOMBIE : stopReason);
+        }
+    }
+}
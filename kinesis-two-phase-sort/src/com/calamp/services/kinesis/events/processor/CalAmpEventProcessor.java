@@ -32,6 +32,8 @@ import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorF
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionInStream;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibConfiguration;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.sort.OrderingScope;
 import com.calamp.services.kinesis.events.utils.ConfigurationUtils;
 import com.calamp.services.kinesis.events.utils.CredentialUtils;
 import com.calamp.services.kinesis.events.utils.CalAmpParameters;
@@ -52,9 +54,9 @@ public class CalAmpEventProcessor {
             Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.processor");
     
     private static void checkUsage(String[] args) {
-        if (args.length != 4) {
+        if (args.length < 4 || args.length > 6) {
             System.err.println("Usage: " + CalAmpEventProcessor.class.getSimpleName()
-                    + " <application name> <stream name> <region> <isUnordered>");
+                    + " <application name> <stream name> <region> <isUnordered> [JSON|BINARY] [GLOBAL|SHARD|MACHINE]");
             System.exit(1);
         }
     }
@@ -76,6 +78,8 @@ public class CalAmpEventProcessor {
         //String streamName = args[1];
         //Region region = RegionUtils.getRegion(args[2]);
      	boolean isUnordered = Boolean.valueOf( args[3] );
+     	CalAmpEventCodec codec = args.length > 4 ? CalAmpEventCodec.fromName( args[4] ) : CalAmpParameters.wireCodec;
+     	OrderingScope scope = args.length > 5 ? OrderingScope.valueOf( args[5].toUpperCase() ) : CalAmpParameters.orderingScope;
         String applicationName = isUnordered ? CalAmpParameters.sortAppName : CalAmpParameters.consumeAppName;
        	String streamName = isUnordered ? CalAmpParameters.unorderdStreamName : CalAmpParameters.orderedStreamName;
        	Region region = RegionUtils.getRegion( CalAmpParameters.regionName );
@@ -103,7 +107,8 @@ public class CalAmpEventProcessor {
             .withCallProcessRecordsEvenForEmptyRecordList(CalAmpParameters.alwaysPoll)
             .withInitialPositionInStream(InitialPositionInStream.TRIM_HORIZON); 
 
-        IRecordProcessorFactory processorFactory = new RecordProcessorFactory( isUnordered );
+        // The KCL reads with fixed settings; the processors pace their own shard's reads.
+        IRecordProcessorFactory processorFactory = new PacedRecordProcessor.Factory( new RecordProcessorFactory( isUnordered, codec, scope ) );
 
         // Create the KCL worker with the stock trade record processor factory
         Worker worker = new Worker(processorFactory, kclConfig);
@@ -0,0 +1,211 @@
+package com.calamp.services.kinesis.events.processor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.sort.CrossShardMerger;
+import com.calamp.services.kinesis.events.sort.HeldRecord;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.KeyOrderedPutSender;
+import com.calamp.services.kinesis.events.utils.Metrics;
+import com.calamp.services.kinesis.events.utils.PutCompletion;
+import com.calamp.services.kinesis.events.utils.RecordAggregator;
+import com.calamp.services.kinesis.events.utils.Utils;
+
+/**
+ * Global order mode: shared by every UnorderedRecordProcessor of a worker, it
+ * merges what each shard releases into one totally ordered sequence
+ * (CrossShardMerger) and puts it to the ordered stream under a single
+ * partition key, or a single explicit hash key, so it lands on one shard.
+ *
+ * A KeyOrderedPutSender keeps that one key in order through partial put
+ * failures, which limits the output to one record per put round trip;
+ * with aggregateRecords that record carries up to aggregationMaxBytes of
+ * events (its partition key is then the aggregate's, still a single one).
+ *
+ * Processors do not wait for their events to be put, as other shards may hold
+ * them back for a while. Each offer returns an Offer that is done once all its
+ * events have been accepted (or handed back as late), and the processor
+ * checkpoints up to the last done offer.
+ */
+public class GlobalOrderStage {
+
+    private static final Log LOG = LogFactory.getLog(GlobalOrderStage.class);
+
+    private final CalAmpEventCodec codec;
+    private final String partitionKey;
+    private final String explicitHashKey;
+    private final KeyOrderedPutSender sender;
+    private final CrossShardMerger<Queued> merger;
+    private final ArrayDeque<SentBatch> sent = new ArrayDeque<SentBatch>();
+
+    public GlobalOrderStage(AmazonKinesis kc, CalAmpEventCodec codec) {
+        this(kc, codec, CalAmpParameters.globalOrderPartitionKey, CalAmpParameters.globalOrderExplicitHashKey,
+                CalAmpParameters.mergeIdleShardMillis);
+    }
+
+    /**
+     * @param explicitHashKey hash key that picks the output shard, or null to hash the partition key
+     * @param idleShardMillis how long a shard without progress may hold the merge back
+     */
+    public GlobalOrderStage(AmazonKinesis kc, CalAmpEventCodec codec, String partitionKey, String explicitHashKey,
+            long idleShardMillis) {
+        this.codec = codec;
+        this.partitionKey = partitionKey;
+        this.explicitHashKey = explicitHashKey;
+        this.sender = new KeyOrderedPutSender(kc, CalAmpParameters.orderedStreamName, 1);
+        this.merger = new CrossShardMerger<Queued>(idleShardMillis);
+    }
+
+    public synchronized void register(String shardId, long nowMillis) {
+        merger.register(shardId, nowMillis);
+    }
+
+    /**
+     * Queues a shard's released events, in the order released, and its new watermark.
+     *
+     * @param checkpointSequenceNumber where the shard may checkpoint once the offer is done
+     * @param late receives released events the merge has already passed
+     */
+    public synchronized Offer offer(String shardId, List<HeldRecord> released, long watermark, long nowMillis,
+            String checkpointSequenceNumber, List<HeldRecord> late) {
+        Offer offer = new Offer(checkpointSequenceNumber);
+        for (HeldRecord h : released) {
+            if (merger.add(shardId, h.getKey(), new Queued(h, offer), nowMillis)) {
+                offer.remaining++;
+            }
+            else {
+                late.add(h);
+            }
+        }
+        merger.advance(shardId, watermark, nowMillis);
+        return offer;
+    }
+
+    /**
+     * Nothing more will come from the shard, e.g. at the end of a closed shard.
+     */
+    public synchronized void close(String shardId) {
+        merger.close(shardId);
+    }
+
+    /**
+     * Forgets a shard whose lease was lost. Its queued events are dropped; the
+     * new owner reads them again from the last checkpoint.
+     */
+    public synchronized void remove(String shardId) {
+        for (Queued q : merger.remove(shardId)) {
+            q.offer.dropped = true;
+        }
+    }
+
+    /**
+     * Collects finished puts, then puts everything the merge can emit now.
+     * Called by every processor after each poll.
+     */
+    public synchronized void drain(long nowMillis) {
+        reap();
+        List<Queued> out = new ArrayList<Queued>();
+        merger.drain(nowMillis, out);
+        if (!out.isEmpty()) {
+            List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>(out.size());
+            for (Queued q : out) {
+                PutRecordsRequestEntry prre = UnorderedRecordProcessor.toEntry(q.held, codec).withPartitionKey(partitionKey);
+                if (explicitHashKey != null) {
+                    prre.setExplicitHashKey(explicitHashKey);
+                }
+                Utils.lazyLog(prre, q.held.getKey(), CalAmpParameters.orderedStreamName, CalAmpParameters.bufferLogName);
+                entries.add(prre);
+            }
+            sent.addLast(new SentBatch(sender.send(RecordAggregator.aggregate(entries)), out));
+            Metrics.add("merge.emittedEvents", out.size());
+        }
+        Metrics.set("merge.heldEvents", merger.size());
+        Metrics.set("merge.shards", merger.shards());
+        Metrics.set("merge.idleShards", merger.idleShards(nowMillis));
+    }
+
+    public synchronized boolean isDone(Offer offer) {
+        reap();
+        return offer.remaining == 0 && !offer.dropped;
+    }
+
+    /**
+     * @return true if some of the offer's events will never be put, because
+     * their shard was removed or a put failed
+     */
+    public synchronized boolean isDropped(Offer offer) {
+        return offer.dropped;
+    }
+
+    /**
+     * Credits the offers of every batch whose put has finished. The sender
+     * keeps one key in order, so batches finish in the order they were sent.
+     */
+    private void reap() {
+        while (!sent.isEmpty() && sent.peekFirst().completion.isDone()) {
+            SentBatch b = sent.pollFirst();
+            try {
+                b.completion.get();
+                for (Queued q : b.events) {
+                    q.offer.remaining--;
+                }
+            } catch (ExecutionException e) {
+                // The offers never complete, so their shards stop checkpointing and re-read them after a fail over.
+                LOG.error("Put of " + b.events.size() + " globally ordered events failed.", e.getCause());
+                for (Queued q : b.events) {
+                    q.offer.dropped = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sent.addFirst(b);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Events one processor handed over in one offer call.
+     */
+    public static class Offer {
+        private final String checkpointSequenceNumber;
+        private int remaining;
+        private boolean dropped;
+
+        Offer(String checkpointSequenceNumber) {
+            this.checkpointSequenceNumber = checkpointSequenceNumber;
+        }
+
+        public String getCheckpointSequenceNumber() {
+            return checkpointSequenceNumber;
+        }
+    }
+
+    private static class Queued {
+        final HeldRecord held;
+        final Offer offer;
+
+        Queued(HeldRecord held, Offer offer) {
+            this.held = held;
+            this.offer = offer;
+        }
+    }
+
+    private static class SentBatch {
+        final PutCompletion completion;
+        final List<Queued> events;
+
+        SentBatch(PutCompletion completion, List<Queued> events) {
+            this.completion = completion;
+            this.events = events;
+        }
+    }
+}
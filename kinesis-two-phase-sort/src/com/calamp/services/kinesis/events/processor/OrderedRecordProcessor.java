@@ -20,15 +20,15 @@ import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
 import com.amazonaws.services.kinesis.model.Record;
 import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
 import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.CheckpointScheduler;
+import com.calamp.services.kinesis.events.utils.RecordAggregator;
 import com.calamp.services.kinesis.events.utils.Utils;
 
 /**
@@ -39,6 +39,7 @@ public class OrderedRecordProcessor implements IRecordProcessor {
 
     private static final Log LOG = LogFactory.getLog(OrderedRecordProcessor.class);
     private String kinesisShardId;
+    private CheckpointScheduler checkpoints;
 
     public OrderedRecordProcessor(){
     	Utils.initLazyLog(CalAmpParameters.readLogName, "Window Sorted Stream Start");
@@ -50,6 +51,7 @@ public class OrderedRecordProcessor implements IRecordProcessor {
     public void initialize(String shardId) {
         LOG.info("Initializing record processor for shard: " + shardId);
         this.kinesisShardId = shardId;
+        this.checkpoints = new CheckpointScheduler("consume." + shardId);
     }
 
     /**
@@ -57,22 +59,26 @@ public class OrderedRecordProcessor implements IRecordProcessor {
      */
     @Override
     public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
-		System.out.println("Process Ordered Records #" + records.size());   
+		// The KCL de-aggregates already; other callers may pass aggregated records.
+		records = RecordAggregator.deaggregate(records);
+		LOG.debug("Process Ordered Records #" + records.size());
 		for (Record record : records) {
 	        // Final process record
 			CalAmpEvent e = processRecord( record );
 	    	LOG.info("ORDERED: " + e);
 	    }
-    	checkpoint(checkpointer);
+		String last = records.isEmpty() ? null : records.get(records.size() - 1).getSequenceNumber();
+    	checkpoints.offer(checkpointer, last, records.size(), System.currentTimeMillis());
     }
 
     private CalAmpEvent processRecord(Record record) {
-    	CalAmpEvent e = CalAmpEvent.fromJsonAsBytes(record.getData().array());
+    	// Either wire format may be on the stream while producers migrate.
+    	CalAmpEvent e = CalAmpEventCodec.decode(Utils.bytesOf(record.getData()));
     	if (e == null) {
     	    LOG.warn("Skipping record. Unable to parse record into StockTrade. Partition Key: " + record.getPartitionKey());
     	    return null;
     	}
-    	Utils.lazyLog(record, CalAmpParameters.orderedStreamName, CalAmpParameters.readLogName);
+    	Utils.lazyLog(record, kinesisShardId, e, CalAmpParameters.orderedStreamName, CalAmpParameters.readLogName);
     	return e;
     }
     /**
@@ -83,24 +89,7 @@ public class OrderedRecordProcessor implements IRecordProcessor {
         LOG.info("Shutting down record processor for shard: " + kinesisShardId);
         // Important to checkpoint after reaching end of shard, so we can start processing data from child shards.
         if (reason == ShutdownReason.TERMINATE) {
-            checkpoint(checkpointer);
+            checkpoints.flush(checkpointer, null);
         }
     }
-
-    private void checkpoint(IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Checkpointing shard " + kinesisShardId);
-        try {
-            checkpointer.checkpoint();
-        } catch (ShutdownException se) {
-            // Ignore checkpoint if the processor instance has been shutdown (fail over).
-            LOG.info("Caught shutdown exception, skipping checkpoint.", se);
-        } catch (ThrottlingException e) {
-            // Skip checkpoint when throttled. In practice, consider a backoff and retry policy.
-            LOG.error("Caught throttling exception, skipping checkpoint.", e);
-        } catch (InvalidStateException e) {
-            // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
-            LOG.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
-        }
-        
-    }
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.calamp.services.kinesis.events.processor;
+
+import java.util.List;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.PollController;
+import com.calamp.services.kinesis.events.utils.RecordAggregator;
+
+/**
+ * Adds PollController pacing to a processor run by the KCL. KCL 1.4 reads a
+ * shard with a fixed limit and does not tell the processor how far behind it
+ * is, but it reads and processes each shard in one task, so waiting at the
+ * end of processRecords delays that shard's next GetRecords. An empty batch
+ * makes the shard wait longer and longer; a full one lets it read again at
+ * once. LocalWorker paces its reads itself and does not need this.
+ */
+public class PacedRecordProcessor implements IRecordProcessor {
+
+    private final IRecordProcessor processor;
+    private PollController pace;
+
+    public PacedRecordProcessor(IRecordProcessor processor) {
+        this.processor = processor;
+    }
+
+    @Override
+    public void initialize(String shardId) {
+        pace = new PollController("poll." + shardId);
+        processor.initialize(shardId);
+    }
+
+    @Override
+    public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
+        // The KCL hands over de-aggregated events; the read limit counts Kinesis records.
+        int read = RecordAggregator.kinesisRecords(records);
+        processor.processRecords(records, checkpointer);
+        pace.observe(read, CalAmpParameters.maxRecPerPoll, null);
+        // The worker already waits pollDelayMillis between reads.
+        long wait = pace.getIdleMillis() - CalAmpParameters.pollDelayMillis;
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void shutdown(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
+        processor.shutdown(checkpointer, reason);
+    }
+
+    /**
+     * Wraps every processor of another factory.
+     */
+    public static class Factory implements IRecordProcessorFactory {
+        private final IRecordProcessorFactory factory;
+
+        public Factory(IRecordProcessorFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public IRecordProcessor createProcessor() {
+            return new PacedRecordProcessor(factory.createProcessor());
+        }
+    }
+}
@@ -30,6 +30,9 @@ package com.calamp.services.kinesis.events.processor;/*
 
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.sort.OrderingScope;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
 
 /**
  * Used to create new stock trade record processors.
@@ -38,12 +41,41 @@ import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorF
 public class RecordProcessorFactory implements IRecordProcessorFactory {
 
 	Boolean isUnordered;
+	CalAmpEventCodec codec;
+	OrderingScope scope;
+	GlobalOrderStage globalOrder;
     /**
      * Constructor.
      */
     public RecordProcessorFactory(Boolean isUnordered) {
+    	this(isUnordered, CalAmpParameters.wireCodec);
+    }
+
+    /**
+     * @param codec format the sorting processor uses when putting to the ordered stream
+     */
+    public RecordProcessorFactory(Boolean isUnordered, CalAmpEventCodec codec) {
+    	this(isUnordered, codec, CalAmpParameters.orderingScope);
+    }
+
+    /**
+     * @param scope what the sorting processors order over; in GLOBAL scope they share one merge stage
+     */
+    public RecordProcessorFactory(Boolean isUnordered, CalAmpEventCodec codec, OrderingScope scope) {
     	super();
     	this.isUnordered = isUnordered;
+    	this.codec = codec;
+    	this.scope = scope;
+    }
+
+    /**
+     * In global order mode every sorting processor this factory creates shares one merge stage.
+     */
+    private synchronized GlobalOrderStage globalOrder() {
+    	if (globalOrder == null){
+    		globalOrder = new GlobalOrderStage( UnorderedRecordProcessor.orderedStreamClient(), codec );
+    	}
+    	return globalOrder;
     }
 
     /**
@@ -52,7 +84,8 @@ public class RecordProcessorFactory implements IRecordProcessorFactory {
     @Override
     public IRecordProcessor createProcessor() {
     	if (isUnordered){
-    		return new UnorderedRecordProcessor(  );
+    		GlobalOrderStage stage = scope == OrderingScope.GLOBAL ? globalOrder() : null;
+    		return new UnorderedRecordProcessor( UnorderedRecordProcessor.orderedStreamClient(), codec, scope, stage, CalAmpParameters.releaseOnSequence );
     	}
     	else{
     		return new OrderedRecordProcessor(  );
@@ -15,70 +15,197 @@
 
 package com.calamp.services.kinesis.events.processor;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
 import com.amazonaws.services.kinesis.model.Record;
 import com.calamp.services.kinesis.events.data.CalAmpEvent;
-import com.calamp.services.kinesis.events.utils.CalAmpEventPriorityComparator;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+import com.calamp.services.kinesis.events.sort.CatchUpTracker;
+import com.calamp.services.kinesis.events.sort.DedupIndex;
+import com.calamp.services.kinesis.events.sort.HeldRecord;
+import com.calamp.services.kinesis.events.sort.MachineSortBuffers;
+import com.calamp.services.kinesis.events.sort.OrderingScope;
+import com.calamp.services.kinesis.events.sort.ReorderWindow;
+import com.calamp.services.kinesis.events.sort.SequenceGapRelease;
+import com.calamp.services.kinesis.events.sort.SortBuffer;
+import com.calamp.services.kinesis.events.sort.WatermarkTracker;
+import com.calamp.services.kinesis.events.utils.CheckpointScheduler;
 import com.calamp.services.kinesis.events.utils.ConfigurationUtils;
 import com.calamp.services.kinesis.events.utils.CredentialUtils;
-import com.calamp.services.kinesis.events.utils.CalAmpEventFilter;
+import com.calamp.services.kinesis.events.utils.KeyOrderedPutSender;
 import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.LazyLogger;
+import com.calamp.services.kinesis.events.utils.Metrics;
+import com.calamp.services.kinesis.events.utils.PutCompletion;
+import com.calamp.services.kinesis.events.utils.RecordAggregator;
 import com.calamp.services.kinesis.events.utils.Utils;
 
 /**
- * Processes records retrieved from stock trades stream.
+ * First phase of the sort: reads a shard of the unordered stream and puts its
+ * events to the ordered stream in order.
  *
+ * Only each event's sort key is decoded; the record is held as received and
+ * forwarded byte for byte when it is already in the output codec. Duplicates
+ * are dropped (DedupIndex). Events are held until the event-time watermark
+ * passes them, with a window sized from the shard's measured disorder
+ * (ReorderWindow); an event that arrives behind the watermark is late and
+ * goes to the late log, or stream, instead.
+ *
+ * The ordering scope decides what is ordered:
+ * SHARD keeps one SortBuffer per shard, and with releaseOnSequence lets an
+ * event out as soon as it continues its machine's sequence (SequenceGapRelease);
+ * MACHINE keeps a buffer and watermark per machine (MachineSortBuffers);
+ * GLOBAL hands each release to a GlobalOrderStage shared by the worker's
+ * processors, which merges the shards and does the putting.
+ *
+ * Otherwise released events are put through a KeyOrderedPutSender, which
+ * keeps each machine's order through partial failures, and the shard is only
+ * checkpointed past events the ordered stream has accepted. A put that fails
+ * keeps its events to be put again first. While a shard works through a
+ * backlog (CatchUpTracker) releases are put in large pipelined runs instead
+ * of one put per poll. On TERMINATE everything still held is put before the
+ * shard end is checkpointed; on ZOMBIE it is left for the next owner.
  */
 public class UnorderedRecordProcessor implements IRecordProcessor {
 
     private static final Log LOG = LogFactory.getLog(UnorderedRecordProcessor.class);
     private String kinesisShardId;
-    private AmazonKinesis kinesisClientToOrdered;
-    private AmazonKinesis kinesisClientToUnordered;
+    private final AmazonKinesis kinesisClientToOrdered;
+    private KeyOrderedPutSender orderedSender;
+    private final GlobalOrderStage globalOrder;
+    private final ArrayDeque<GlobalOrderStage.Offer> offers = new ArrayDeque<GlobalOrderStage.Offer>();
+    private final CalAmpEventCodec codec;
+    private final OrderingScope scope;
+    private final SortBuffer sortBuffer = new SortBuffer(CalAmpParameters.sortBufferMaxBytes,
+    		new File(CalAmpParameters.spillDirectory), CalAmpParameters.spillSegmentBytes);
+    private boolean spillFailureLogged;
+    private CheckpointScheduler checkpoints;
+    private final MachineSortBuffers machineBuffers;
+    private final SequenceGapRelease gapRelease;
+    private final DedupIndex dedup = new DedupIndex(CalAmpParameters.dedupRetentionMillis, CalAmpParameters.dedupMaxEntries);
+    private final WatermarkTracker watermark = new WatermarkTracker(CalAmpParameters.allowedLatenessMillis, CalAmpParameters.watermarkIdleMillis);
+    private final ReorderWindow reorderWindow = new ReorderWindow(CalAmpParameters.disorderQuantile,
+    		CalAmpParameters.minWindowMillis, CalAmpParameters.maxWindowMillis, CalAmpParameters.allowedLatenessMillis,
+    		CalAmpParameters.windowHalfLifeMillis);
+    private final CatchUpTracker catchUp = new CatchUpTracker(CalAmpParameters.catchUpEnterPolls);
+    /** Released events not yet put, or whose put failed, in release order; they go out ahead of anything released later. */
+    private final List<HeldRecord> pendingRelease = new ArrayList<HeldRecord>();
+    private String catchUpRunCheckpoint;
+    private PutCompletion runInFlight;
+    private List<HeldRecord> runInFlightEvents;
+    private String runInFlightCheckpoint;
 
     public UnorderedRecordProcessor() {
+    	this(CalAmpParameters.wireCodec);
+    }
+
+    /**
+     * @param codec format used when putting to the ordered (and late) stream
+     */
+    public UnorderedRecordProcessor(CalAmpEventCodec codec) {
+    	this(orderedStreamClient(), codec);
+    }
+
+    /**
+     * @param kinesisClientToOrdered client used to put to the ordered (and late) stream
+     * @param codec format used when putting to the ordered (and late) stream
+     */
+    public UnorderedRecordProcessor(AmazonKinesis kinesisClientToOrdered, CalAmpEventCodec codec) {
+    	this(kinesisClientToOrdered, codec, null);
+    }
+
+    /**
+     * @param globalOrder stage shared by all processors of the worker that merges their
+     * output into one total order, or null to order each shard on its own
+     */
+    public UnorderedRecordProcessor(AmazonKinesis kinesisClientToOrdered, CalAmpEventCodec codec, GlobalOrderStage globalOrder) {
+    	this(kinesisClientToOrdered, codec, globalOrder != null ? OrderingScope.GLOBAL
+    			: CalAmpParameters.orderingScope == OrderingScope.MACHINE ? OrderingScope.MACHINE : OrderingScope.SHARD,
+    			globalOrder, CalAmpParameters.releaseOnSequence);
+    }
+
+    /**
+     * @param scope what the ordered stream is ordered over; GLOBAL needs the stage
+     * @param globalOrder stage shared by all processors of the worker, used in GLOBAL scope
+     * @param releaseOnSequence release events as soon as they continue their machine's
+     * sequence numbers (see SequenceGapRelease); SHARD scope only
+     */
+    public UnorderedRecordProcessor(AmazonKinesis kinesisClientToOrdered, CalAmpEventCodec codec, OrderingScope scope,
+    		GlobalOrderStage globalOrder, boolean releaseOnSequence) {
+    	if (scope == OrderingScope.GLOBAL && globalOrder == null){
+    		throw new IllegalArgumentException("GLOBAL ordering scope needs a GlobalOrderStage");
+    	}
+    	this.codec = codec;
+    	this.kinesisClientToOrdered = kinesisClientToOrdered;
+    	this.scope = scope;
+    	this.globalOrder = scope == OrderingScope.GLOBAL ? globalOrder : null;
+    	this.machineBuffers = scope == OrderingScope.MACHINE
+    			? new MachineSortBuffers(CalAmpParameters.allowedLatenessMillis, CalAmpParameters.minWindowMillis,
+    					CalAmpParameters.maxWindowMillis, CalAmpParameters.watermarkIdleMillis) : null;
+    	// The merge needs each shard's output in event time order, which sequence release gives up.
+    	this.gapRelease = releaseOnSequence && scope == OrderingScope.SHARD
+    			? new SequenceGapRelease(sortBuffer, CalAmpParameters.machineSequenceModulus,
+    					Math.max(CalAmpParameters.maxWindowMillis, CalAmpParameters.allowedLatenessMillis)) : null;
 		try {
-			Region region = RegionUtils.getRegion(CalAmpParameters.regionName);
-			AWSCredentials credentials = CredentialUtils.getCredentialsProvider().getCredentials();
-			ClientConfiguration ccuord = ConfigurationUtils.getClientConfigWithUserAgent(true);
-			ClientConfiguration ccord = ConfigurationUtils.getClientConfigWithUserAgent(false);
-			kinesisClientToUnordered = new AmazonKinesisClient(credentials, ccuord);
-			kinesisClientToOrdered = new AmazonKinesisClient(credentials, ccord);
-			kinesisClientToUnordered.setRegion(region);
-			kinesisClientToOrdered.setRegion(region);
-			Utils.validateStream(kinesisClientToUnordered, CalAmpParameters.unorderdStreamName);
 			Utils.validateStream(kinesisClientToOrdered, CalAmpParameters.orderedStreamName);
+			if (this.globalOrder == null){
+				// Keeps the sorted order per partition key through partial put failures.
+				orderedSender = new KeyOrderedPutSender(kinesisClientToOrdered, CalAmpParameters.orderedStreamName);
+			}
+			if (CalAmpParameters.lateEventsToStream){
+				Utils.validateStream(kinesisClientToOrdered, CalAmpParameters.lateStreamName);
+			}
 	        Utils.initLazyLog(CalAmpParameters.bufferLogName, "Sort Buffer Start");
+	        Utils.initLazyLog(CalAmpParameters.lateLogName, "Late Events Start");
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+    static AmazonKinesis orderedStreamClient() {
+		try {
+			Region region = RegionUtils.getRegion(CalAmpParameters.regionName);
+			AWSCredentials credentials = CredentialUtils.getCredentialsProvider().getCredentials();
+			ClientConfiguration ccord = ConfigurationUtils.getClientConfigWithUserAgent(false);
+			AmazonKinesis kinesisClient = new AmazonKinesisClient(credentials, ccord);
+			kinesisClient.setRegion(region);
+			return kinesisClient;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+    }
+
 	/**
      * {@inheritDoc}
      */
     @Override
     public void initialize(String shardId) {
-        LOG.info("Initializing record processor for shard: " + shardId);
+        LOG.info("Initializing record processor for shard: " + shardId + ", ordering scope " + scope);
         this.kinesisShardId = shardId;
+        this.checkpoints = new CheckpointScheduler("sort." + shardId);
+        if (globalOrder != null) {
+        	globalOrder.register(shardId, System.currentTimeMillis());
+        }
     }
 
     /**
@@ -86,48 +213,316 @@ public class UnorderedRecordProcessor implements IRecordProcessor {
      */
     @Override
     public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
-		System.out.println("Process Unordered Records #" + records.size());
-		List<CalAmpEvent> eventsOldEnough = Collections.synchronizedList( new ArrayList<CalAmpEvent>() );
-		List<CalAmpEvent> eventsTooYoung = Collections.synchronizedList( new ArrayList<CalAmpEvent>() );
+		boolean filledLimit = RecordAggregator.kinesisRecords(records) >= CalAmpParameters.maxRecPerPoll;
+		// The KCL de-aggregates already; other callers may pass aggregated records.
+		records = RecordAggregator.deaggregate(records);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Process Unordered Records #" + records.size() + " Held #" + held());
+		}
+		long now = System.currentTimeMillis();
+		boolean catchingUp = observeCatchUp(records.size(), filledLimit, now);
+		List<HeldRecord> eventsLate = new ArrayList<HeldRecord>();
+		List<HeldRecord> eventsInSequence = new ArrayList<HeldRecord>();
+		int duplicates = 0;
 		for (Record r : records){    
-			Utils.lazyLog(r, CalAmpParameters.unorderdStreamName, CalAmpParameters.bufferLogName);
-	        // The bytes could be null if there is an issue with the JSON serialization by the Jackson JSON library.
-	        byte[] bytes = r.getData().array();
-			if (bytes != null ) {
-		        CalAmpEvent e = CalAmpEvent.fromJsonAsBytes( r.getData().array() );
-				if (e != null ) {
-			        if ( !(eventsOldEnough.contains(e)) ){
-			        	if ( CalAmpEventFilter.oldEnough(e) ){
-			        		eventsOldEnough.add(e);
-			        	}
-			        	else if ( !(eventsTooYoung.contains(e)) ){
-			        		eventsTooYoung.add(e);
-			        	}
-			        }
-				}
+	        // Only the sort key is read here; the payload is forwarded as received.
+	        CalAmpEventKey key = CalAmpEventKey.read( r.getData() );
+			Utils.lazyLog(r, kinesisShardId, key, CalAmpParameters.unorderdStreamName, CalAmpParameters.bufferLogName);
+			if (key != null ) {
+		        if ( !dedup.firstSighting(key, r.getData(), now) ){
+		        	// Already seen (redelivery or double put), whether still held or already released.
+		        	duplicates++;
+		        	skip(r.getSequenceNumber());
+		        	continue;
+		        }
+				reorderWindow.record(key.getTimeStamp());
+		        if ( isLate(key) ){
+		        	// Events behind the watermark can no longer be placed in order.
+		        	eventsLate.add(new HeldRecord(key, r));
+		        	skip(r.getSequenceNumber());
+		        }
+		        else if (machineBuffers != null){
+		        	machineBuffers.add(key, r, now);
+		        }
 		        else{
-		        	LOG.warn("Skipping record. Unable to parse record into CalAmpEvent 2. Partition Key: " + r.getPartitionKey() + " Event: " + e);
+		        	HeldRecord held = sortBuffer.add(key, r);
+		        	watermark.observe(watermarkSource(r), key.getTimeStamp(), now);
+		        	if (gapRelease != null){
+		        		// Goes out now if it continues its machine's sequence.
+		        		gapRelease.arrived(held, eventsInSequence, now);
+		        	}
 		        }
 			}
 			else{
-				LOG.warn("Skipping record. Unable to parse record into CalAmpEvent 1. Partition Key: " + r.getPartitionKey());
+				LOG.warn("Skipping record. Unable to parse record into CalAmpEvent. Partition Key: " + r.getPartitionKey());
+				skip(r.getSequenceNumber());
 			}
 		}
 		
-		Collections.sort( eventsOldEnough, new CalAmpEventPriorityComparator() );
-		Collections.sort( eventsTooYoung, new CalAmpEventPriorityComparator() );
-		
-		for ( CalAmpEvent cae : eventsTooYoung ){
-			LOG.info("Event too young : " + cae);
-			
+		dedup.expire(now);
+		if (gapRelease != null){
+			gapRelease.expire(now);
+		}
+		if (CalAmpParameters.adaptiveWindow){
+			long window = reorderWindow.update(now);
+			watermark.setAllowedLatenessMillis( window );
+			if (machineBuffers != null){
+				machineBuffers.setAllowedLatenessMillis( window );
+			}
 		}
-		for ( CalAmpEvent cae : eventsOldEnough ){
-			LOG.info("Event old enough: " + cae);
+		long w = watermark.advance(now);
+		List<HeldRecord> eventsReleased = machineBuffers != null ? machineBuffers.releaseDue(now) : sortBuffer.releaseThrough( w );
+		int inSequence = eventsInSequence.size();
+		if (gapRelease != null){
+			eventsInSequence.addAll( gapRelease.timedOut(eventsReleased) );
+			eventsReleased = eventsInSequence;
 		}
 		
-		Utils.putByParts( eventsTooYoung, CalAmpParameters.unorderdStreamName, kinesisClientToUnordered, CalAmpParameters.bufferLogName);
-		Utils.putByParts( eventsOldEnough, CalAmpParameters.orderedStreamName, kinesisClientToOrdered, CalAmpParameters.bufferLogName);
-		checkpoint(checkpointer);  
+		if (globalOrder != null){
+			offers.addLast( globalOrder.offer(kinesisShardId, eventsReleased, w, now, sortBuffer.getCheckpointSequenceNumber(), eventsLate) );
+			putLate( eventsLate );
+			globalOrder.drain(now);
+			// Only checkpoint past offers whose events the ordered stream has accepted.
+			checkpoints.offer(checkpointer, doneOffersCheckpoint(), records.size(), System.currentTimeMillis());
+		}
+		else if (catchingUp){
+			pendingRelease.addAll( eventsReleased );
+			catchUpRunCheckpoint = releasedCheckpoint();
+			putLate( eventsLate );
+			String accepted = pendingRelease.size() >= CalAmpParameters.catchUpEmitEvents ? sendCatchUpRun()
+					: runInFlight != null && runInFlight.isDone() ? awaitRunInFlight() : null;
+			checkpoints.offer(checkpointer, accepted, records.size(), System.currentTimeMillis());
+		}
+		else{
+			// A catch-up run still in flight settles first; what it, catch-up or a failed put left pending goes out ahead.
+			String acceptedRun = awaitRunInFlight();
+			pendingRelease.addAll( eventsReleased );
+			List<HeldRecord> batch = takePending();
+			PutCompletion released = orderedSender.send( RecordAggregator.aggregate(toEntries(batch, CalAmpParameters.orderedStreamName, CalAmpParameters.bufferLogName)) );
+			putLate( eventsLate );
+			// Only checkpoint once the ordered stream has accepted everything released.
+			String accepted = accepted(released, batch) ? releasedCheckpoint() : acceptedRun;
+			checkpoints.offer(checkpointer, accepted, records.size(), System.currentTimeMillis());
+		}
+		publishMetrics( eventsLate.size(), duplicates, inSequence );
+    }
+
+    /**
+     * Notes the poll and logs the switches between catch-up and low latency mode.
+     *
+     * @return true if the shard is catching up
+     */
+    private boolean observeCatchUp(int events, boolean filledLimit, long now) {
+        boolean was = catchUp.isCatchingUp();
+        boolean catchingUp = catchUp.observe(events, filledLimit, now);
+        if (catchingUp && !was) {
+        	LOG.info("Shard " + kinesisShardId + " is reading full batches, catching up.");
+        }
+        else if (was && !catchingUp) {
+        	LOG.info("Shard " + kinesisShardId + " caught up after " + catchUp.getCatchUpMillis(now) + " ms at "
+        			+ catchUp.getEventsPerSecond(now) + " events/s.");
+        }
+        return catchingUp;
+    }
+
+    /**
+     * Starts putting the gathered run and waits for the run before it. If that
+     * one failed, the run just sent went out behind it, so both are put again,
+     * in order.
+     *
+     * @return the checkpoint of the run before, now accepted, or null if there was none or it failed
+     */
+    private String sendCatchUpRun() {
+        List<HeldRecord> run = takePending();
+        PutCompletion sent = orderedSender.send( RecordAggregator.aggregate(toEntries(run, CalAmpParameters.orderedStreamName, CalAmpParameters.bufferLogName)) );
+        PutCompletion previous = runInFlight;
+        List<HeldRecord> previousEvents = runInFlightEvents;
+        String previousCheckpoint = runInFlightCheckpoint;
+        runInFlight = sent;
+        runInFlightEvents = run;
+        runInFlightCheckpoint = catchUpRunCheckpoint;
+        if (previous == null) {
+        	return null;
+        }
+        if (accepted(previous, previousEvents)) {
+        	return previousCheckpoint;
+        }
+        runInFlight = null;
+        try {
+        	sent.await();
+        } catch (AmazonClientException e) {
+        	// Put again below either way.
+        }
+        pendingRelease.addAll(previousEvents.size(), run);
+        return null;
+    }
+
+    /**
+     * @return the checkpoint of the run in flight once it has been accepted, or
+     * null if none was in flight or it failed
+     */
+    private String awaitRunInFlight() {
+        if (runInFlight == null) {
+        	return null;
+        }
+        PutCompletion run = runInFlight;
+        runInFlight = null;
+        return accepted(run, runInFlightEvents) ? runInFlightCheckpoint : null;
+    }
+
+    /**
+     * Waits for a put of released events. If it failed the events go back to
+     * the front of pendingRelease to be put again, and the caller must not
+     * checkpoint past them: the sort buffer no longer holds them, so its
+     * checkpoint has already moved on. Entries of the batch that were accepted
+     * are put again too, so the ordered stream may see them twice.
+     *
+     * @return true if the ordered stream accepted every event of the batch
+     */
+    private boolean accepted(PutCompletion put, List<HeldRecord> batch) {
+        try {
+        	put.await();
+        	return true;
+        } catch (AmazonClientException e) {
+        	LOG.error("Put of " + batch.size() + " released events of shard " + kinesisShardId
+        			+ " failed, holding them to put again and not checkpointing past them.", e);
+        	pendingRelease.addAll(0, batch);
+        	return false;
+        }
+    }
+
+    private List<HeldRecord> takePending() {
+        List<HeldRecord> batch = new ArrayList<HeldRecord>(pendingRelease);
+        pendingRelease.clear();
+        return batch;
+    }
+
+    private String releasedCheckpoint() {
+        return machineBuffers != null ? machineBuffers.getCheckpointSequenceNumber() : sortBuffer.getCheckpointSequenceNumber();
+    }
+
+    /**
+     * An event is late if its watermark (the shard's, or in MACHINE scope its
+     * machine's) has passed it, or its machine's sequence has moved past it.
+     */
+    private boolean isLate(CalAmpEventKey key) {
+        if (machineBuffers != null) {
+        	return machineBuffers.isLate(key);
+        }
+        return watermark.isLate(key.getTimeStamp()) || (gapRelease != null && gapRelease.isBehind(key));
+    }
+
+    private void skip(String recordSequenceNumber) {
+        if (machineBuffers != null) {
+        	machineBuffers.skip(recordSequenceNumber);
+        }
+        else {
+        	sortBuffer.skip(recordSequenceNumber);
+        }
+    }
+
+    private int held() {
+        return (machineBuffers != null ? machineBuffers.size() : sortBuffer.size()) + pendingRelease.size();
+    }
+
+    /**
+     * Builds put entries for released records. A record already in the output
+     * codec is forwarded byte for byte; only a record in the other format is
+     * decoded and re-encoded.
+     */
+    private List<PutRecordsRequestEntry> toEntries(List<HeldRecord> held, String streamName, String logPath) {
+        List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>(held.size());
+        for (HeldRecord h : held) {
+            PutRecordsRequestEntry prre = toEntry(h, codec);
+            Utils.lazyLog(prre, h.getKey(), streamName, logPath);
+            entries.add(prre);
+        }
+        return entries;
+    }
+
+    static PutRecordsRequestEntry toEntry(HeldRecord h, CalAmpEventCodec codec) {
+        Record r = h.getRecord();
+        if (CalAmpEventCodec.isBinary(r.getData()) == (codec == CalAmpEventCodec.BINARY)) {
+            return Utils.forwardEntry(r);
+        }
+        CalAmpEvent e = CalAmpEventCodec.decode( Utils.bytesOf(r.getData()) );
+        return new PutRecordsRequestEntry().withData( ByteBuffer.wrap(codec.encode(e)) ).withPartitionKey( r.getPartitionKey() );
+    }
+
+    /**
+     * @return the checkpoint of the last offer that, like every offer before it,
+     * is done, or null if the oldest offer is still pending
+     */
+    private String doneOffersCheckpoint() {
+        String sequenceNumber = null;
+        while (!offers.isEmpty() && globalOrder.isDone(offers.peekFirst())) {
+            String cp = offers.pollFirst().getCheckpointSequenceNumber();
+            if (cp != null) {
+                sequenceNumber = cp;
+            }
+        }
+        return sequenceNumber;
+    }
+
+    private void publishMetrics(int lateCount, int duplicateCount, int inSequenceCount) {
+        String prefix = "sort." + kinesisShardId + ".";
+        Metrics.set(prefix + "windowMillis", watermark.getAllowedLatenessMillis());
+        Metrics.set(prefix + "disorderP50Millis", reorderWindow.getDisorderMillis(0.5));
+        Metrics.set(prefix + "disorderP99Millis", reorderWindow.getDisorderMillis(0.99));
+        Metrics.set(prefix + "disorderP999Millis", reorderWindow.getDisorderMillis(0.999));
+        Metrics.set(prefix + "disorderMaxMillis", reorderWindow.getMaxDisorderMillis());
+        Metrics.set(prefix + "heldEvents", held());
+        if (machineBuffers != null) {
+        	Metrics.set(prefix + "machines", machineBuffers.machines());
+        	Metrics.set(prefix + "holdingMachines", machineBuffers.activeMachines());
+        }
+        else {
+        	Metrics.set(prefix + "memoryBytes", sortBuffer.getMemoryBytes());
+        	Metrics.set(prefix + "spilledBytes", sortBuffer.getSpilledBytes());
+        	Metrics.set(prefix + "spilledEvents", sortBuffer.getSpilledEvents());
+        	if (sortBuffer.getSpillFailure() != null && !spillFailureLogged) {
+        		LOG.error("Spilling the sort buffer of shard " + kinesisShardId + " failed, holding everything on the heap.",
+        				sortBuffer.getSpillFailure());
+        		spillFailureLogged = true;
+        	}
+        }
+        long now = System.currentTimeMillis();
+        Metrics.set(prefix + "catchingUp", catchUp.isCatchingUp() ? 1 : 0);
+        Metrics.set(prefix + "catchUpMillis", catchUp.getCatchUpMillis(now));
+        Metrics.set(prefix + "catchUpEventsPerSecond", catchUp.getEventsPerSecond(now));
+        Metrics.set(prefix + "catchUpEpisodes", catchUp.getEpisodes());
+        Metrics.add(prefix + "lateEvents", lateCount);
+        Metrics.add(prefix + "duplicateEvents", duplicateCount);
+        Metrics.set(prefix + "dedupEntries", dedup.size());
+        if (gapRelease != null) {
+        	Metrics.add(prefix + "sequenceReleasedEvents", inSequenceCount);
+        	Metrics.set(prefix + "gapWaitingEvents", gapRelease.waiting());
+        	Metrics.set(prefix + "gapMachines", gapRelease.machines());
+        }
+        Metrics.reportIfDue();
+    }
+
+    private String watermarkSource(Record r) {
+        return CalAmpParameters.watermarkPerPartitionKey ? r.getPartitionKey() : kinesisShardId;
+    }
+
+    /**
+     * Side output for events that arrived after the watermark passed them.
+     */
+    private void putLate(List<HeldRecord> eventsLate) {
+        for ( HeldRecord h : eventsLate ){
+            LOG.warn("Event behind watermark " + watermark.getWatermark() + ": " + h.getKey());
+        }
+        if (CalAmpParameters.lateEventsToStream){
+            Utils.putRecordsByParts( toEntries(eventsLate, CalAmpParameters.lateStreamName, CalAmpParameters.lateLogName),
+            		CalAmpParameters.lateStreamName, kinesisClientToOrdered);
+        }
+        else{
+            for ( HeldRecord h : eventsLate ){
+                LazyLogger.log(CalAmpParameters.lateLogName, true, "LATE [" + watermark.getWatermark() + "] Seq-ID: "
+                		+ h.getRecord().getSequenceNumber() + " Part-K: " + h.getRecord().getPartitionKey() + " " + h.getKey());
+            }
+        }
     }
 
     /**
@@ -137,24 +532,67 @@ public class UnorderedRecordProcessor implements IRecordProcessor {
     public void shutdown(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
         LOG.info("Shutting down record processor for shard: " + kinesisShardId);
         // Important to checkpoint after reaching end of shard, so we can start processing data from child shards.
+        if (globalOrder != null) {
+        	try {
+        		shutdownGlobal(checkpointer, reason);
+        	} finally {
+        		sortBuffer.close();
+        	}
+        	return;
+        }
         if (reason == ShutdownReason.TERMINATE) {
-            checkpoint(checkpointer);
+        	// Nothing more will arrive on this shard, so whatever is still held has to go out now.
+        	List<HeldRecord> rest = machineBuffers != null ? machineBuffers.releaseAll() : sortBuffer.releaseAll();
+        	if (gapRelease != null) {
+        		rest = gapRelease.timedOut(rest);
+        	}
+        	awaitRunInFlight();
+        	pendingRelease.addAll( rest );
+        	List<HeldRecord> batch = takePending();
+        	if (accepted(orderedSender.send( RecordAggregator.aggregate(toEntries(batch, CalAmpParameters.orderedStreamName, CalAmpParameters.bufferLogName)) ), batch)) {
+        		checkpoints.flush(checkpointer, null);
+        	}
+        	else {
+        		LOG.error("Released events of shard " + kinesisShardId + " could not be put, not checkpointing the shard end.");
+        	}
         }
+        sortBuffer.close();
+        orderedSender.shutdown();
+        // On ZOMBIE the lease is gone: held events are dropped here and re-read by the new owner from the last checkpoint.
     }
 
-    private void checkpoint(IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Checkpointing shard " + kinesisShardId);
+    /**
+     * On TERMINATE hands everything still held to the merge, which no longer
+     * waits for this shard, and waits until it has all been put. On ZOMBIE
+     * drops this shard's events from the merge.
+     */
+    private void shutdownGlobal(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
+        if (reason != ShutdownReason.TERMINATE) {
+        	globalOrder.remove(kinesisShardId);
+        	return;
+        }
+        List<HeldRecord> eventsLate = new ArrayList<HeldRecord>();
+        long now = System.currentTimeMillis();
+        offers.addLast( globalOrder.offer(kinesisShardId, sortBuffer.releaseAll(), Long.MAX_VALUE, now, null, eventsLate) );
+        globalOrder.close(kinesisShardId);
+        putLate( eventsLate );
         try {
-            checkpointer.checkpoint();
-        } catch (ShutdownException se) {
-            // Ignore checkpoint if the processor instance has been shutdown (fail over).
-            LOG.info("Caught shutdown exception, skipping checkpoint.", se);
-        } catch (ThrottlingException e) {
-            // Skip checkpoint when throttled. In practice, consider a backoff and retry policy.
-            LOG.error("Caught throttling exception, skipping checkpoint.", e);
-        } catch (InvalidStateException e) {
-            // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
-            LOG.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
+        	while (true) {
+        		globalOrder.drain(System.currentTimeMillis());
+        		doneOffersCheckpoint();
+        		if (offers.isEmpty()) {
+        			break;
+        		}
+        		if (globalOrder.isDropped(offers.peekFirst())) {
+        			LOG.error("Globally ordered puts failed for shard " + kinesisShardId + ", not checkpointing the shard end.");
+        			return;
+        		}
+        		Thread.sleep(CalAmpParameters.pollDelayMillis);
+        	}
+        } catch (InterruptedException e) {
+        	Thread.currentThread().interrupt();
+        	return;
         }
+        checkpoints.flush(checkpointer, null);
     }
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.util.ArrayDeque;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+
+/**
+ * The records of a shard in arrival order, each marked once its event has
+ * left the buffer (or it had nothing to hold), giving the highest Kinesis
+ * sequence number that is safe to checkpoint: every record at or below it
+ * has been released or skipped.
+ *
+ * The events of an aggregated record share its sequence number, and a shard
+ * resumes after the checkpointed one, so the checkpoint only moves to a
+ * sequence number once every event that has it has left. All of them arrive
+ * in one poll, so advance is called only once a poll's records are all in.
+ */
+class Arrivals {
+
+    private final ArrayDeque<BufferedEvent> queue = new ArrayDeque<BufferedEvent>();
+    private String checkpointSequenceNumber;
+
+    BufferedEvent held(CalAmpEventKey key, Record record) {
+        BufferedEvent be = new BufferedEvent(key, record, record.getSequenceNumber());
+        queue.addLast(be);
+        return be;
+    }
+
+    void skipped(String recordSequenceNumber) {
+        BufferedEvent be = new BufferedEvent(null, null, recordSequenceNumber);
+        be.released = true;
+        queue.addLast(be);
+    }
+
+    /**
+     * Moves the checkpoint over the released records at the front.
+     */
+    void advance() {
+        while (!queue.isEmpty() && queue.peekFirst().released) {
+            String sequenceNumber = queue.pollFirst().recordSequenceNumber;
+            BufferedEvent next = queue.peekFirst();
+            if (next == null || sequenceNumber == null || !sequenceNumber.equals(next.recordSequenceNumber)) {
+                checkpointSequenceNumber = sequenceNumber;
+            }
+        }
+    }
+
+    String getCheckpointSequenceNumber() {
+        return checkpointSequenceNumber;
+    }
+}
@@ -0,0 +1,640 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.ConfigurationUtils;
+import com.calamp.services.kinesis.events.utils.CredentialUtils;
+import com.calamp.services.kinesis.events.utils.KeyOrderedPutSender;
+import com.calamp.services.kinesis.events.utils.Metrics;
+import com.calamp.services.kinesis.events.utils.PutCompletion;
+import com.calamp.services.kinesis.events.utils.RecordAggregator;
+import com.calamp.services.kinesis.events.utils.Utils;
+import com.calamp.services.kinesis.events.writer.EventFileFormat;
+import com.calamp.services.kinesis.events.writer.EventFileReader;
+import com.calamp.services.kinesis.events.writer.EventFileWriter;
+
+/**
+ * Sorts event files of any size offline into CalAmpEventPriorityComparator
+ * order, for backfills that would be slow and costly to push through Kinesis
+ * and the two phase loop.
+ *
+ * Run generation: one thread reads the input files with EventFileReader
+ * (JSON lines or framed, as CalAmpEventWriter reads them) and cuts the still
+ * encoded events into chunks of memoryBytes / (threads + 1). A pool of
+ * threads reads each chunk's keys straight from the bytes (CalAmpEventKey),
+ * radix sorts them (KeyRadixSort), re-encodes the events whose codec is not
+ * the output's, and writes the chunk to the temporary directory as a sorted
+ * run. At most threads chunks are out at once, so the heap holds about
+ * memoryBytes of events.
+ *
+ * Merge: runs are merged fanIn at a time, one buffered cursor per run in a
+ * heap, until a single pass can write the output. A run record carries its
+ * packed key, so merging compares longs and copies bytes and never decodes
+ * an event. The output is an event file (FRAMED for BINARY, JSON_LINES for
+ * JSON) or a stream, put in order through a KeyOrderedPutSender and
+ * aggregated as aggregateRecords says. In global order every event goes
+ * under globalOrderPartitionKey, so the stream keeps the total order; else
+ * the partition key is the machine id, as the sorter puts them. Equal keys
+ * keep their input order.
+ *
+ * Events whose key or body cannot be read are skipped and counted. Progress
+ * is reported per phase in MB of input per second.
+ *
+ * Usage: BackfillSorter <output file, or stream:name> <JSON|BINARY> <memory MB> <threads> <input file>...
+ */
+public class BackfillSorter {
+
+    private static final Log LOG = LogFactory.getLog(BackfillSorter.class);
+    /** Heap an event costs on top of its bytes: the array header, its key words and its index. */
+    private static final int EVENT_OVERHEAD = 16 + 3 * 8 + 4 + 8;
+    private static final int RUN_WRITE_BUFFER_BYTES = 1024 * 1024;
+    private static final int MIN_RUN_READ_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_RUN_READ_BUFFER_BYTES = 8 * 1024 * 1024;
+
+    private final CalAmpEventCodec codec;
+    private final long memoryBytes;
+    private final int threads;
+    private int fanIn = CalAmpParameters.backfillMergeFanIn;
+    private File tempDirectory = new File(CalAmpParameters.spillDirectory);
+    private boolean globalOrder = CalAmpParameters.orderingScope == OrderingScope.GLOBAL;
+    private PrintStream report = System.out;
+
+    private final AtomicLong skipped = new AtomicLong();
+    private long inputBytes;
+    private int mergePasses;
+
+    /**
+     * @param codec encoding of the output events
+     * @param memoryBytes heap for events during run generation
+     * @param threads run generating threads
+     */
+    public BackfillSorter(CalAmpEventCodec codec, long memoryBytes, int threads) {
+        this.codec = codec;
+        this.memoryBytes = memoryBytes;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param fanIn most runs merged at once, at least 2; backfillMergeFanIn by default
+     */
+    public void setFanIn(int fanIn) {
+        this.fanIn = Math.max(2, fanIn);
+    }
+
+    /**
+     * Where runs go; spillDirectory by default.
+     */
+    public void setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Puts to a stream under a single partition key, keeping the total order.
+     * On by default with the GLOBAL ordering scope.
+     */
+    public void setGlobalOrder(boolean globalOrder) {
+        this.globalOrder = globalOrder;
+    }
+
+    /**
+     * @param report where the per phase lines go, or null for none
+     */
+    public void setReport(PrintStream report) {
+        this.report = report;
+    }
+
+    /**
+     * Sorts the events of the inputs into one event file.
+     *
+     * @return events written
+     */
+    public long sortToFile(List<File> inputs, File output) throws IOException, InterruptedException {
+        EventFileWriter writer = new EventFileWriter(output,
+                codec == CalAmpEventCodec.BINARY ? EventFileFormat.FRAMED : EventFileFormat.JSON_LINES);
+        try {
+            return sort(inputs, new FileSink(writer));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Sorts the events of the inputs and puts them to the stream in order.
+     *
+     * @return events put
+     */
+    public long sortToStream(List<File> inputs, AmazonKinesis kc, String streamName)
+            throws IOException, InterruptedException {
+        KeyOrderedPutSender sender = new KeyOrderedPutSender(kc, streamName);
+        try {
+            return sort(inputs, new StreamSink(sender));
+        } finally {
+            sender.shutdown();
+        }
+    }
+
+    /**
+     * @return events that could not be read, over every sort so far
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    private long sort(List<File> inputs, Sink sink) throws IOException, InterruptedException {
+        inputBytes = 0;
+        mergePasses = 0;
+        long start = System.currentTimeMillis();
+        List<File> runs = makeRuns(inputs);
+        long runsDone = System.currentTimeMillis();
+        phase("runs", runsDone - start, runs.size() + " runs on " + threads + " threads");
+        try {
+            while (runs.size() > fanIn) {
+                runs = mergePass(runs);
+            }
+            long n = merge(runs, sink);
+            sink.finish();
+            long end = System.currentTimeMillis();
+            phase("merge", end - runsDone, (mergePasses + 1) + " passes");
+            phase("total", end - start, n + " events, " + skipped.get() + " skipped");
+            return n;
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+    }
+
+    private void phase(String name, long millis, String detail) {
+        double mbPerSecond = inputBytes / 1e6 / Math.max(0.001, millis / 1000.0);
+        Metrics.set("backfill." + name + "MBPerSecond", (long) mbPerSecond);
+        if (report != null) {
+            report.println(String.format("backfill %-6s %8.2fs  %8.1f MB/s of %.1f MB input  (%s)", name, millis / 1000.0,
+                    mbPerSecond, inputBytes / 1e6, detail));
+        }
+    }
+
+    /**
+     * Reads the inputs into chunks and has the pool sort each into a run.
+     *
+     * @return the runs, in input order
+     */
+    private List<File> makeRuns(List<File> inputs) throws IOException, InterruptedException {
+        long chunkBytes = Math.max(1024 * 1024, memoryBytes / (threads + 1));
+        final Semaphore slots = new Semaphore(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "backfill-run-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        List<Future<File>> pending = new ArrayList<Future<File>>();
+        boolean done = false;
+        try {
+            List<byte[]> chunk = new ArrayList<byte[]>();
+            long bytes = 0;
+            for (File input : inputs) {
+                EventFileReader reader = new EventFileReader(input);
+                try {
+                    byte[] b;
+                    while ((b = reader.nextBytes()) != null) {
+                        chunk.add(b);
+                        bytes += b.length + EVENT_OVERHEAD;
+                        if (bytes >= chunkBytes) {
+                            pending.add(submit(pool, slots, chunk));
+                            chunk = new ArrayList<byte[]>();
+                            bytes = 0;
+                        }
+                    }
+                    inputBytes += reader.getSize();
+                } finally {
+                    reader.close();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                pending.add(submit(pool, slots, chunk));
+            }
+            List<File> runs = new ArrayList<File>(pending.size());
+            for (Future<File> f : pending) {
+                runs.add(result(f));
+            }
+            done = true;
+            return runs;
+        } finally {
+            pool.shutdown();
+            if (!done) {
+                pool.shutdownNow();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+                for (Future<File> f : pending) {
+                    if (f.isDone() && !f.isCancelled()) {
+                        try {
+                            f.get().delete();
+                        } catch (ExecutionException e) {
+                            // That run was never written.
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private Future<File> submit(ExecutorService pool, final Semaphore slots, final List<byte[]> chunk)
+            throws InterruptedException {
+        slots.acquire();
+        try {
+            return pool.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    try {
+                        return writeRun(chunk);
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    private static File result(Future<File> f) throws IOException, InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Run generation failed", e.getCause());
+        }
+    }
+
+    /**
+     * Sorts a chunk by key and writes it as a run: per event its time,
+     * sequence and tie words (see KeyRadixSort), then length(4) and the event
+     * in the output codec.
+     */
+    private File writeRun(List<byte[]> chunk) throws IOException {
+        int n = chunk.size();
+        long[] time = new long[n];
+        long[] seq = new long[n];
+        long[] tie = new long[n];
+        int[] order = new int[n];
+        byte[][] data = new byte[n][];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            byte[] b = chunk.get(i);
+            CalAmpEventKey k = CalAmpEventKey.read(ByteBuffer.wrap(b));
+            if (k == null) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            time[m] = k.getTimeStamp();
+            seq[m] = k.getSequenceNumber();
+            tie[m] = KeyRadixSort.tie(k.getIsAnAck(), k.getMachineId());
+            data[m] = b;
+            order[m] = m;
+            m++;
+        }
+        chunk.clear();
+        new KeyRadixSort().sort(time, seq, tie, order, m);
+
+        File run = File.createTempFile("backfill-run-", ".run", tempDirectory);
+        boolean written = false;
+        RunSink out = new RunSink(run);
+        try {
+            for (int i = 0; i < m; i++) {
+                int idx = order[i];
+                byte[] b = encoded(data[idx]);
+                data[idx] = null;
+                if (b == null) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                out.add(time[idx], seq[idx], tie[idx], b);
+            }
+            out.finish();
+            written = true;
+            return run;
+        } finally {
+            if (!written) {
+                out.close();
+                run.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the event in the output codec, as it is if it already is, or null if it cannot be decoded
+     */
+    private byte[] encoded(byte[] b) {
+        if ((b[0] == CalAmpEventCodec.MAGIC) == (codec == CalAmpEventCodec.BINARY)) {
+            return b;
+        }
+        CalAmpEvent e = CalAmpEventCodec.decode(b);
+        return e == null ? null : codec.encode(e);
+    }
+
+    /**
+     * Merges the runs fanIn at a time into fewer, longer runs.
+     */
+    private List<File> mergePass(List<File> runs) throws IOException {
+        List<File> merged = new ArrayList<File>();
+        try {
+            for (int from = 0; from < runs.size(); from += fanIn) {
+                List<File> group = runs.subList(from, Math.min(runs.size(), from + fanIn));
+                File run = File.createTempFile("backfill-merge-", ".run", tempDirectory);
+                merged.add(run);
+                RunSink out = new RunSink(run);
+                try {
+                    merge(group, out);
+                    out.finish();
+                } finally {
+                    out.close();
+                }
+                for (File f : group) {
+                    f.delete();
+                }
+            }
+        } catch (IOException e) {
+            for (File f : merged) {
+                f.delete();
+            }
+            throw e;
+        }
+        mergePasses++;
+        return merged;
+    }
+
+    /**
+     * K-way merges the runs into the sink. Equal keys come out in run order,
+     * so the merge is stable.
+     *
+     * @return events merged
+     */
+    private long merge(List<File> runs, Sink sink) throws IOException {
+        int buffer = (int) Math.max(MIN_RUN_READ_BUFFER_BYTES,
+                Math.min(MAX_RUN_READ_BUFFER_BYTES, memoryBytes / (runs.size() + 1)));
+        PriorityQueue<RunCursor> heap = new PriorityQueue<RunCursor>(Math.max(1, runs.size()), new Comparator<RunCursor>() {
+            @Override
+            public int compare(RunCursor a, RunCursor b) {
+                int c = Long.compare(a.time, b.time);
+                if (c == 0) {
+                    c = Long.compare(a.seq, b.seq);
+                }
+                if (c == 0) {
+                    c = Long.compare(a.tie, b.tie);
+                }
+                return c != 0 ? c : Integer.compare(a.index, b.index);
+            }
+        });
+        List<RunCursor> open = new ArrayList<RunCursor>(runs.size());
+        long n = 0;
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                RunCursor c = new RunCursor(runs.get(i), i, buffer);
+                open.add(c);
+                if (c.advance()) {
+                    heap.add(c);
+                }
+            }
+            while (!heap.isEmpty()) {
+                RunCursor c = heap.poll();
+                sink.add(c.time, c.seq, c.tie, c.data);
+                n++;
+                if (c.advance()) {
+                    heap.add(c);
+                }
+            }
+        } finally {
+            for (RunCursor c : open) {
+                c.in.close();
+            }
+        }
+        return n;
+    }
+
+    private static final class RunCursor {
+        final DataInputStream in;
+        final int index;
+        long time;
+        long seq;
+        long tie;
+        byte[] data;
+
+        RunCursor(File run, int index, int bufferBytes) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), bufferBytes));
+            this.index = index;
+        }
+
+        /**
+         * @return false at the end of the run
+         */
+        boolean advance() throws IOException {
+            try {
+                time = in.readLong();
+            } catch (EOFException e) {
+                data = null;
+                return false;
+            }
+            seq = in.readLong();
+            tie = in.readLong();
+            data = new byte[in.readInt()];
+            in.readFully(data);
+            return true;
+        }
+    }
+
+    /**
+     * Where merged events go, in order.
+     */
+    private abstract static class Sink {
+        abstract void add(long time, long seq, long tie, byte[] data) throws IOException;
+
+        void finish() throws IOException {
+        }
+    }
+
+    private static final class RunSink extends Sink {
+        private final DataOutputStream out;
+
+        RunSink(File run) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_WRITE_BUFFER_BYTES));
+        }
+
+        @Override
+        void add(long time, long seq, long tie, byte[] data) throws IOException {
+            out.writeLong(time);
+            out.writeLong(seq);
+            out.writeLong(tie);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        @Override
+        void finish() throws IOException {
+            out.close();
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class FileSink extends Sink {
+        private final EventFileWriter writer;
+
+        FileSink(EventFileWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        void add(long time, long seq, long tie, byte[] data) throws IOException {
+            writer.write(data);
+        }
+
+        @Override
+        void finish() throws IOException {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Puts batches of maxRecordsPerPut events, building the next batch while
+     * the previous one is being put.
+     */
+    private final class StreamSink extends Sink {
+        private final KeyOrderedPutSender sender;
+        private List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>();
+        private PutCompletion inFlight;
+
+        StreamSink(KeyOrderedPutSender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        void add(long time, long seq, long tie, byte[] data) {
+            PutRecordsRequestEntry prre = new PutRecordsRequestEntry().withData(ByteBuffer.wrap(data));
+            if (globalOrder) {
+                prre.setPartitionKey(CalAmpParameters.globalOrderPartitionKey);
+                if (CalAmpParameters.globalOrderExplicitHashKey != null) {
+                    prre.setExplicitHashKey(CalAmpParameters.globalOrderExplicitHashKey);
+                }
+            }
+            else {
+                // The low word of the tie breaker is the machine id with its sign bit flipped.
+                prre.setPartitionKey(String.valueOf((int) tie ^ Integer.MIN_VALUE));
+            }
+            entries.add(prre);
+            if (entries.size() == CalAmpParameters.maxRecordsPerPut) {
+                send();
+            }
+        }
+
+        @Override
+        void finish() {
+            send();
+            if (inFlight != null) {
+                inFlight.await();
+            }
+        }
+
+        private void send() {
+            if (entries.isEmpty()) {
+                return;
+            }
+            if (inFlight != null) {
+                inFlight.await();
+            }
+            inFlight = sender.send(RecordAggregator.aggregate(entries));
+            Metrics.add("backfill.putEvents", entries.size());
+            Metrics.reportIfDue();
+            entries = new ArrayList<PutRecordsRequestEntry>();
+        }
+    }
+
+    private static void checkUsage(String[] args) {
+        if (args.length < 5) {
+            System.err.println("Usage: " + BackfillSorter.class.getSimpleName()
+                    + " <output file, or stream:name> <JSON|BINARY> <memory MB> <threads> <input file>...");
+            System.exit(1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkUsage(args);
+        String output = args[0];
+        CalAmpEventCodec codec = CalAmpEventCodec.fromName(args[1]);
+        long memoryBytes = Long.parseLong(args[2]) * 1024 * 1024;
+        int threads = Integer.parseInt(args[3]);
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 4; i < args.length; i++) {
+            inputs.add(new File(args[i]));
+        }
+
+        BackfillSorter sorter = new BackfillSorter(codec, memoryBytes, threads);
+        long n;
+        if (output.startsWith("stream:")) {
+            String streamName = output.substring("stream:".length());
+            Region region = RegionUtils.getRegion(CalAmpParameters.regionName);
+            if (region == null) {
+                System.err.println(CalAmpParameters.regionName + " is not a valid AWS region.");
+                System.exit(1);
+            }
+            AWSCredentials credentials = CredentialUtils.getCredentialsProvider().getCredentials();
+            ClientConfiguration ccuo = ConfigurationUtils.getClientConfigWithUserAgent(true);
+            AmazonKinesis kinesisClient = new AmazonKinesisClient(credentials, ccuo);
+            kinesisClient.setRegion(region);
+            Utils.validateStream(kinesisClient, streamName);
+            n = sorter.sortToStream(inputs, kinesisClient, streamName);
+        }
+        else {
+            n = sorter.sortToFile(inputs, new File(output));
+        }
+        if (sorter.getSkipped() > 0) {
+            LOG.warn(sorter.getSkipped() + " events could not be read and were skipped.");
+        }
+        System.out.println("Backfill Done: " + n + " events");
+    }
+}
@@ -0,0 +1,21 @@
+package com.calamp.services.kinesis.events.sort;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+
+/**
+ * A held event, or with no key and record a skipped shard position, as
+ * tracked by Arrivals. While spilled its record is in a SpillStore segment.
+ */
+class BufferedEvent extends HeldRecord {
+    final String recordSequenceNumber;
+    boolean released;
+    SpillStore.Segment segment;
+    int offset;
+
+    BufferedEvent(CalAmpEventKey key, Record record, String recordSequenceNumber) {
+        super(key, record);
+        this.recordSequenceNumber = recordSequenceNumber;
+        this.released = false;
+    }
+}
@@ -0,0 +1,98 @@
+package com.calamp.services.kinesis.events.sort;
+
+/**
+ * Tells when a shard's sorter is working through a backlog, as when it starts
+ * from TRIM_HORIZON or after an outage, and when it has caught up.
+ *
+ * A shard is behind while its reads come back full: GetRecords returned as
+ * many records as it was asked for, so more were waiting. The processor is
+ * told neither the records' arrival times (not in this SDK) nor how far the
+ * shard is behind its tip (not passed on by KCL 1.4), so a full read is the
+ * signal it has. The shard starts catching up after enterPolls full reads in
+ * a row, so a single burst does not switch it, and has caught up at the first
+ * read that is not full.
+ *
+ * While catching up, the sorter gathers the sorted runs released over
+ * consecutive polls into large puts and pipelines them: a watermark that is
+ * passing most of a backlog at once makes each poll's release continue the
+ * one before. Once caught up it goes back to waiting for each poll's put.
+ *
+ * For the current or last catch up it keeps how long it took, from the first
+ * full read, and the events per second processed meanwhile.
+ *
+ * Not thread safe; one per record processor.
+ */
+public class CatchUpTracker {
+
+    private final int enterPolls;
+    private boolean catchingUp;
+    private int fullInARow;
+    private long startMillis;
+    private long events;
+    private long lastDurationMillis = -1;
+    private long lastEvents;
+    private int episodes;
+
+    /**
+     * @param enterPolls full reads in a row after which the shard is catching up
+     */
+    public CatchUpTracker(int enterPolls) {
+        this.enterPolls = Math.max(1, enterPolls);
+    }
+
+    /**
+     * Notes a poll.
+     *
+     * @param records events the poll returned
+     * @param filledLimit whether the read returned as many records as it asked for
+     * @return whether the shard is catching up after this poll
+     */
+    public boolean observe(int records, boolean filledLimit, long nowMillis) {
+        if (!filledLimit) {
+            fullInARow = 0;
+            if (catchingUp) {
+                catchingUp = false;
+                events += records;
+                lastDurationMillis = nowMillis - startMillis;
+                lastEvents = events;
+            }
+            return false;
+        }
+        if (fullInARow++ == 0) {
+            startMillis = nowMillis;
+            events = 0;
+        }
+        events += records;
+        if (!catchingUp && fullInARow >= enterPolls) {
+            catchingUp = true;
+            episodes++;
+        }
+        return catchingUp;
+    }
+
+    public boolean isCatchingUp() {
+        return catchingUp;
+    }
+
+    /**
+     * @return time spent catching up so far, or in the last catch up if caught up; -1 if never behind
+     */
+    public long getCatchUpMillis(long nowMillis) {
+        return catchingUp ? nowMillis - startMillis : lastDurationMillis;
+    }
+
+    /**
+     * @return events per second processed in the current, or else the last, catch up
+     */
+    public long getEventsPerSecond(long nowMillis) {
+        long millis = getCatchUpMillis(nowMillis);
+        return millis <= 0 ? 0 : (catchingUp ? events : lastEvents) * 1000 / millis;
+    }
+
+    /**
+     * @return how many times the shard has started catching up
+     */
+    public int getEpisodes() {
+        return episodes;
+    }
+}
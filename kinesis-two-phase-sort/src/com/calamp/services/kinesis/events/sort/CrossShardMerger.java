@@ -0,0 +1,270 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+import com.calamp.services.kinesis.events.utils.CalAmpEventPriorityComparator;
+
+/**
+ * K-way merge of per-shard sorted runs into one totally ordered sequence.
+ *
+ * Each shard appends the events its SortBuffer released, which are already in
+ * priority order and all at or below the shard's watermark, and reports its
+ * watermark. Anything the shard adds later is above that watermark. So the
+ * smallest head over all shards may be emitted once every shard with nothing
+ * queued has a watermark at or past it. A loser tree over the lane heads finds
+ * that smallest head in log(k) comparisons per event.
+ *
+ * A shard whose watermark has not moved and that has nothing queued for
+ * longer than the idle timeout stops gating the merge, so one quiet shard does
+ * not stall the others. If it wakes up with events the merge has already
+ * passed, add refuses them and the caller handles them as late.
+ *
+ * Not thread safe; callers synchronize.
+ */
+public class CrossShardMerger<T> {
+
+    private final long idleTimeoutMillis;
+    private final Map<String, Lane<T>> lanes = new LinkedHashMap<String, Lane<T>>();
+    private List<Lane<T>> leaves = new ArrayList<Lane<T>>();
+    // tree[0] is the winning leaf, tree[1..k) the loser at each match.
+    private int[] tree = new int[0];
+    private boolean dirty;
+    private CalAmpEventKey frontier;
+    private int size;
+
+    public CrossShardMerger(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Starts gating the merge on a shard. Until its first watermark it holds
+     * everything back for at most the idle timeout.
+     */
+    public void register(String shardId, long nowMillis) {
+        if (!lanes.containsKey(shardId)) {
+            lanes.put(shardId, new Lane<T>(nowMillis));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Queues one released event of a shard. Events of a shard must be added
+     * in priority order.
+     *
+     * @return false if the merge is already past the key, in which case the
+     * event is not queued
+     */
+    public boolean add(String shardId, CalAmpEventKey key, T item, long nowMillis) {
+        if (frontier != null && CalAmpEventPriorityComparator.compareKeys(key, frontier) < 0) {
+            return false;
+        }
+        Lane<T> lane = lanes.get(shardId);
+        if (lane == null) {
+            throw new IllegalStateException("Shard not registered: " + shardId);
+        }
+        if (lane.keys.isEmpty()) {
+            dirty = true;
+        }
+        lane.keys.addLast(key);
+        lane.items.addLast(item);
+        lane.lastProgressMillis = nowMillis;
+        size++;
+        return true;
+    }
+
+    /**
+     * Reports a shard's watermark: it will add nothing at or below it again.
+     */
+    public void advance(String shardId, long watermark, long nowMillis) {
+        Lane<T> lane = lanes.get(shardId);
+        if (lane != null && watermark > lane.watermark) {
+            lane.watermark = watermark;
+            lane.lastProgressMillis = nowMillis;
+        }
+    }
+
+    /**
+     * The shard will add nothing more. It stops gating the merge; what it has
+     * queued is still emitted in order and the lane goes once empty.
+     */
+    public void close(String shardId) {
+        Lane<T> lane = lanes.get(shardId);
+        if (lane != null) {
+            lane.closed = true;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forgets a shard and drops what it has queued, for a lease that was lost.
+     *
+     * @return the dropped items
+     */
+    public List<T> remove(String shardId) {
+        Lane<T> lane = lanes.remove(shardId);
+        if (lane == null) {
+            return new ArrayList<T>();
+        }
+        dirty = true;
+        size -= lane.items.size();
+        return new ArrayList<T>(lane.items);
+    }
+
+    /**
+     * Moves every event that can be emitted now to out, in priority order.
+     *
+     * @return the number of events moved
+     */
+    public int drain(long nowMillis, List<T> out) {
+        if (dirty) {
+            rebuild();
+        }
+        if (leaves.isEmpty()) {
+            return 0;
+        }
+        long gate = Long.MAX_VALUE;
+        for (Lane<T> lane : leaves) {
+            if (lane.keys.isEmpty() && gates(lane, nowMillis)) {
+                gate = Math.min(gate, lane.watermark);
+            }
+        }
+        int moved = 0;
+        while (true) {
+            int w = tree[0];
+            Lane<T> lane = leaves.get(w);
+            CalAmpEventKey head = lane.keys.peekFirst();
+            if (head == null || head.getTimeStamp() > gate) {
+                break;
+            }
+            lane.keys.pollFirst();
+            out.add(lane.items.pollFirst());
+            frontier = head;
+            size--;
+            moved++;
+            if (lane.keys.isEmpty()) {
+                if (lane.closed) {
+                    dirty = true;
+                }
+                else if (gates(lane, nowMillis)) {
+                    gate = Math.min(gate, lane.watermark);
+                }
+            }
+            replay(w);
+        }
+        return moved;
+    }
+
+    /**
+     * @return events queued over all shards
+     */
+    public int size() {
+        return size;
+    }
+
+    public int shards() {
+        return lanes.size();
+    }
+
+    /**
+     * @return shards that currently do not gate the merge because they are idle
+     */
+    public int idleShards(long nowMillis) {
+        int n = 0;
+        for (Lane<T> lane : lanes.values()) {
+            if (!lane.closed && lane.keys.isEmpty() && !gates(lane, nowMillis)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private boolean gates(Lane<T> lane, long nowMillis) {
+        return !lane.closed && nowMillis - lane.lastProgressMillis <= idleTimeoutMillis;
+    }
+
+    private void rebuild() {
+        Iterator<Lane<T>> it = lanes.values().iterator();
+        while (it.hasNext()) {
+            Lane<T> lane = it.next();
+            if (lane.closed && lane.keys.isEmpty()) {
+                it.remove();
+            }
+        }
+        leaves = new ArrayList<Lane<T>>(lanes.values());
+        int k = leaves.size();
+        tree = new int[Math.max(1, k)];
+        dirty = false;
+        if (k == 0) {
+            return;
+        }
+        // Each leaf climbs until it finds a free node to wait at, or beats
+        // whoever waits there and climbs on; the last one up is the winner.
+        Arrays.fill(tree, -1);
+        for (int i = 0; i < k; i++) {
+            int winner = i;
+            for (int n = (i + k) / 2; n > 0; n /= 2) {
+                if (tree[n] == -1) {
+                    tree[n] = winner;
+                    winner = -1;
+                    break;
+                }
+                if (less(tree[n], winner)) {
+                    int t = tree[n];
+                    tree[n] = winner;
+                    winner = t;
+                }
+            }
+            if (winner != -1) {
+                tree[0] = winner;
+            }
+        }
+    }
+
+    /**
+     * Replays the matches from a leaf whose head changed up to the root.
+     */
+    private void replay(int leaf) {
+        int k = leaves.size();
+        int winner = leaf;
+        for (int n = (leaf + k) / 2; n > 0; n /= 2) {
+            if (less(tree[n], winner)) {
+                int t = tree[n];
+                tree[n] = winner;
+                winner = t;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * Orders leaves by head, empty lanes last, ties by leaf index.
+     */
+    private boolean less(int a, int b) {
+        CalAmpEventKey ka = leaves.get(a).keys.peekFirst();
+        CalAmpEventKey kb = leaves.get(b).keys.peekFirst();
+        if (ka == null || kb == null) {
+            return kb == null && (ka != null || a < b);
+        }
+        int c = CalAmpEventPriorityComparator.compareKeys(ka, kb);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    private static class Lane<T> {
+        final ArrayDeque<CalAmpEventKey> keys = new ArrayDeque<CalAmpEventKey>();
+        final ArrayDeque<T> items = new ArrayDeque<T>();
+        long watermark = Long.MIN_VALUE;
+        long lastProgressMillis;
+        boolean closed;
+
+        Lane(long nowMillis) {
+            this.lastProgressMillis = nowMillis;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+
+/**
+ * Remembers the identity of recently seen events so repeats are dropped in
+ * O(1): KCL redeliveries after a retry, or events that were put twice by a
+ * producer. The identity is machineId, sequenceNumber, timeStamp and a 64 bit
+ * fingerprint of the record payload.
+ *
+ * The index spans processRecords calls. Entries are evicted once they are
+ * older (local clock, time of first sighting) than the retention window, and
+ * the oldest entries are evicted first when the index reaches its maximum size.
+ */
+public class DedupIndex {
+
+    private static final long FP_SEED = 0xcbf29ce484222325L;
+    private static final long FP_MULT = 0x9E3779B97F4A7C15L;
+
+    private final long retentionMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<EventIdentity, Long> seen;
+    private long evicted;
+
+    public DedupIndex(long retentionMillis, final int maxEntries) {
+        this.retentionMillis = retentionMillis;
+        this.maxEntries = maxEntries;
+        this.seen = new LinkedHashMap<EventIdentity, Long>(1024, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<EventIdentity, Long> eldest) {
+                if (size() > DedupIndex.this.maxEntries) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Records the event and reports whether it had been seen before.
+     *
+     * @return true if this is the first sighting within the retention window.
+     */
+    public boolean firstSighting(CalAmpEventKey key, ByteBuffer payload, long nowMillis) {
+        EventIdentity id = new EventIdentity(key, fingerprint(payload));
+        if (seen.containsKey(id)) {
+            return false;
+        }
+        seen.put(id, nowMillis);
+        return true;
+    }
+
+    /**
+     * Drops entries first seen more than the retention window ago. Entries sit
+     * in insertion order, so this stops at the first one still inside the window.
+     */
+    public void expire(long nowMillis) {
+        Iterator<Long> it = seen.values().iterator();
+        while (it.hasNext()) {
+            if (nowMillis - it.next() <= retentionMillis) {
+                break;
+            }
+            it.remove();
+            evicted++;
+        }
+    }
+
+    public int size() {
+        return seen.size();
+    }
+
+    public long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * 64 bit multiplicative hash over the readable bytes, eight at a time. The
+     * buffer's position is not changed.
+     */
+    public static long fingerprint(ByteBuffer data) {
+        long h = FP_SEED;
+        if (data == null) {
+            return h;
+        }
+        int pos = data.position();
+        int end = data.limit();
+        h ^= end - pos;
+        for (; pos + 8 <= end; pos += 8) {
+            h = (h ^ data.getLong(pos)) * FP_MULT;
+            h ^= h >>> 29;
+        }
+        for (; pos < end; pos++) {
+            h = (h ^ data.get(pos)) * FP_MULT;
+        }
+        return h ^ (h >>> 32);
+    }
+
+    private static final class EventIdentity {
+        private final int machineId;
+        private final long sequenceNumber;
+        private final long timeStamp;
+        private final long fingerprint;
+
+        EventIdentity(CalAmpEventKey key, long fingerprint) {
+            this.machineId = key.getMachineId();
+            this.sequenceNumber = key.getSequenceNumber();
+            this.timeStamp = key.getTimeStamp();
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof EventIdentity)) {
+                return false;
+            }
+            EventIdentity o = (EventIdentity) other;
+            return machineId == o.machineId && sequenceNumber == o.sequenceNumber
+                    && timeStamp == o.timeStamp && fingerprint == o.fingerprint;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (fingerprint ^ (fingerprint >>> 32));
+        }
+    }
+}
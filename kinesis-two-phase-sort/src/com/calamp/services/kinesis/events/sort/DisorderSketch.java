@@ -0,0 +1,95 @@
+package com.calamp.services.kinesis.events.sort;
+
+/**
+ * Streaming quantile sketch over non-negative millisecond values. Values are
+ * counted in log-linear buckets (16 per power of two, so a reported quantile is
+ * within about 6% of the true value) and all counts are halved every
+ * decayEvery samples so the sketch follows a drifting distribution.
+ */
+public class DisorderSketch {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * SUB_COUNT;
+
+    private final long[] counts;
+    private final long decayEvery;
+    private long total;
+    private long sinceDecay;
+    private long max;
+
+    public DisorderSketch(long decayEvery) {
+        this.counts = new long[BUCKETS];
+        this.decayEvery = decayEvery;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketOf(value)]++;
+        total++;
+        max = Math.max(max, value);
+        if (++sinceDecay >= decayEvery) {
+            decay();
+        }
+    }
+
+    /**
+     * @return an upper bound of the value at quantile q (0..1), or 0 when empty.
+     */
+    public long quantile(double q) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    private void decay() {
+        total = 0;
+        long newMax = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] >>>= 1;
+            total += counts[i];
+            if (counts[i] > 0) {
+                newMax = upperBoundOf(i);
+            }
+        }
+        max = Math.min(max, newMax);
+        sinceDecay = 0;
+    }
+
+    static int bucketOf(long v) {
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) ((v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+        return SUB_COUNT + (exp - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exp = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        long sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        return (((SUB_COUNT | sub) + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,31 @@
+package com.calamp.services.kinesis.events.sort;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+
+/**
+ * A record waiting in the sort buffer: its sort key plus the untouched Kinesis
+ * record, so it can be forwarded without decoding or re-encoding the payload.
+ */
+public class HeldRecord {
+
+    private final CalAmpEventKey key;
+    private Record record;
+
+    public HeldRecord(CalAmpEventKey key, Record record) {
+        this.key = key;
+        this.record = record;
+    }
+
+    public CalAmpEventKey getKey() {
+        return key;
+    }
+
+    public Record getRecord() {
+        return record;
+    }
+
+    void setRecord(Record record) {
+        this.record = record;
+    }
+}
@@ -0,0 +1,108 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.util.Arrays;
+
+/**
+ * LSD radix sort of record indexes by a packed, fixed width sort key held in
+ * three parallel long arrays: event time, event sequence number, and a tie
+ * breaker made by {@link #tie}. Sorting by these words, most significant
+ * first, gives the same total order as CalAmpEventPriorityComparator.
+ *
+ * Each word is sorted a byte at a time from the least significant word and
+ * byte up. One scan builds the histograms of all 24 bytes, and a byte that is
+ * the same in every key is skipped; events of one poll share most high bytes
+ * of their time, and sequence numbers and machine ids are small, so a batch
+ * usually takes 6 to 8 passes. The scratch arrays are kept between calls, so
+ * sorting batches of a similar size allocates nothing.
+ *
+ * Not thread safe; use one instance per sorter.
+ */
+public class KeyRadixSort {
+
+    private static final int WORDS = 3;
+    private static final int BYTES = 8;
+
+    private final int[][] counts = new int[WORDS * BYTES][256];
+    private int[] scratch = new int[0];
+
+    /**
+     * @return the tie breaker word for the ack flag (false first) and machine id (signed order)
+     */
+    public static long tie(boolean isAnAck, int machineId) {
+        return ((isAnAck ? 1L : 0L) << 32) | ((machineId ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    /**
+     * Reorders order[0..n) so the indexes it holds visit the keys in ascending
+     * order. Equal keys keep their relative order.
+     *
+     * @param time event time, compared as signed
+     * @param seq event sequence number, compared as signed
+     * @param tie see {@link #tie}
+     * @param order indexes into the key arrays
+     */
+    public void sort(long[] time, long[] seq, long[] tie, int[] order, int n) {
+        if (n < 2) {
+            return;
+        }
+        if (scratch.length < n) {
+            scratch = new int[n];
+        }
+        for (int[] c : counts) {
+            Arrays.fill(c, 0);
+        }
+        for (int w = 0; w < WORDS; w++) {
+            long[] k = word(w, time, seq, tie);
+            for (int i = 0; i < n; i++) {
+                long v = k[order[i]] ^ Long.MIN_VALUE;
+                for (int b = 0; b < BYTES; b++) {
+                    counts[w * BYTES + b][(int) (v >>> (b * 8)) & 0xff]++;
+                }
+            }
+        }
+        int[] src = order;
+        int[] dst = scratch;
+        for (int w = 0; w < WORDS; w++) {
+            long[] k = word(w, time, seq, tie);
+            for (int b = 0; b < BYTES; b++) {
+                int[] c = counts[w * BYTES + b];
+                if (singleBucket(c, n)) {
+                    continue;
+                }
+                int sum = 0;
+                for (int d = 0; d < 256; d++) {
+                    int t = c[d];
+                    c[d] = sum;
+                    sum += t;
+                }
+                int shift = b * 8;
+                for (int i = 0; i < n; i++) {
+                    int idx = src[i];
+                    dst[c[(int) ((k[idx] ^ Long.MIN_VALUE) >>> shift) & 0xff]++] = idx;
+                }
+                int[] t = src;
+                src = dst;
+                dst = t;
+            }
+        }
+        if (src != order) {
+            System.arraycopy(src, 0, order, 0, n);
+        }
+    }
+
+    /**
+     * Words from least to most significant.
+     */
+    private static long[] word(int w, long[] time, long[] seq, long[] tie) {
+        return w == 0 ? tie : w == 1 ? seq : time;
+    }
+
+    private static boolean singleBucket(int[] c, int n) {
+        for (int d = 0; d < 256; d++) {
+            if (c[d] != 0) {
+                return c[d] == n;
+            }
+        }
+        return true;
+    }
+}
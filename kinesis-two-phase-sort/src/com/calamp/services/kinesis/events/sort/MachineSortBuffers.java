@@ -0,0 +1,381 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+
+/**
+ * Per-machine holding area for the MACHINE ordering scope. Each machine has
+ * its own small sorted buffer, its own reorder window and its own watermark
+ * (the highest event time seen from it minus its window), so a machine's
+ * events go out as soon as that machine has moved on, instead of waiting
+ * behind the slowest machine of the shard. Only each machine's events are in
+ * order relative to each other.
+ *
+ * A machine's window follows its own disorder: a quarter more than a slowly decaying maximum
+ * of how far its events arrive behind its newest one, plus the minimum window,
+ * within [minWindowMillis, maxWindowMillis]. Until a machine has sent enough
+ * events to tell, it uses the shard's allowed lateness. A well behaved machine
+ * then needs only a small window, while a disordered one gets a wide window
+ * without widening anyone else's. As in WatermarkTracker, a machine that stays
+ * quiet past the idle timeout has its watermark advanced by the quiet time.
+ *
+ * Machines are found through an open addressing map keyed by the int
+ * machineId. A machine's buffer is kept in parallel primitive arrays sorted on
+ * the KeyRadixSort packed key, starts at a few slots and shrinks back once
+ * drained. A machine quiet for a hundred idle timeouts is forgotten.
+ *
+ * Arrivals are tracked as in SortBuffer, so the checkpoint never passes a
+ * record whose event is still held.
+ */
+public class MachineSortBuffers {
+
+    private static final int INITIAL_SLOTS = 4;
+    private static final int SHRINK_SLOTS = 64;
+    // Events a machine sends before its own disorder sets its window.
+    private static final int WARMUP_EVENTS = 16;
+
+    private final Arrivals arrivals = new Arrivals();
+    private long allowedLatenessMillis;
+    private final long minWindowMillis;
+    private final long maxWindowMillis;
+    private final long idleTimeoutMillis;
+
+    // Open addressing map machineId -> Device, linear probing.
+    private Device[] table = new Device[1024];
+    private int machines;
+
+    // Devices holding at least one event.
+    private Device[] active = new Device[256];
+    private int activeCount;
+
+    private int size;
+    private long lastSweepMillis;
+
+    /**
+     * @param allowedLatenessMillis window of a machine that has not sent enough events to size its own
+     * @param idleTimeoutMillis quiet time after which a machine's watermark follows the local clock
+     */
+    public MachineSortBuffers(long allowedLatenessMillis, long minWindowMillis, long maxWindowMillis, long idleTimeoutMillis) {
+        this.allowedLatenessMillis = allowedLatenessMillis;
+        this.minWindowMillis = minWindowMillis;
+        this.maxWindowMillis = maxWindowMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Holds a record until its machine's watermark passes it.
+     *
+     * @return the held event
+     */
+    public HeldRecord add(CalAmpEventKey key, Record record, long nowMillis) {
+        BufferedEvent be = arrivals.held(key, record);
+        Device d = device(key.getMachineId());
+        if (d.maxEventTime != Long.MIN_VALUE) {
+            long behind = Math.max(0, d.maxEventTime - key.getTimeStamp());
+            d.disorderMillis = Math.max(behind, d.disorderMillis - d.disorderMillis / 32);
+        }
+        if (d.samples < WARMUP_EVENTS) {
+            d.samples++;
+        }
+        d.insert(key.getTimeStamp(), key.getSequenceNumber(), KeyRadixSort.tie(key.getIsAnAck(), key.getMachineId()), be);
+        d.maxEventTime = Math.max(d.maxEventTime, key.getTimeStamp());
+        d.lastSeenMillis = nowMillis;
+        if (d.activeIndex < 0) {
+            if (activeCount == active.length) {
+                active = Arrays.copyOf(active, activeCount * 2);
+            }
+            d.activeIndex = activeCount;
+            active[activeCount++] = d;
+        }
+        size++;
+        return be;
+    }
+
+    /**
+     * Records a shard position that has nothing to hold so the checkpoint may move past it.
+     */
+    public void skip(String recordSequenceNumber) {
+        arrivals.skipped(recordSequenceNumber);
+    }
+
+    /**
+     * @return true if the event's machine has already released past it
+     */
+    public boolean isLate(CalAmpEventKey key) {
+        Device d = find(key.getMachineId());
+        return d != null && key.getTimeStamp() <= d.releasedThrough;
+    }
+
+    /**
+     * Removes and returns every held event its machine's watermark has passed,
+     * in priority order per machine.
+     */
+    public List<HeldRecord> releaseDue(long nowMillis) {
+        List<HeldRecord> released = new ArrayList<HeldRecord>();
+        // Downwards, as a drained device is swapped out with the last one.
+        for (int i = activeCount - 1; i >= 0; i--) {
+            Device d = active[i];
+            long window = d.samples < WARMUP_EVENTS ? allowedLatenessMillis
+                    : Math.max(minWindowMillis, Math.min(maxWindowMillis, d.disorderMillis + d.disorderMillis / 4 + minWindowMillis));
+            long w = d.maxEventTime - window;
+            long quiet = nowMillis - d.lastSeenMillis;
+            if (quiet > idleTimeoutMillis) {
+                w += quiet - idleTimeoutMillis;
+            }
+            if (w > d.releasedThrough) {
+                d.releasedThrough = w;
+            }
+            release(d, d.releasedThrough, released);
+        }
+        sweep(nowMillis);
+        arrivals.advance();
+        return released;
+    }
+
+    /**
+     * Removes and returns every held event regardless of age, used when the
+     * shard ends and nothing more will arrive.
+     */
+    public List<HeldRecord> releaseAll() {
+        List<HeldRecord> released = new ArrayList<HeldRecord>(size);
+        for (int i = activeCount - 1; i >= 0; i--) {
+            release(active[i], Long.MAX_VALUE, released);
+        }
+        arrivals.advance();
+        return released;
+    }
+
+    public String getCheckpointSequenceNumber() {
+        return arrivals.getCheckpointSequenceNumber();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return machines currently remembered
+     */
+    public int machines() {
+        return machines;
+    }
+
+    /**
+     * @return machines currently holding events
+     */
+    public int activeMachines() {
+        return activeCount;
+    }
+
+    public long getAllowedLatenessMillis() {
+        return allowedLatenessMillis;
+    }
+
+    /**
+     * Changes the window of machines still warming up, e.g. from the shard's ReorderWindow.
+     */
+    public void setAllowedLatenessMillis(long allowedLatenessMillis) {
+        this.allowedLatenessMillis = allowedLatenessMillis;
+    }
+
+    private void release(Device d, long through, List<HeldRecord> released) {
+        int n = 0;
+        while (n < d.count && d.time[n] <= through) {
+            BufferedEvent be = d.events[n];
+            be.released = true;
+            released.add(be);
+            n++;
+        }
+        if (n == 0) {
+            return;
+        }
+        d.removeFirst(n);
+        size -= n;
+        if (d.count == 0) {
+            Device last = active[--activeCount];
+            active[d.activeIndex] = last;
+            last.activeIndex = d.activeIndex;
+            active[activeCount] = null;
+            d.activeIndex = -1;
+        }
+    }
+
+    /**
+     * Forgets drained machines quiet for a hundred idle timeouts, at most once per idle timeout.
+     */
+    private void sweep(long nowMillis) {
+        if (nowMillis - lastSweepMillis < idleTimeoutMillis) {
+            return;
+        }
+        lastSweepMillis = nowMillis;
+        for (int i = 0; i < table.length; i++) {
+            Device d = table[i];
+            while (d != null && d.activeIndex < 0 && nowMillis - d.lastSeenMillis > 100 * idleTimeoutMillis) {
+                // Removal shifts a later entry into slot i, so look at it again.
+                delete(i);
+                d = table[i];
+            }
+        }
+    }
+
+    private Device device(int machineId) {
+        Device d = find(machineId);
+        if (d != null) {
+            return d;
+        }
+        if ((machines + 1) * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        d = new Device(machineId);
+        int i = slot(machineId);
+        while (table[i] != null) {
+            i = (i + 1) & (table.length - 1);
+        }
+        table[i] = d;
+        machines++;
+        return d;
+    }
+
+    private Device find(int machineId) {
+        int i = slot(machineId);
+        Device d;
+        while ((d = table[i]) != null) {
+            if (d.machineId == machineId) {
+                return d;
+            }
+            i = (i + 1) & (table.length - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Removes slot i and shifts back any later entry of the probe run that
+     * would no longer be found.
+     */
+    private void delete(int i) {
+        int mask = table.length - 1;
+        table[i] = null;
+        machines--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            Device d = table[j];
+            if (d == null) {
+                return;
+            }
+            int home = slot(d.machineId);
+            // Move d into the hole unless its home lies cyclically in (i, j].
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                table[i] = d;
+                table[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        Device[] old = table;
+        table = new Device[capacity];
+        for (Device d : old) {
+            if (d != null) {
+                int i = slot(d.machineId);
+                while (table[i] != null) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                table[i] = d;
+            }
+        }
+    }
+
+    private int slot(int machineId) {
+        int h = machineId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (table.length - 1);
+    }
+
+    private static final class Device {
+        final int machineId;
+        long[] time = new long[INITIAL_SLOTS];
+        long[] seq = new long[INITIAL_SLOTS];
+        long[] tie = new long[INITIAL_SLOTS];
+        BufferedEvent[] events = new BufferedEvent[INITIAL_SLOTS];
+        int count;
+        long maxEventTime = Long.MIN_VALUE;
+        long disorderMillis;
+        int samples;
+        long releasedThrough = Long.MIN_VALUE;
+        long lastSeenMillis;
+        int activeIndex = -1;
+
+        Device(int machineId) {
+            this.machineId = machineId;
+        }
+
+        /**
+         * Inserts after any equal key. Events mostly arrive in order, so the
+         * place is searched from the end.
+         */
+        void insert(long t, long s, long k, BufferedEvent be) {
+            if (count == time.length) {
+                int capacity = count * 2;
+                time = Arrays.copyOf(time, capacity);
+                seq = Arrays.copyOf(seq, capacity);
+                tie = Arrays.copyOf(tie, capacity);
+                events = Arrays.copyOf(events, capacity);
+            }
+            int i = count;
+            while (i > 0 && after(time[i - 1], seq[i - 1], tie[i - 1], t, s, k)) {
+                i--;
+            }
+            int move = count - i;
+            if (move > 0) {
+                System.arraycopy(time, i, time, i + 1, move);
+                System.arraycopy(seq, i, seq, i + 1, move);
+                System.arraycopy(tie, i, tie, i + 1, move);
+                System.arraycopy(events, i, events, i + 1, move);
+            }
+            time[i] = t;
+            seq[i] = s;
+            tie[i] = k;
+            events[i] = be;
+            count++;
+        }
+
+        void removeFirst(int n) {
+            int rest = count - n;
+            if (rest == 0 && time.length > SHRINK_SLOTS) {
+                // A burst is over; do not keep its arrays.
+                time = new long[INITIAL_SLOTS];
+                seq = new long[INITIAL_SLOTS];
+                tie = new long[INITIAL_SLOTS];
+                events = new BufferedEvent[INITIAL_SLOTS];
+                count = 0;
+                return;
+            }
+            System.arraycopy(time, n, time, 0, rest);
+            System.arraycopy(seq, n, seq, 0, rest);
+            System.arraycopy(tie, n, tie, 0, rest);
+            System.arraycopy(events, n, events, 0, rest);
+            Arrays.fill(events, rest, count, null);
+            count = rest;
+        }
+
+        private static boolean after(long t1, long s1, long k1, long t2, long s2, long k2) {
+            if (t1 != t2) {
+                return t1 > t2;
+            }
+            if (s1 != s2) {
+                return s1 > s2;
+            }
+            return k1 > k2;
+        }
+    }
+}
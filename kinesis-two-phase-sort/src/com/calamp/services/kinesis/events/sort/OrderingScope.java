@@ -0,0 +1,13 @@
+package com.calamp.services.kinesis.events.sort;
+
+/**
+ * What the ordered stream is ordered over.
+ */
+public enum OrderingScope {
+    /** One total order over all shards of a worker (GlobalOrderStage). */
+    GLOBAL,
+    /** Each shard's events in order, held behind the shard's watermark (SortBuffer). */
+    SHARD,
+    /** Each machine's events in order, held behind the machine's own watermark (MachineSortBuffers). */
+    MACHINE
+}
@@ -0,0 +1,95 @@
+package com.calamp.services.kinesis.events.sort;
+
+/**
+ * Sizes the hold window (the watermark's allowed lateness) from the disorder
+ * actually observed on a shard. Each event's displacement is how far its time
+ * stamp lies behind the newest time stamp seen before it; the window follows a
+ * target quantile of that displacement, clamped to [minMillis, maxMillis].
+ *
+ * The window grows at once when disorder increases and shrinks gradually, so a
+ * single quiet period does not cause a burst of late events: it closes half
+ * its distance to a lower target every halfLifeMillis, however often it is
+ * updated. Until the sketch has enough samples for the quantile to mean
+ * something (ten beyond it), the window is kept at least at the largest
+ * displacement seen.
+ */
+public class ReorderWindow {
+
+    private static final int WARM_UP_TAIL_EVENTS = 10;
+
+    private final DisorderSketch sketch;
+    private final double targetQuantile;
+    private final long minMillis;
+    private final long maxMillis;
+    private final long halfLifeMillis;
+    private final long warmUpEvents;
+    private long maxEventTime;
+    private double windowMillis;
+    private long updatedMillis = Long.MIN_VALUE;
+
+    public ReorderWindow(double targetQuantile, long minMillis, long maxMillis, long initialMillis, long halfLifeMillis) {
+        this.sketch = new DisorderSketch(100000);
+        this.targetQuantile = targetQuantile;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        this.halfLifeMillis = Math.max(1, halfLifeMillis);
+        this.warmUpEvents = (long) Math.ceil(WARM_UP_TAIL_EVENTS / Math.max(1e-6, 1 - targetQuantile));
+        this.maxEventTime = Long.MIN_VALUE;
+        this.windowMillis = clamp(initialMillis);
+    }
+
+    /**
+     * Measures the displacement of an arriving event.
+     */
+    public void record(long eventTime) {
+        if (maxEventTime == Long.MIN_VALUE) {
+            maxEventTime = eventTime;
+        }
+        if (eventTime >= maxEventTime) {
+            sketch.record(0);
+            maxEventTime = eventTime;
+        }
+        else {
+            sketch.record(maxEventTime - eventTime);
+        }
+    }
+
+    /**
+     * Recomputes the window from the current sketch and returns it.
+     */
+    public long update(long nowMillis) {
+        long elapsed = updatedMillis == Long.MIN_VALUE ? 0 : Math.max(0, nowMillis - updatedMillis);
+        updatedMillis = nowMillis;
+        if (sketch.getCount() == 0) {
+            return getWindowMillis();
+        }
+        long target = sketch.quantile(targetQuantile);
+        if (sketch.getCount() < warmUpEvents) {
+            target = Math.max(target, sketch.getMax());
+        }
+        target = clamp(target);
+        if (target >= windowMillis) {
+            windowMillis = target;
+        }
+        else {
+            windowMillis = target + (windowMillis - target) * Math.pow(0.5, (double) elapsed / halfLifeMillis);
+        }
+        return getWindowMillis();
+    }
+
+    public long getWindowMillis() {
+        return (long) Math.ceil(windowMillis);
+    }
+
+    public long getDisorderMillis(double q) {
+        return sketch.quantile(q);
+    }
+
+    public long getMaxDisorderMillis() {
+        return sketch.getMax();
+    }
+
+    private long clamp(long v) {
+        return Math.max(minMillis, Math.min(maxMillis, v));
+    }
+}
@@ -0,0 +1,226 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+
+/**
+ * Release policy that uses each machine's own event sequence numbers instead
+ * of only waiting out the reorder window. Once a machine's next expected
+ * sequence number is known, an event that continues it (and any held events
+ * that then follow on) is released from the SortBuffer at once. Only events
+ * behind a gap wait for the watermark; when one times out the gap is given up
+ * and the machine's sequence resumes after it.
+ *
+ * A machine's first events wait for the watermark too, as nothing tells where
+ * its sequence starts. Sequence numbers wrap at the modulus and are compared
+ * as serial numbers: a is before b when b is less than half the modulus ahead.
+ * A modulus of 0 means they do not wrap.
+ *
+ * Output is ordered per machine by sequence number, not across machines by
+ * event time.
+ *
+ * A machine with nothing waiting that has been quiet for longer than the gap
+ * timeout is forgotten; should it come back, its sequence is picked up again
+ * as for a new machine.
+ */
+public class SequenceGapRelease {
+
+    private final SortBuffer buffer;
+    private final long modulus;
+    private final long gapTimeoutMillis;
+    private final Map<Integer, Machine> machines = new HashMap<Integer, Machine>();
+    private long lastSweepMillis;
+
+    /**
+     * @param gapTimeoutMillis longest an event can wait behind a gap, i.e. the
+     * largest window the watermark may use
+     */
+    public SequenceGapRelease(SortBuffer buffer, long modulus, long gapTimeoutMillis) {
+        this.buffer = buffer;
+        this.modulus = modulus;
+        this.gapTimeoutMillis = gapTimeoutMillis;
+    }
+
+    /**
+     * @return true if the machine's sequence has already moved past the event,
+     * so it can no longer be released in order
+     */
+    public boolean isBehind(CalAmpEventKey key) {
+        Machine m = machines.get(key.getMachineId());
+        return m != null && m.known && before(key.getSequenceNumber(), m.next);
+    }
+
+    /**
+     * Notes an event just added to the buffer and releases whatever is now
+     * contiguous for its machine.
+     *
+     * @param out receives the released events in sequence order
+     */
+    public void arrived(HeldRecord held, List<HeldRecord> out, long nowMillis) {
+        CalAmpEventKey key = held.getKey();
+        Machine m = machine(key.getMachineId());
+        m.lastSeenMillis = nowMillis;
+        long seq = norm(key.getSequenceNumber());
+        if (!m.waiting.containsKey(seq)) {
+            // On a clash (the sequence wrapped while one was held) the newer one just waits for the watermark.
+            m.waiting.put(seq, held);
+        }
+        if (m.known && seq == m.next) {
+            follow(m, out, null);
+        }
+    }
+
+    /**
+     * Takes the events the watermark released, in priority order, and returns
+     * what to send, in sequence order per machine: each timed out event is
+     * preceded by the held events of its machine that come before it, and
+     * followed by those that now continue it.
+     */
+    public List<HeldRecord> timedOut(List<HeldRecord> released) {
+        List<HeldRecord> out = new ArrayList<HeldRecord>(released.size());
+        Set<HeldRecord> sent = new HashSet<HeldRecord>();
+        for (HeldRecord h : released) {
+            if (sent.contains(h)) {
+                continue;
+            }
+            Machine m = machine(h.getKey().getMachineId());
+            long seq = norm(h.getKey().getSequenceNumber());
+            if (m.known) {
+                while (m.next != seq && before(m.next, seq)) {
+                    send(m.waiting.remove(m.next), out, sent);
+                    m.next = inc(m.next);
+                }
+            }
+            else {
+                List<Long> earlier = new ArrayList<Long>();
+                for (Long s : m.waiting.keySet()) {
+                    if (before(s, seq)) {
+                        earlier.add(s);
+                    }
+                }
+                Collections.sort(earlier, new SerialOrder());
+                for (Long s : earlier) {
+                    send(m.waiting.remove(s), out, sent);
+                }
+            }
+            if (m.waiting.get(seq) == h) {
+                m.waiting.remove(seq);
+            }
+            out.add(h);
+            sent.add(h);
+            if (!m.known || !before(seq, m.next)) {
+                m.next = inc(seq);
+                m.known = true;
+            }
+            follow(m, out, sent);
+        }
+        return out;
+    }
+
+    /**
+     * Forgets machines with nothing waiting that have been quiet past the gap
+     * timeout, at most once per gap timeout.
+     */
+    public void expire(long nowMillis) {
+        if (nowMillis - lastSweepMillis < gapTimeoutMillis) {
+            return;
+        }
+        lastSweepMillis = nowMillis;
+        Iterator<Machine> it = machines.values().iterator();
+        while (it.hasNext()) {
+            Machine m = it.next();
+            if (m.waiting.isEmpty() && nowMillis - m.lastSeenMillis > gapTimeoutMillis) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return machines whose sequence is tracked
+     */
+    public int machines() {
+        return machines.size();
+    }
+
+    /**
+     * @return events held behind a gap, over all machines
+     */
+    public int waiting() {
+        int n = 0;
+        for (Machine m : machines.values()) {
+            n += m.waiting.size();
+        }
+        return n;
+    }
+
+    private void follow(Machine m, List<HeldRecord> out, Set<HeldRecord> sent) {
+        HeldRecord h;
+        while ((h = m.waiting.remove(m.next)) != null) {
+            send(h, out, sent);
+            m.next = inc(m.next);
+        }
+    }
+
+    private void send(HeldRecord h, List<HeldRecord> out, Set<HeldRecord> sent) {
+        if (h == null) {
+            return;
+        }
+        // Already released when the watermark passed it too; then it is in the caller's list.
+        buffer.release(h);
+        out.add(h);
+        if (sent != null) {
+            sent.add(h);
+        }
+    }
+
+    private Machine machine(int machineId) {
+        Machine m = machines.get(machineId);
+        if (m == null) {
+            m = new Machine();
+            machines.put(machineId, m);
+        }
+        return m;
+    }
+
+    private long norm(long seq) {
+        return modulus > 0 ? ((seq % modulus) + modulus) % modulus : seq;
+    }
+
+    private long inc(long seq) {
+        return modulus > 0 ? (seq + 1) % modulus : seq + 1;
+    }
+
+    /**
+     * @return true if a comes before b in serial number order
+     */
+    private boolean before(long a, long b) {
+        if (modulus <= 0) {
+            return a < b;
+        }
+        long d = norm(b - a);
+        return d != 0 && d <= modulus / 2;
+    }
+
+    private class SerialOrder implements Comparator<Long> {
+        @Override
+        public int compare(Long a, Long b) {
+            return a.equals(b) ? 0 : before(a, b) ? -1 : 1;
+        }
+    }
+
+    private static class Machine {
+        final Map<Long, HeldRecord> waiting = new HashMap<Long, HeldRecord>();
+        boolean known;
+        long next;
+        long lastSeenMillis;
+    }
+}
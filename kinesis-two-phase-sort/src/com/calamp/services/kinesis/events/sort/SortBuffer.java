@@ -0,0 +1,373 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+
+/**
+ * Per-shard holding area for events that are not yet old enough to be written
+ * to the ordered stream. Events stay on the heap across processRecords calls
+ * (instead of being put back onto the unordered stream) and come out in
+ * CalAmpEventPriorityComparator order once the event-time watermark passes them.
+ * Only the sort key is decoded; the record itself is held as received.
+ *
+ * The buffer also remembers the shard order in which records arrived
+ * (Arrivals), so it can tell the processor the highest Kinesis sequence number
+ * that is safe to checkpoint: every record at or below it has already been
+ * released (or skipped). Anything still held is re-read from the stream after
+ * a fail over.
+ *
+ * Held events are kept as one sorted run in parallel primitive arrays (time,
+ * sequence number and the KeyRadixSort tie word) plus the events added since
+ * the last release. A release radix sorts the new events on their packed keys,
+ * merges them into the run, and cuts the released prefix off the front, so no
+ * comparator or per-event heap node is involved. The arrays only grow.
+ *
+ * An event may also leave early through release(HeldRecord), e.g. when its
+ * machine's sequence shows nothing can come before it. It stays in the arrays
+ * as a tombstone until the watermark passes it.
+ *
+ * With a byte budget, once the held records take more than maxBytes the
+ * records of the newest keys (those released last) are spilled to memory
+ * mapped segment files (SpillStore) until a quarter of the budget is free
+ * again. Only the records go; keys stay in the arrays, so release order is
+ * unchanged and a spilled record is simply read back as it is released. A
+ * held record is counted as its data, sequence number and partition key
+ * plus a fixed overhead; the keys and the event objects themselves are not
+ * counted. If a spill fails the buffer stops spilling and holds everything
+ * on the heap.
+ */
+public class SortBuffer {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // Record, ByteBuffer and String objects around a record's bytes.
+    private static final int RECORD_OVERHEAD = 160;
+
+    private final KeyRadixSort radix = new KeyRadixSort();
+    private final Arrivals arrivals = new Arrivals();
+
+    // Sorted run of held events, at [runStart, runEnd).
+    private long[] runTime = new long[INITIAL_CAPACITY];
+    private long[] runSeq = new long[INITIAL_CAPACITY];
+    private long[] runTie = new long[INITIAL_CAPACITY];
+    private BufferedEvent[] runEvents = new BufferedEvent[INITIAL_CAPACITY];
+    private int runStart;
+    private int runEnd;
+
+    // Merge target, swapped with the run after each merge.
+    private long[] mergeTime = new long[INITIAL_CAPACITY];
+    private long[] mergeSeq = new long[INITIAL_CAPACITY];
+    private long[] mergeTie = new long[INITIAL_CAPACITY];
+    private BufferedEvent[] mergeEvents = new BufferedEvent[INITIAL_CAPACITY];
+
+    // Events added since the last release, in arrival order.
+    private long[] newTime = new long[INITIAL_CAPACITY];
+    private long[] newSeq = new long[INITIAL_CAPACITY];
+    private long[] newTie = new long[INITIAL_CAPACITY];
+    private BufferedEvent[] newEvents = new BufferedEvent[INITIAL_CAPACITY];
+    private int[] order = new int[INITIAL_CAPACITY];
+    private int pending;
+    // Released early but still in the run or pending arrays.
+    private int tombstones;
+
+    private final long maxBytes;
+    private final SpillStore spill;
+    private long memoryBytes;
+    private int spilledEvents;
+    private IOException spillFailure;
+
+    /**
+     * A buffer that holds everything on the heap.
+     */
+    public SortBuffer() {
+        this(Long.MAX_VALUE, null, 0);
+    }
+
+    /**
+     * @param maxBytes held record bytes kept on the heap before spilling
+     * @param spillDirectory where segment files are created
+     * @param segmentBytes size of each segment file
+     */
+    public SortBuffer(long maxBytes, File spillDirectory, int segmentBytes) {
+        this.maxBytes = maxBytes;
+        this.spill = maxBytes < Long.MAX_VALUE ? new SpillStore(spillDirectory, segmentBytes) : null;
+    }
+
+    /**
+     * Holds a record until the watermark passes it.
+     *
+     * @param key sort key read from the record
+     * @param record the record as received from the shard
+     * @return the held event, for release(HeldRecord)
+     */
+    public HeldRecord add(CalAmpEventKey key, Record record) {
+        BufferedEvent be = arrivals.held(key, record);
+        if (pending == newTime.length) {
+            int capacity = pending * 2;
+            newTime = Arrays.copyOf(newTime, capacity);
+            newSeq = Arrays.copyOf(newSeq, capacity);
+            newTie = Arrays.copyOf(newTie, capacity);
+            newEvents = Arrays.copyOf(newEvents, capacity);
+            order = new int[capacity];
+        }
+        newTime[pending] = key.getTimeStamp();
+        newSeq[pending] = key.getSequenceNumber();
+        newTie[pending] = KeyRadixSort.tie(key.getIsAnAck(), key.getMachineId());
+        newEvents[pending] = be;
+        pending++;
+        memoryBytes += heldBytes(record);
+        if (memoryBytes > maxBytes && spillFailure == null) {
+            spillNewest();
+        }
+        return be;
+    }
+
+    /**
+     * Records a shard position that has nothing to hold (unparseable record,
+     * duplicate) so the checkpoint may move past it.
+     */
+    public void skip(String recordSequenceNumber) {
+        arrivals.skipped(recordSequenceNumber);
+    }
+
+    /**
+     * Releases one held event ahead of the watermark. The caller sends it on.
+     *
+     * @param held an event returned by add
+     * @return false if it had already been released
+     */
+    public boolean release(HeldRecord held) {
+        BufferedEvent be = (BufferedEvent) held;
+        if (be.released) {
+            return false;
+        }
+        be.released = true;
+        tombstones++;
+        unspill(be);
+        return true;
+    }
+
+    /**
+     * Removes and returns, in priority order, every held event at or below the watermark.
+     */
+    public List<HeldRecord> releaseThrough(long watermark) {
+        mergePending();
+        int end = runStart;
+        while (end < runEnd && runTime[end] <= watermark) {
+            end++;
+        }
+        return releaseTo(end);
+    }
+
+    /**
+     * Removes and returns every held event regardless of age, used when the
+     * shard ends and nothing more will arrive.
+     */
+    public List<HeldRecord> releaseAll() {
+        mergePending();
+        return releaseTo(runEnd);
+    }
+
+    /**
+     * @return the highest sequence number below which nothing is held, or null
+     * if no record has been fully handled yet.
+     */
+    public String getCheckpointSequenceNumber() {
+        return arrivals.getCheckpointSequenceNumber();
+    }
+
+    public int size() {
+        return runEnd - runStart + pending - tombstones;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return estimated bytes of held records on the heap
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return bytes of held records in spill segments
+     */
+    public long getSpilledBytes() {
+        return spill != null ? spill.bytes() : 0;
+    }
+
+    public int getSpilledEvents() {
+        return spilledEvents;
+    }
+
+    /**
+     * @return the error that stopped spilling, or null
+     */
+    public IOException getSpillFailure() {
+        return spillFailure;
+    }
+
+    /**
+     * Deletes the spill segments, e.g. when the shard is given up. Spilled
+     * events still held are lost, as after a fail over.
+     */
+    public void close() {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    private List<HeldRecord> releaseTo(int end) {
+        List<HeldRecord> released = new ArrayList<HeldRecord>(end - runStart);
+        for (int i = runStart; i < end; i++) {
+            BufferedEvent be = runEvents[i];
+            runEvents[i] = null;
+            if (be.released) {
+                tombstones--;
+                continue;
+            }
+            be.released = true;
+            unspill(be);
+            released.add(be);
+        }
+        runStart = end;
+        if (runStart == runEnd) {
+            runStart = 0;
+            runEnd = 0;
+        }
+        arrivals.advance();
+        return released;
+    }
+
+    /**
+     * Sorts the events added since the last release and merges them into the
+     * run. On equal keys the run goes first, so equal events leave in arrival order.
+     */
+    private void mergePending() {
+        if (pending == 0) {
+            return;
+        }
+        for (int i = 0; i < pending; i++) {
+            order[i] = i;
+        }
+        radix.sort(newTime, newSeq, newTie, order, pending);
+
+        int total = runEnd - runStart + pending;
+        if (mergeTime.length < total) {
+            int capacity = Math.max(total, mergeTime.length * 2);
+            mergeTime = new long[capacity];
+            mergeSeq = new long[capacity];
+            mergeTie = new long[capacity];
+            mergeEvents = new BufferedEvent[capacity];
+        }
+        int r = runStart;
+        int p = 0;
+        int out = 0;
+        while (r < runEnd && p < pending) {
+            int n = order[p];
+            if (compare(newTime[n], newSeq[n], newTie[n], runTime[r], runSeq[r], runTie[r]) < 0) {
+                put(out++, newTime[n], newSeq[n], newTie[n], newEvents[n]);
+                newEvents[n] = null;
+                p++;
+            } else {
+                put(out++, runTime[r], runSeq[r], runTie[r], runEvents[r]);
+                runEvents[r] = null;
+                r++;
+            }
+        }
+        while (p < pending) {
+            int n = order[p++];
+            put(out++, newTime[n], newSeq[n], newTie[n], newEvents[n]);
+            newEvents[n] = null;
+        }
+        int rest = runEnd - r;
+        System.arraycopy(runTime, r, mergeTime, out, rest);
+        System.arraycopy(runSeq, r, mergeSeq, out, rest);
+        System.arraycopy(runTie, r, mergeTie, out, rest);
+        System.arraycopy(runEvents, r, mergeEvents, out, rest);
+        Arrays.fill(runEvents, r, runEnd, null);
+        pending = 0;
+
+        long[] t = runTime;
+        runTime = mergeTime;
+        mergeTime = t;
+        t = runSeq;
+        runSeq = mergeSeq;
+        mergeSeq = t;
+        t = runTie;
+        runTie = mergeTie;
+        mergeTie = t;
+        BufferedEvent[] e = runEvents;
+        runEvents = mergeEvents;
+        mergeEvents = e;
+        runStart = 0;
+        runEnd = total;
+    }
+
+    /**
+     * Spills records from the newest end of the run until a quarter of the
+     * budget is free.
+     */
+    private void spillNewest() {
+        mergePending();
+        long target = maxBytes - maxBytes / 4;
+        for (int i = runEnd - 1; i >= runStart && memoryBytes > target; i--) {
+            BufferedEvent be = runEvents[i];
+            if (be.released || be.segment != null) {
+                continue;
+            }
+            long bytes = heldBytes(be.getRecord());
+            try {
+                spill.spill(be);
+            } catch (IOException e) {
+                spillFailure = e;
+                return;
+            }
+            memoryBytes -= bytes;
+            spilledEvents++;
+        }
+    }
+
+    /**
+     * Accounts for an event leaving the buffer, reading its record back if spilled.
+     */
+    private void unspill(BufferedEvent be) {
+        if (be.segment != null) {
+            spill.load(be);
+            spilledEvents--;
+        } else {
+            memoryBytes -= heldBytes(be.getRecord());
+        }
+    }
+
+    private static long heldBytes(Record record) {
+        String seq = record.getSequenceNumber();
+        String pk = record.getPartitionKey();
+        return record.getData().remaining() + 2L * ((seq != null ? seq.length() : 0) + (pk != null ? pk.length() : 0))
+                + RECORD_OVERHEAD;
+    }
+
+    private void put(int i, long time, long seq, long tie, BufferedEvent be) {
+        mergeTime[i] = time;
+        mergeSeq[i] = seq;
+        mergeTie[i] = tie;
+        mergeEvents[i] = be;
+    }
+
+    private static int compare(long t1, long s1, long k1, long t2, long s2, long k2) {
+        if (t1 != t2) {
+            return t1 < t2 ? -1 : 1;
+        }
+        if (s1 != s2) {
+            return s1 < s2 ? -1 : 1;
+        }
+        return k1 < k2 ? -1 : (k1 == k2 ? 0 : 1);
+    }
+}
@@ -0,0 +1,179 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Memory mapped segment files that hold the records of spilled events while
+ * their keys stay in the sort buffer. A record is appended to the current
+ * segment and read back (into a fresh heap buffer) when its event is
+ * released. A segment whose records have all been read back is reset for
+ * reuse if it is the current one, kept as the one spare otherwise, or
+ * dropped.
+ *
+ * Each file is deleted as soon as it is mapped. On POSIX systems the mapping
+ * stays valid, so nothing is left behind by a worker that dies; where the
+ * delete fails it is retried when the segment is dropped. The mapping itself
+ * goes when the buffer is garbage collected.
+ *
+ * Record layout: data length, data, sequence number and partition key (both
+ * as length prefixed UTF-8).
+ *
+ * Not thread safe; owned by one SortBuffer.
+ */
+class SpillStore {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final int segmentBytes;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment current;
+    private Segment spare;
+    private long bytes;
+
+    SpillStore(File directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Writes the event's record to a segment and drops it from the event.
+     */
+    void spill(BufferedEvent be) throws IOException {
+        Record r = be.getRecord();
+        ByteBuffer data = r.getData().duplicate();
+        byte[] seq = bytes(r.getSequenceNumber());
+        byte[] pk = bytes(r.getPartitionKey());
+        int length = 4 + data.remaining() + 2 + seq.length + 2 + pk.length;
+        if (current == null || current.buffer.capacity() - current.position < length) {
+            current = segment(length);
+        }
+        ByteBuffer b = current.buffer;
+        b.position(current.position);
+        b.putInt(data.remaining());
+        b.put(data);
+        b.putShort((short) seq.length);
+        b.put(seq);
+        b.putShort((short) pk.length);
+        b.put(pk);
+        be.segment = current;
+        be.offset = current.position;
+        be.setRecord(null);
+        current.position += length;
+        current.live++;
+        bytes += length;
+    }
+
+    /**
+     * Reads a spilled event's record back and frees its place.
+     */
+    void load(BufferedEvent be) {
+        Segment s = be.segment;
+        ByteBuffer b = s.buffer.duplicate();
+        b.position(be.offset);
+        byte[] data = new byte[b.getInt()];
+        b.get(data);
+        byte[] seq = new byte[b.getShort()];
+        b.get(seq);
+        byte[] pk = new byte[b.getShort()];
+        b.get(pk);
+        be.setRecord(new Record().withData(ByteBuffer.wrap(data)).withSequenceNumber(string(seq))
+                .withPartitionKey(string(pk)));
+        be.segment = null;
+        bytes -= b.position() - be.offset;
+        if (--s.live == 0) {
+            drained(s);
+        }
+    }
+
+    /**
+     * @return bytes of spilled records not yet read back
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return mapped segments, including the spare
+     */
+    int segments() {
+        return segments.size();
+    }
+
+    /**
+     * Drops every segment. Spilled events can no longer be loaded.
+     */
+    void close() {
+        for (Segment s : segments) {
+            s.file.delete();
+        }
+        segments.clear();
+        current = null;
+        spare = null;
+        bytes = 0;
+    }
+
+    private void drained(Segment s) {
+        s.position = 0;
+        if (s == current) {
+            return;
+        }
+        if (spare == null && s.buffer.capacity() == segmentBytes) {
+            spare = s;
+            return;
+        }
+        s.file.delete();
+        segments.remove(s);
+    }
+
+    private Segment segment(int length) throws IOException {
+        if (spare != null && length <= spare.buffer.capacity()) {
+            Segment s = spare;
+            spare = null;
+            return s;
+        }
+        File file = File.createTempFile("sort-spill-", ".seg", directory);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int capacity = Math.max(segmentBytes, length);
+            raf.setLength(capacity);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            Segment s = new Segment(file, buffer);
+            segments.add(s);
+            return s;
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s != null ? s.getBytes(UTF8) : new byte[0];
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, UTF8);
+    }
+
+    static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+        int live;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.calamp.services.kinesis.events.sort;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Event-time low watermark over one or more sources (a shard, or the partition
+ * keys within it). Each source contributes the highest event time seen on it
+ * minus the allowed lateness; the low watermark is the minimum over sources and
+ * never moves backwards.
+ *
+ * Only differences of the local clock are used (how long a source has been
+ * quiet), never a comparison of the local clock with producer time stamps, so
+ * skew between producer and sorter hosts does not affect ordering. A source
+ * that stays quiet longer than the idle timeout has its watermark advanced by
+ * the elapsed quiet time so it cannot hold everything else back.
+ */
+public class WatermarkTracker {
+
+    private long allowedLatenessMillis;
+    private final long idleTimeoutMillis;
+    private final Map<String, Source> sources;
+    private long watermark;
+
+    public WatermarkTracker(long allowedLatenessMillis, long idleTimeoutMillis) {
+        this.allowedLatenessMillis = allowedLatenessMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.sources = new HashMap<String, Source>();
+        this.watermark = Long.MIN_VALUE;
+    }
+
+    /**
+     * Notes an event time seen on a source.
+     */
+    public void observe(String source, long eventTime, long nowMillis) {
+        Source s = sources.get(source);
+        if (s == null) {
+            s = new Source(eventTime, nowMillis);
+            sources.put(source, s);
+        }
+        else {
+            s.maxEventTime = Math.max(s.maxEventTime, eventTime);
+            s.lastSeenMillis = nowMillis;
+        }
+    }
+
+    /**
+     * Recomputes and returns the low watermark. Sources that have been quiet for
+     * more than a hundred idle timeouts are forgotten.
+     */
+    public long advance(long nowMillis) {
+        if (sources.isEmpty()) {
+            return watermark;
+        }
+        long low = Long.MAX_VALUE;
+        Iterator<Source> it = sources.values().iterator();
+        while (it.hasNext()) {
+            Source s = it.next();
+            long quiet = nowMillis - s.lastSeenMillis;
+            if (quiet > 100 * idleTimeoutMillis && sources.size() > 1) {
+                it.remove();
+                continue;
+            }
+            long w = s.maxEventTime - allowedLatenessMillis;
+            if (quiet > idleTimeoutMillis) {
+                w += quiet - idleTimeoutMillis;
+            }
+            low = Math.min(low, w);
+        }
+        if (low != Long.MAX_VALUE && low > watermark) {
+            watermark = low;
+        }
+        return watermark;
+    }
+
+    /**
+     * @return the last computed low watermark, Long.MIN_VALUE until the first advance.
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * An event is late when the watermark has already passed it: events at or
+     * below the watermark have been released, so it can no longer be placed in order.
+     */
+    public boolean isLate(long eventTime) {
+        return eventTime <= watermark;
+    }
+
+    public long getAllowedLatenessMillis() {
+        return allowedLatenessMillis;
+    }
+
+    /**
+     * Changes the allowed lateness, e.g. from a ReorderWindow. A smaller value
+     * takes effect on the next advance; the watermark itself never moves back.
+     */
+    public void setAllowedLatenessMillis(long allowedLatenessMillis) {
+        this.allowedLatenessMillis = allowedLatenessMillis;
+    }
+
+    private static class Source {
+        long maxEventTime;
+        long lastSeenMillis;
+
+        Source(long maxEventTime, long lastSeenMillis) {
+            this.maxEventTime = maxEventTime;
+            this.lastSeenMillis = lastSeenMillis;
+        }
+    }
+}
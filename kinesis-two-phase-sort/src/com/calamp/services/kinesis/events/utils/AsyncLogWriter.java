@@ -0,0 +1,299 @@
+package com.calamp.services.kinesis.events.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audit log writer that keeps file I/O off the callers' threads.
+ *
+ * Callers put finished lines into a bounded lock-free ring buffer (a
+ * multi-producer single-consumer array queue where every slot carries its own
+ * sequence number). One daemon thread drains the ring in batches, groups the
+ * lines of a batch per file and writes each group with a single write to a
+ * FileChannel that stays open for the life of the process.
+ *
+ * When the ring is full, a line is either dropped (counted in the log.dropped
+ * metric) or the caller waits for room, per the overflow policy. Once the
+ * writer thread has died no room is coming, so lines are dropped and counted
+ * whatever the policy. A file that fails to write loses its lines of that
+ * batch and is reopened for the next one. Durability is set by the fsync
+ * policy: never (the OS decides, which is what the old per line flush gave),
+ * after every batch, or at most once per interval.
+ */
+public class AsyncLogWriter {
+
+	public enum Overflow { DROP, BLOCK }
+
+	public enum Fsync { NEVER, BATCH, INTERVAL }
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String NEWLINE = System.getProperty("line.separator");
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final int mask;
+	private final AtomicReferenceArray<Line> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head;
+	private volatile long written;
+
+	private final Overflow overflow;
+	private final Fsync fsync;
+	private final long fsyncIntervalMillis;
+	private final int maxBatch;
+	private final Thread writer;
+	private volatile boolean stopping;
+
+	private final Map<String, FileChannel> channels = new HashMap<String, FileChannel>();
+	private long lastForce = System.currentTimeMillis();
+
+	/**
+	 * @param capacity ring size, rounded up to a power of two
+	 */
+	public AsyncLogWriter(int capacity, Overflow overflow, Fsync fsync, long fsyncIntervalMillis, int maxBatch) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<Line>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.overflow = overflow;
+		this.fsync = fsync;
+		this.fsyncIntervalMillis = fsyncIntervalMillis;
+		this.maxBatch = maxBatch;
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "async-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		}, "async-log-writer-close"));
+	}
+
+	/**
+	 * Queues one line for a file.
+	 *
+	 * @param truncate empty the file before this line is written
+	 * @return false if the line was dropped because the ring was full
+	 */
+	public boolean append(String path, boolean truncate, String line) {
+		Line l = new Line(path, truncate, line);
+		while (true) {
+			long pos = tail.get();
+			int i = (int) pos & mask;
+			long diff = sequences.get(i) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots.lazySet(i, l);
+					sequences.set(i, pos + 1);
+					return true;
+				}
+			}
+			else if (diff < 0) {
+				if (overflow == Overflow.DROP || stopping || !writer.isAlive()) {
+					Metrics.add("log.dropped", 1);
+					return false;
+				}
+				LockSupport.parkNanos(FULL_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Waits until every line queued before this call has been written.
+	 */
+	public void flush() {
+		long target = tail.get();
+		while (written < target && writer.isAlive()) {
+			LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Writes what is queued, closes the files and stops the writer thread.
+	 */
+	public void close() {
+		stopping = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long queued() {
+		return tail.get() - head;
+	}
+
+	private void drainLoop() {
+		List<Line> batch = new ArrayList<Line>(maxBatch);
+		while (true) {
+			boolean done = stopping;
+			poll(batch);
+			if (batch.isEmpty()) {
+				if (done) {
+					break;
+				}
+				if (fsync == Fsync.INTERVAL) {
+					forceIfDue();
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			try {
+				write(batch);
+			} catch (RuntimeException e) {
+				// Lose the batch, not the writer: callers would wait on a full ring forever.
+				e.printStackTrace();
+			}
+			written = head;
+			batch.clear();
+		}
+		for (FileChannel ch : channels.values()) {
+			try {
+				ch.force(false);
+				ch.close();
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+		channels.clear();
+	}
+
+	/**
+	 * Moves up to maxBatch published lines from the ring into the batch.
+	 */
+	private void poll(List<Line> batch) {
+		long pos = head;
+		while (batch.size() < maxBatch) {
+			int i = (int) pos & mask;
+			if (sequences.get(i) != pos + 1) {
+				break;
+			}
+			batch.add(slots.get(i));
+			slots.lazySet(i, null);
+			sequences.set(i, pos + mask + 1);
+			pos++;
+		}
+		head = pos;
+	}
+
+	/**
+	 * Writes a batch with one write per file. A truncating line discards what
+	 * was gathered for its file so far in the batch, as the file would be
+	 * emptied anyway.
+	 */
+	private void write(List<Line> batch) {
+		Map<String, StringBuilder> perFile = new LinkedHashMap<String, StringBuilder>();
+		Map<String, Boolean> truncate = new HashMap<String, Boolean>();
+		for (Line l : batch) {
+			StringBuilder sb = perFile.get(l.path);
+			if (sb == null || l.truncate) {
+				sb = new StringBuilder();
+				perFile.put(l.path, sb);
+			}
+			if (l.truncate) {
+				truncate.put(l.path, Boolean.TRUE);
+			}
+			sb.append(l.text).append(NEWLINE);
+		}
+		for (Map.Entry<String, StringBuilder> e : perFile.entrySet()) {
+			try {
+				FileChannel ch = channel(e.getKey(), truncate.containsKey(e.getKey()));
+				ByteBuffer bytes = ByteBuffer.wrap(e.getValue().toString().getBytes(UTF8));
+				while (bytes.hasRemaining()) {
+					ch.write(bytes);
+				}
+				if (fsync == Fsync.BATCH) {
+					ch.force(false);
+				}
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+				closeQuietly(channels.remove(e.getKey()));
+			} catch (RuntimeException re) {
+				re.printStackTrace();
+				closeQuietly(channels.remove(e.getKey()));
+			}
+		}
+		if (fsync == Fsync.INTERVAL) {
+			forceIfDue();
+		}
+	}
+
+	private FileChannel channel(String path, boolean truncate) throws IOException {
+		FileChannel ch = channels.get(path);
+		if (truncate) {
+			closeQuietly(ch);
+			ch = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			channels.put(path, ch);
+		}
+		else if (ch == null) {
+			ch = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+			channels.put(path, ch);
+		}
+		return ch;
+	}
+
+	private void forceIfDue() {
+		long now = System.currentTimeMillis();
+		if (now - lastForce < fsyncIntervalMillis) {
+			return;
+		}
+		lastForce = now;
+		for (FileChannel ch : channels.values()) {
+			try {
+				ch.force(false);
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+
+	private static void closeQuietly(FileChannel ch) {
+		if (ch != null) {
+			try {
+				ch.close();
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+
+	private static final class Line {
+		final String path;
+		final boolean truncate;
+		final String text;
+
+		Line(String path, boolean truncate, String text) {
+			this.path = path;
+			this.truncate = truncate;
+			this.text = text;
+		}
+	}
+}
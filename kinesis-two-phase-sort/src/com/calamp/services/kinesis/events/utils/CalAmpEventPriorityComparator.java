@@ -2,18 +2,34 @@ package com.calamp.services.kinesis.events.utils;
 
 import java.util.Comparator;
 
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
+
 public class CalAmpEventPriorityComparator implements Comparator<com.calamp.services.kinesis.events.data.CalAmpEvent>{
 
-	/**Returns a negative integer, zero, or a positive integer as the first argument 
+	/**Returns a negative integer, zero, or a positive integer as the first argument
 	 * is less than, equal to, or greater than the second.
 	 */
 	@Override
 	public int compare(com.calamp.services.kinesis.events.data.CalAmpEvent e1, com.calamp.services.kinesis.events.data.CalAmpEvent e2){
-		int c1 = (int) ( e1.getTimeStamp() - e2.getTimeStamp() );		//Sort by time-stamp 
-		int c2 = (int) ( e1.getSequenceNumber() - e2.getSequenceNumber() );			//then by sequence number
-		int c3 = (int) ( (e1.getIsAnAck() ? 1 : 0) - (e2.getIsAnAck() ? 1 : 0) );		//then by boolean "is message_type==1" (true has precedence)
-		int c4 = (int) ( e1.getMachineId() - e2.getMachineId() );	//then by machine identifier.
-		
+		return compareFields(e1.getTimeStamp(), e1.getSequenceNumber(), e1.getIsAnAck(), e1.getMachineId(),
+				e2.getTimeStamp(), e2.getSequenceNumber(), e2.getIsAnAck(), e2.getMachineId());
+	}
+
+	/**Same order as {@link #compare}, on keys read straight from record bytes.
+	 */
+	public static int compareKeys(CalAmpEventKey k1, CalAmpEventKey k2){
+		return compareFields(k1.getTimeStamp(), k1.getSequenceNumber(), k1.getIsAnAck(), k1.getMachineId(),
+				k2.getTimeStamp(), k2.getSequenceNumber(), k2.getIsAnAck(), k2.getMachineId());
+	}
+
+	static int compareFields(long t1, long s1, boolean a1, long m1, long t2, long s2, boolean a2, long m2){
+		// Long.compare rather than a subtraction cast to int, which overflows
+		// for time-stamps more than about 24 days apart.
+		int c1 = Long.compare(t1, t2);		//Sort by time-stamp
+		int c2 = Long.compare(s1, s2);			//then by sequence number
+		int c3 = Boolean.compare(a1, a2);		//then by boolean "is message_type==1" (true has precedence)
+		int c4 = Long.compare(m1, m2);	//then by machine identifier.
+
 		if( c1 != 0 ){
 			return c1;
 		}
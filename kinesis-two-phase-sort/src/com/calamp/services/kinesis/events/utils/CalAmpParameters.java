@@ -1,24 +1,82 @@
 package com.calamp.services.kinesis.events.utils;
 
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.sort.OrderingScope;
+
 public final class CalAmpParameters {
 
 	public final static Boolean alwaysPoll = true;
-	public final static Integer pollDelayMillis = 1;//1000; 
+	public final static Integer pollDelayMillis = 1;//1000; //Shortest pause between reads of a shard.
+	public final static Integer pollMaxIdleMillis = 200; //Longest pause, reached by doubling over empty reads.
+	public final static Integer pollMinRecords = 100; //Smallest read limit of a shard that is keeping up.
+	public final static Integer pollCatchUpMillis = 1000; //Millis behind the tip from which a shard reads full batches back to back.
 	public final static Integer writerSleepMillis = 1;//1000;
 	public final static Integer minimumAgeMillis = 2000;
 	public final static Integer maxRecordsPerPut = 500; //Kinesis variable, must be 500.
+	public final static Integer maxBytesPerPut = 5 * 1024 * 1024; //Kinesis limit per PutRecords request.
+	public final static Integer maxBytesPerRecord = 1024 * 1024; //Kinesis limit per record, data plus partition key.
+	public final static Integer putMaxInFlight = 4; //PutRecords requests outstanding at once per stream.
+	public final static Integer orderedPutMaxInFlight = 4; //Same, for the partition key ordered sender.
+	public final static Integer putBackoffBaseMillis = 50;
+	public final static Integer putBackoffMaxMillis = 5000;
+	public final static Boolean aggregateRecords = true; //Pack events into KPL format aggregated records when putting; readers de-aggregate either way.
+	public final static Integer aggregationBuckets = 64; //Aggregate partition keys the event partition keys are hashed to.
+	public final static Integer aggregationMaxBytes = 50 * 1024; //Largest aggregated record.
+	
+	public final static Integer checkpointIntervalMillis = 10000; //Least time between checkpoints of a shard.
+	public final static Integer checkpointEveryRecords = 100000; //Records after which a shard checkpoints before the interval, 0 for none.
+	public final static Integer checkpointBackoffBaseMillis = 200; //First wait after a throttled checkpoint, doubled per failure.
+	public final static Integer checkpointBackoffMaxMillis = 30000;
+	public final static Integer checkpointMaxAttempts = 10; //Tries for the final checkpoint at the end of a shard.
 	
 	public final static Integer maxRecPerPoll = 10000; //Amazon says 10000 is max.
 	public final static Integer randomMillisWindow = 3000;
+	public final static Integer allowedLatenessMillis = 2000; //How far behind the newest event time the watermark trails.
+	public final static Integer watermarkIdleMillis = 1000; //Quiet time after which a source's watermark follows the local clock.
+	public final static Boolean watermarkPerPartitionKey = false; //Track the watermark per machine instead of per shard.
+	public final static Boolean adaptiveWindow = true; //Size allowedLatenessMillis from the measured disorder.
+	public final static Double disorderQuantile = 0.999; //Fraction of events the adaptive window should keep in order.
+	public final static Integer minWindowMillis = 50;
+	public final static Integer maxWindowMillis = 10000;
+	public final static Integer windowHalfLifeMillis = 10000; //Time for the adaptive window to shrink halfway to a lower measured disorder.
+	public final static Integer dedupRetentionMillis = 60000; //How long an event identity is remembered for duplicate detection.
+	public final static Integer dedupMaxEntries = 200000; //Upper bound on remembered identities per shard.
+	public final static Boolean releaseOnSequence = false; //Release an event as soon as it continues its machine's sequence numbers.
+	public final static Integer machineSequenceModulus = 511; //Machine sequence numbers wrap to 0 here (0 to 510); 0 if they never wrap.
+	public final static OrderingScope orderingScope = OrderingScope.SHARD; //GLOBAL merges all shards of a worker, MACHINE orders each machine on its own.
+	public final static String globalOrderPartitionKey = "global-order"; //Partition key of every record put in global order.
+	public final static String globalOrderExplicitHashKey = null; //If set, picks the ordered stream shard instead of the partition key.
+	public final static Integer mergeIdleShardMillis = 5000; //Time without progress after which a shard stops holding back the merge.
+	public final static Long sortBufferMaxBytes = 256L * 1024 * 1024; //Record bytes a shard's sort buffer keeps on the heap before spilling the newest to disk.
+	public final static String spillDirectory = System.getProperty("java.io.tmpdir"); //Where spill segment files go.
+	public final static Integer spillSegmentBytes = 64 * 1024 * 1024; //Size of each memory mapped spill segment file.
+	public final static Long backfillMemoryBytes = 512L * 1024 * 1024; //Record bytes a backfill sort holds on the heap over all its run generating threads.
+	public final static Integer backfillMergeFanIn = 64; //Most sorted runs merged at once; more runs take extra merge passes.
+	public final static Integer catchUpEnterPolls = 3; //Reads in a row that fill maxRecPerPoll after which a shard's sorter switches to catch-up mode.
+	public final static Integer catchUpEmitEvents = 50000; //Released events gathered over consecutive polls in catch-up mode before they are put.
+	public final static Boolean lateEventsToStream = false; //Put late events to lateStreamName instead of only logging them.
 	public final static String unorderdStreamName = "unordered-message-stream"; 
 	public final static String orderedStreamName = "ordered-message-stream"; 
+	public final static String lateStreamName = "late-message-stream"; 
 	public final static String sortAppName = "sorting-buffer-app";
 	public final static String consumeAppName = "consume-ordered-events-app";
 	public final static String regionName = "us-west-2";
+	public final static CalAmpEventCodec wireCodec = CalAmpEventCodec.JSON; //Format used when putting; both are always accepted when reading.
+	public final static Integer metricsReportMillis = 10000;
 	
 	//Logs
 	public final static String writeLogName = "kinesis-write-batch.log";
 	public final static String bufferLogName = "kinesis-buffer-batch.log";
 	public final static String readLogName = "kinesis-read-batch.log";
 	public final static String putLogName = "kinesis-stream-puts-batch.log";
+	public final static String lateLogName = "kinesis-late-batch.log";
+	public final static String metricsLogName = "kinesis-metrics.log";
+	public final static Integer logQueueCapacity = 65536; //Lines buffered for the log writer thread.
+	public final static AsyncLogWriter.Overflow logOverflow = AsyncLogWriter.Overflow.BLOCK; //DROP loses lines instead of waiting when the buffer is full.
+	public final static AsyncLogWriter.Fsync logFsync = AsyncLogWriter.Fsync.NEVER;
+	public final static Integer logFsyncIntervalMillis = 1000; //Used with Fsync.INTERVAL.
+	public final static Integer logMaxBatch = 4096; //Lines written per drain of the buffer.
+	public final static Trace.Level traceLevel = Trace.Level.KEYS; //Per record audit lines; PAYLOAD also logs the decoded event.
+	public final static Integer traceSampleEvery = 1; //Log one record in N per log file.
+	public final static Integer traceMaxPerSecond = 0; //Per log file cap on record lines, 0 for none.
 }
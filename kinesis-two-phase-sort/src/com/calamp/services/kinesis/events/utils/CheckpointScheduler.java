@@ -0,0 +1,194 @@
+package com.calamp.services.kinesis.events.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.KinesisClientLibDependencyException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+
+/**
+ * Coalesces the checkpoints of one shard. Processors offer the highest
+ * sequence number that is safe to checkpoint after every poll; it is written
+ * with checkpoint(sequenceNumber) only once the interval has passed or enough
+ * records have been handled since the last checkpoint, so a fast polling
+ * processor does not write the lease table on every poll.
+ *
+ * A throttled checkpoint (or one that failed on the lease table) is not
+ * dropped: it stays pending and is retried on a later offer after a jittered
+ * exponential backoff, with whatever sequence number is then the highest.
+ * After a ShutdownException the lease is gone and nothing more is written.
+ *
+ * Reports per shard, under the given name: checkpoints, throttledCheckpoints
+ * and failedCheckpoints (counters), checkpointMillis (last latency),
+ * checkpointMaxMillis and checkpointsPerMinute (over the last minute) and
+ * uncheckpointedRecords.
+ *
+ * Not thread safe; one per record processor.
+ */
+public class CheckpointScheduler {
+
+	private static final Log LOG = LogFactory.getLog(CheckpointScheduler.class);
+	private static final long RATE_WINDOW_MILLIS = 60000;
+
+	private final String name;
+	private final long intervalMillis;
+	private final long everyRecords;
+	private String pending;
+	private String checkpointed;
+	private long records;
+	private long lastCheckpointMillis;
+	private int failures;
+	private long retryAtMillis;
+	private boolean shutdown;
+	private long windowStartMillis;
+	private int windowCheckpoints;
+	private long windowMaxMillis;
+
+	public CheckpointScheduler(String name) {
+		this(name, CalAmpParameters.checkpointIntervalMillis, CalAmpParameters.checkpointEveryRecords);
+	}
+
+	/**
+	 * @param name shard name used in logs and as the metrics prefix
+	 * @param everyRecords records after which a checkpoint is due before the interval, 0 for interval only
+	 */
+	public CheckpointScheduler(String name, long intervalMillis, long everyRecords) {
+		this.name = name;
+		this.intervalMillis = intervalMillis;
+		this.everyRecords = everyRecords;
+		long now = System.currentTimeMillis();
+		this.lastCheckpointMillis = now;
+		this.windowStartMillis = now;
+	}
+
+	/**
+	 * Notes how far the shard may be checkpointed and checkpoints if due.
+	 *
+	 * @param sequenceNumber highest record whose events are all safely handled, or null if unchanged
+	 * @param handled records handled since the last offer
+	 * @return true if a checkpoint was written
+	 */
+	public boolean offer(IRecordProcessorCheckpointer checkpointer, String sequenceNumber, int handled, long nowMillis) {
+		if (sequenceNumber != null) {
+			pending = sequenceNumber;
+		}
+		records += handled;
+		boolean written = false;
+		if (isDue(nowMillis)) {
+			written = attempt(checkpointer, pending, nowMillis);
+		}
+		publish(nowMillis);
+		return written;
+	}
+
+	/**
+	 * Checkpoints now, retrying throttling up to checkpointMaxAttempts times
+	 * with backoff, for the end of a shard.
+	 *
+	 * @param sequenceNumber where to checkpoint, or null for every record delivered so far
+	 * @return true if the checkpoint was written
+	 */
+	public boolean flush(IRecordProcessorCheckpointer checkpointer, String sequenceNumber) {
+		for (int attempt = 1; ; attempt++) {
+			long now = System.currentTimeMillis();
+			if (attempt(checkpointer, sequenceNumber, now)) {
+				publish(now);
+				return true;
+			}
+			if (shutdown || attempt >= CalAmpParameters.checkpointMaxAttempts) {
+				LOG.error("Giving up checkpointing shard " + name + " after " + attempt + " attempts.");
+				return false;
+			}
+			try {
+				Thread.sleep(Math.max(0, retryAtMillis - now));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	private boolean isDue(long nowMillis) {
+		if (shutdown || pending == null || pending.equals(checkpointed) || nowMillis < retryAtMillis) {
+			return false;
+		}
+		return nowMillis - lastCheckpointMillis >= intervalMillis || (everyRecords > 0 && records >= everyRecords);
+	}
+
+	private boolean attempt(IRecordProcessorCheckpointer checkpointer, String sequenceNumber, long nowMillis) {
+		LOG.info("Checkpointing shard " + name + (sequenceNumber != null ? " at " + sequenceNumber : ""));
+		long start = System.nanoTime();
+		try {
+			if (sequenceNumber != null) {
+				checkpointer.checkpoint(sequenceNumber);
+			} else {
+				checkpointer.checkpoint();
+			}
+		} catch (ShutdownException se) {
+			// The lease has moved on (fail over); the new owner checkpoints from here.
+			LOG.info("Caught shutdown exception, no more checkpoints for shard " + name + ".", se);
+			shutdown = true;
+			return false;
+		} catch (ThrottlingException e) {
+			Metrics.add(name + ".throttledCheckpoints", 1);
+			backOff("Checkpoint of shard " + name + " throttled", e, nowMillis);
+			return false;
+		} catch (KinesisClientLibDependencyException e) {
+			Metrics.add(name + ".failedCheckpoints", 1);
+			backOff("Checkpoint of shard " + name + " failed on a dependency", e, nowMillis);
+			return false;
+		} catch (InvalidStateException e) {
+			// This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
+			Metrics.add(name + ".failedCheckpoints", 1);
+			backOff("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library", e, nowMillis);
+			return false;
+		} catch (IllegalArgumentException e) {
+			// Not a sequence number of this shard; retrying cannot help.
+			Metrics.add(name + ".failedCheckpoints", 1);
+			LOG.error("Cannot checkpoint shard " + name + " at " + sequenceNumber + ".", e);
+			if (sequenceNumber != null && sequenceNumber.equals(pending)) {
+				pending = null;
+			}
+			return false;
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		Metrics.add(name + ".checkpoints", 1);
+		Metrics.set(name + ".checkpointMillis", millis);
+		windowCheckpoints++;
+		windowMaxMillis = Math.max(windowMaxMillis, millis);
+		if (sequenceNumber != null) {
+			checkpointed = sequenceNumber;
+		}
+		records = 0;
+		failures = 0;
+		retryAtMillis = 0;
+		lastCheckpointMillis = nowMillis;
+		return true;
+	}
+
+	private void backOff(String message, Exception e, long nowMillis) {
+		failures++;
+		long step = CalAmpParameters.checkpointBackoffBaseMillis * (1L << Math.min(failures - 1, 20));
+		long cap = Math.min(step, CalAmpParameters.checkpointBackoffMaxMillis);
+		long wait = cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+		retryAtMillis = nowMillis + wait;
+		LOG.warn(message + ", retrying in " + wait + " ms (attempt " + failures + ").", e);
+	}
+
+	private void publish(long nowMillis) {
+		Metrics.set(name + ".uncheckpointedRecords", records);
+		long elapsed = nowMillis - windowStartMillis;
+		if (elapsed >= RATE_WINDOW_MILLIS) {
+			Metrics.set(name + ".checkpointsPerMinute", windowCheckpoints * 60000L / elapsed);
+			Metrics.set(name + ".checkpointMaxMillis", windowMaxMillis);
+			windowStartMillis = nowMillis;
+			windowCheckpoints = 0;
+			windowMaxMillis = 0;
+		}
+	}
+}
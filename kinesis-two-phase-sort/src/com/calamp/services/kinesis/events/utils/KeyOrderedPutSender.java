@@ -0,0 +1,252 @@
+package com.calamp.services.kinesis.events.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.InvalidArgumentException;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+
+/**
+ * PutRecords sender that keeps the order of entries sharing a partition key,
+ * even when some entries of a request fail.
+ *
+ * PutRecords gives no ordering guarantee inside a request, and retrying only
+ * the failed entries lets later entries of the same key overtake them. So each
+ * partition key gets its own FIFO lane and at most one entry per key is ever
+ * outstanding: a request takes the head entry of up to maxRecordsPerPut
+ * distinct idle lanes, and a lane's next entry is only sent once its head has
+ * been accepted. A failed head stays at the front of its lane and is retried
+ * after a jittered exponential backoff, while other keys keep flowing.
+ *
+ * Unrelated keys are still batched together and up to maxInFlight requests run
+ * at once. A single key is limited to one record per round trip. An entry over
+ * the record limit is not queued and fails the completion.
+ */
+public class KeyOrderedPutSender {
+
+	private static final Log LOG = LogFactory.getLog(KeyOrderedPutSender.class);
+
+	private final AmazonKinesis kc;
+	private final String streamName;
+	private final int maxInFlight;
+	private final ScheduledExecutorService executor;
+
+	private final Map<String, ArrayDeque<Pending>> lanes = new LinkedHashMap<String, ArrayDeque<Pending>>();
+	private final Set<String> busy = new HashSet<String>();
+	private int inFlight;
+
+	public KeyOrderedPutSender(AmazonKinesis kc, String streamName) {
+		this(kc, streamName, CalAmpParameters.orderedPutMaxInFlight);
+	}
+
+	public KeyOrderedPutSender(AmazonKinesis kc, final String streamName, int maxInFlight) {
+		this.kc = kc;
+		this.streamName = streamName;
+		this.maxInFlight = maxInFlight;
+		this.executor = Executors.newScheduledThreadPool(maxInFlight, new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ordered-put-" + streamName + "-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Queues the entries behind anything already queued for the same keys and
+	 * starts sending.
+	 *
+	 * @return completion that is done when every entry has been accepted
+	 */
+	public PutCompletion send(List<PutRecordsRequestEntry> entries) {
+		PutCompletion completion = new PutCompletion(entries.size());
+		synchronized (this) {
+			for (PutRecordsRequestEntry e : entries) {
+				if (KinesisPutSender.sizeOf(e) > CalAmpParameters.maxBytesPerRecord) {
+					completion.requestFailed(KinesisPutSender.tooLarge(e));
+					continue;
+				}
+				ArrayDeque<Pending> lane = lanes.get(e.getPartitionKey());
+				if (lane == null) {
+					lane = new ArrayDeque<Pending>();
+					lanes.put(e.getPartitionKey(), lane);
+				}
+				lane.addLast(new Pending(e, completion));
+			}
+			dispatch();
+		}
+		return completion;
+	}
+
+	public String getStreamName() {
+		return streamName;
+	}
+
+	public synchronized int queued() {
+		int n = 0;
+		for (ArrayDeque<Pending> lane : lanes.values()) {
+			n += lane.size();
+		}
+		return n;
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Starts requests while there is room in flight and idle lanes to draw from.
+	 * Caller holds the lock.
+	 */
+	private void dispatch() {
+		while (inFlight < maxInFlight) {
+			List<Pending> request = new ArrayList<Pending>();
+			long bytes = 0;
+			for (Map.Entry<String, ArrayDeque<Pending>> lane : lanes.entrySet()) {
+				if (busy.contains(lane.getKey())) {
+					continue;
+				}
+				Pending head = lane.getValue().peekFirst();
+				long size = KinesisPutSender.sizeOf(head.entry);
+				if (request.size() >= CalAmpParameters.maxRecordsPerPut || bytes + size > CalAmpParameters.maxBytesPerPut) {
+					break;
+				}
+				request.add(head);
+				bytes += size;
+			}
+			if (request.isEmpty()) {
+				return;
+			}
+			for (Pending p : request) {
+				busy.add(p.entry.getPartitionKey());
+			}
+			inFlight++;
+			executor.execute(new PutTask(request));
+		}
+	}
+
+	/**
+	 * Called with the outcome of a request: accepted heads leave their lanes,
+	 * failed heads wait out a backoff before their key becomes idle again.
+	 */
+	private synchronized void completed(List<Pending> request, List<Pending> failed, Throwable fatal) {
+		inFlight--;
+		Set<Pending> failedSet = new HashSet<Pending>(failed);
+		for (Pending p : request) {
+			String key = p.entry.getPartitionKey();
+			if (failedSet.contains(p)) {
+				continue;
+			}
+			ArrayDeque<Pending> lane = lanes.get(key);
+			lane.pollFirst();
+			if (lane.isEmpty()) {
+				lanes.remove(key);
+			}
+			busy.remove(key);
+			if (fatal != null) {
+				p.completion.requestFailed(fatal);
+			}
+			else {
+				p.completion.requestDone(1);
+			}
+		}
+		if (!failed.isEmpty()) {
+			int attempts = 0;
+			for (Pending p : failed) {
+				attempts = Math.max(attempts, ++p.attempts);
+			}
+			final List<Pending> retry = failed;
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					release(retry);
+				}
+			}, KinesisPutSender.backoffMillis(attempts), TimeUnit.MILLISECONDS);
+		}
+		dispatch();
+	}
+
+	private synchronized void release(List<Pending> retry) {
+		for (Pending p : retry) {
+			busy.remove(p.entry.getPartitionKey());
+		}
+		dispatch();
+	}
+
+	private static final class Pending {
+		final PutRecordsRequestEntry entry;
+		final PutCompletion completion;
+		int attempts;
+
+		Pending(PutRecordsRequestEntry entry, PutCompletion completion) {
+			this.entry = entry;
+			this.completion = completion;
+		}
+	}
+
+	private class PutTask implements Runnable {
+		private final List<Pending> request;
+
+		PutTask(List<Pending> request) {
+			this.request = request;
+		}
+
+		@Override
+		public void run() {
+			List<PutRecordsRequestEntry> payLoad = new ArrayList<PutRecordsRequestEntry>(request.size());
+			for (Pending p : request) {
+				payLoad.add(p.entry);
+			}
+			PutRecordsRequest putRecords = new PutRecordsRequest().withRecords(payLoad);
+			putRecords.setStreamName(streamName);
+			Utils.lazyLog(payLoad, streamName, CalAmpParameters.putLogName, "Start");
+			List<Pending> failed = new ArrayList<Pending>();
+			Throwable fatal = null;
+			try {
+				PutRecordsResult prr = kc.putRecords(putRecords);
+				if (prr.getFailedRecordCount() != null && prr.getFailedRecordCount() > 0) {
+					List<PutRecordsResultEntry> results = prr.getRecords();
+					for (int i = 0; i < results.size(); i++) {
+						if (results.get(i).getErrorCode() != null) {
+							failed.add(request.get(i));
+						}
+					}
+				}
+				Utils.lazyLog(payLoad, streamName, CalAmpParameters.putLogName, "Stop");
+			} catch (ResourceNotFoundException e) {
+				fatal = e;
+			} catch (InvalidArgumentException e) {
+				fatal = e;
+			} catch (AmazonClientException e) {
+				LOG.warn("PutRecords to " + streamName + " failed, retrying " + request.size() + " records.", e);
+				failed.addAll(request);
+			} catch (RuntimeException e) {
+				fatal = e;
+			}
+			completed(request, failed, fatal);
+		}
+	}
+
+}
@@ -0,0 +1,230 @@
+package com.calamp.services.kinesis.events.utils;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.InvalidArgumentException;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+
+/**
+ * Pipelined PutRecords sender for one destination stream.
+ *
+ * Entries are packed into requests that respect the Kinesis limits (at most
+ * maxRecordsPerPut records and maxBytesPerPut bytes per request, at most
+ * maxBytesPerRecord per record counting data and partition key). Up to
+ * maxInFlight requests run at once on the sender's own threads; send blocks
+ * only while that many are already outstanding. A request that comes back
+ * with failed entries re-sends just those entries after a jittered exponential
+ * backoff, until all are accepted. An entry over the record limit can never be
+ * accepted: it is not sent and fails the completion, while the rest still go.
+ *
+ * Requests in flight at the same time may complete in any order, so with
+ * maxInFlight above one entries sharing a partition key can be reordered.
+ */
+public class KinesisPutSender {
+
+	private static final Log LOG = LogFactory.getLog(KinesisPutSender.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final AmazonKinesis kc;
+	private final String streamName;
+	private final Semaphore inFlight;
+	private final ExecutorService executor;
+
+	public KinesisPutSender(AmazonKinesis kc, String streamName) {
+		this(kc, streamName, CalAmpParameters.putMaxInFlight);
+	}
+
+	public KinesisPutSender(AmazonKinesis kc, final String streamName, int maxInFlight) {
+		this.kc = kc;
+		this.streamName = streamName;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "put-" + streamName + "-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Packs the entries into requests and starts sending them.
+	 *
+	 * @return completion that is done when every entry has been accepted
+	 */
+	public PutCompletion send(List<PutRecordsRequestEntry> entries) {
+		List<PutRecordsRequestEntry> oversize = new ArrayList<PutRecordsRequestEntry>(0);
+		List<List<PutRecordsRequestEntry>> requests = pack(entries, oversize);
+		PutCompletion completion = new PutCompletion(requests.size() + oversize.size());
+		for (PutRecordsRequestEntry e : oversize) {
+			completion.requestFailed(tooLarge(e));
+		}
+		for (List<PutRecordsRequestEntry> payLoad : requests) {
+			inFlight.acquireUninterruptibly();
+			try {
+				executor.execute(new PutTask(payLoad, completion));
+			} catch (RuntimeException e) {
+				inFlight.release();
+				completion.requestFailed(e);
+			}
+		}
+		return completion;
+	}
+
+	public String getStreamName() {
+		return streamName;
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Splits entries, in order, into requests within the record count and byte
+	 * limits. Entries over the single record limit are left out.
+	 */
+	public static List<List<PutRecordsRequestEntry>> pack(List<PutRecordsRequestEntry> entries) {
+		return pack(entries, new ArrayList<PutRecordsRequestEntry>(0));
+	}
+
+	/**
+	 * @param oversize gets the entries over the single record limit, which are left out
+	 */
+	static List<List<PutRecordsRequestEntry>> pack(List<PutRecordsRequestEntry> entries, List<PutRecordsRequestEntry> oversize) {
+		List<List<PutRecordsRequestEntry>> requests = new ArrayList<List<PutRecordsRequestEntry>>();
+		List<PutRecordsRequestEntry> current = new ArrayList<PutRecordsRequestEntry>();
+		long currentBytes = 0;
+		for (PutRecordsRequestEntry e : entries) {
+			long size = sizeOf(e);
+			if (size > CalAmpParameters.maxBytesPerRecord) {
+				oversize.add(e);
+				continue;
+			}
+			if (current.size() >= CalAmpParameters.maxRecordsPerPut || currentBytes + size > CalAmpParameters.maxBytesPerPut) {
+				requests.add(current);
+				current = new ArrayList<PutRecordsRequestEntry>();
+				currentBytes = 0;
+			}
+			current.add(e);
+			currentBytes += size;
+		}
+		if (!current.isEmpty()) {
+			requests.add(current);
+		}
+		return requests;
+	}
+
+	/**
+	 * Bytes an entry counts against the Kinesis limits: data plus partition key.
+	 */
+	public static long sizeOf(PutRecordsRequestEntry e) {
+		long size = e.getData() == null ? 0 : e.getData().remaining();
+		if (e.getPartitionKey() != null) {
+			size += e.getPartitionKey().getBytes(UTF8).length;
+		}
+		return size;
+	}
+
+	/**
+	 * @return the failure for an entry over the Kinesis record limit, naming it
+	 */
+	static AmazonClientException tooLarge(PutRecordsRequestEntry e) {
+		return new AmazonClientException("Record of " + sizeOf(e) + " bytes is over the Kinesis record limit of "
+				+ CalAmpParameters.maxBytesPerRecord + " bytes. Partition Key: " + e.getPartitionKey());
+	}
+
+	/**
+	 * Full jitter: a random wait between zero and the capped exponential step.
+	 */
+	static long backoffMillis(int attempt) {
+		long step = CalAmpParameters.putBackoffBaseMillis * (1L << Math.min(attempt, 20));
+		long cap = Math.min(step, CalAmpParameters.putBackoffMaxMillis);
+		return ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	private class PutTask implements Runnable {
+		private final List<PutRecordsRequestEntry> payLoad;
+		private final PutCompletion completion;
+
+		PutTask(List<PutRecordsRequestEntry> payLoad, PutCompletion completion) {
+			this.payLoad = payLoad;
+			this.completion = completion;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Utils.lazyLog(payLoad, streamName, CalAmpParameters.putLogName, "Start");
+				List<PutRecordsRequestEntry> toSend = payLoad;
+				int attempt = 0;
+				while (!toSend.isEmpty()) {
+					if (attempt > 0) {
+						Thread.sleep(backoffMillis(attempt));
+					}
+					attempt++;
+					toSend = putOnce(toSend);
+				}
+				Utils.lazyLog(payLoad, streamName, CalAmpParameters.putLogName, "Stop");
+				completion.requestDone(payLoad.size());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				completion.requestFailed(e);
+			} catch (RuntimeException e) {
+				completion.requestFailed(e);
+			} finally {
+				inFlight.release();
+			}
+		}
+
+		/**
+		 * @return the entries that were not accepted and must be sent again
+		 */
+		private List<PutRecordsRequestEntry> putOnce(List<PutRecordsRequestEntry> toSend) {
+			PutRecordsRequest putRecords = new PutRecordsRequest().withRecords(toSend);
+			putRecords.setStreamName(streamName);
+			PutRecordsResult prr;
+			try {
+				prr = kc.putRecords(putRecords);
+			} catch (ResourceNotFoundException e) {
+				throw e;
+			} catch (InvalidArgumentException e) {
+				throw e;
+			} catch (AmazonClientException e) {
+				// Throttled or unreachable as a whole: back off and send everything again.
+				LOG.warn("PutRecords to " + streamName + " failed, retrying " + toSend.size() + " records.", e);
+				return toSend;
+			}
+			if (prr.getFailedRecordCount() == null || prr.getFailedRecordCount() == 0) {
+				return new ArrayList<PutRecordsRequestEntry>(0);
+			}
+			List<PutRecordsRequestEntry> failed = new ArrayList<PutRecordsRequestEntry>(prr.getFailedRecordCount());
+			List<PutRecordsResultEntry> results = prr.getRecords();
+			for (int i = 0; i < results.size(); i++) {
+				if (results.get(i).getErrorCode() != null) {
+					failed.add(toSend.get(i));
+				}
+			}
+			return failed;
+		}
+	}
+}
@@ -1,33 +1,27 @@
 package com.calamp.services.kinesis.events.utils;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
-
+/**
+ * Audit log lines, one per call, prefixed with the time of the call. The line
+ * is formatted on the caller's thread and handed to an AsyncLogWriter, which
+ * does the file I/O in the background.
+ */
 public class LazyLogger {
 
+	private static final AsyncLogWriter WRITER = new AsyncLogWriter(CalAmpParameters.logQueueCapacity,
+			CalAmpParameters.logOverflow, CalAmpParameters.logFsync, CalAmpParameters.logFsyncIntervalMillis,
+			CalAmpParameters.logMaxBatch);
+
 	public static void log(String fullPath, Boolean doAppend, String message) {
-		BufferedWriter bw = null;
-		try {
-			bw = new BufferedWriter(new FileWriter(fullPath, doAppend));
-			bw.write( ts() + "# " + message );
-			bw.newLine();
-			bw.flush();
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-		} finally { 
-			if (bw != null)
-				try {
-					bw.close();
-				} catch (IOException ioe2) {
-					ioe2.printStackTrace();
-				}
-		} 
+		WRITER.append(fullPath, !doAppend, ts() + "# " + message);
 	}
-	
+
+	/**
+	 * Blocks until every line logged so far is written to its file.
+	 */
+	public static void flush() {
+		WRITER.flush();
+	}
+
 	public static String ts(){
 		//Date currentTime = new Date();
 		//SimpleDateFormat sdf = new SimpleDateFormat("SSS:ss:mm:hh:d:MM:yyyy");
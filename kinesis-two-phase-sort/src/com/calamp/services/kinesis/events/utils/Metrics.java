@@ -0,0 +1,62 @@
+package com.calamp.services.kinesis.events.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide named gauges and counters. The current values are written as
+ * one line to the metrics log every CalAmpParameters.metricsReportMillis.
+ */
+public class Metrics {
+
+	private static final ConcurrentMap<String, AtomicLong> VALUES = new ConcurrentHashMap<String, AtomicLong>();
+	private static final AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+
+	public static void set(String name, long value) {
+		valueOf(name).set(value);
+	}
+
+	public static long add(String name, long delta) {
+		return valueOf(name).addAndGet(delta);
+	}
+
+	public static long get(String name) {
+		AtomicLong v = VALUES.get(name);
+		return v == null ? 0 : v.get();
+	}
+
+	/**
+	 * Writes all values to the metrics log if the report interval has passed.
+	 * Only one caller wins each interval.
+	 */
+	public static void reportIfDue() {
+		long now = System.currentTimeMillis();
+		long last = lastReport.get();
+		if (now - last >= CalAmpParameters.metricsReportMillis && lastReport.compareAndSet(last, now)) {
+			LazyLogger.log(CalAmpParameters.metricsLogName, true, snapshot());
+		}
+	}
+
+	public static String snapshot() {
+		StringBuilder sb = new StringBuilder("METRICS");
+		for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(VALUES).entrySet()) {
+			sb.append(' ').append(e.getKey()).append('=').append(e.getValue().get());
+		}
+		return sb.toString();
+	}
+
+	private static AtomicLong valueOf(String name) {
+		AtomicLong v = VALUES.get(name);
+		if (v == null) {
+			AtomicLong fresh = new AtomicLong();
+			v = VALUES.putIfAbsent(name, fresh);
+			if (v == null) {
+				v = fresh;
+			}
+		}
+		return v;
+	}
+}
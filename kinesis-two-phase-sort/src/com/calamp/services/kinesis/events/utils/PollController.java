@@ -0,0 +1,103 @@
+package com.calamp.services.kinesis.events.utils;
+
+/**
+ * Paces the GetRecords loop of one shard from how far behind it is, instead
+ * of a fixed idle time and batch size.
+ *
+ * A shard is behind when the last read filled its limit or GetRecords said it
+ * is more than catchUpMillis behind the tip of the shard; it then reads the
+ * largest batches with no pause. A read that returns nothing doubles the pause
+ * (from minIdleMillis up to maxIdleMillis), so idle shards stop spinning. In
+ * between, the pause is minIdleMillis and the limit follows twice the recent
+ * batch size, within [minRecords, maxRecords].
+ *
+ * Publishes under the given name: pollLimit, pollIdleMillis,
+ * millisBehindLatest (where reported) and emptyPolls.
+ *
+ * Not thread safe; one per shard reader.
+ */
+public class PollController {
+
+	private final String name;
+	private final int minRecords;
+	private final int maxRecords;
+	private final long minIdleMillis;
+	private final long maxIdleMillis;
+	private final long catchUpMillis;
+	private int limit;
+	private long idleMillis;
+	private int emptyInARow;
+	private double averageRecords;
+	private boolean behind;
+
+	public PollController(String name) {
+		this(name, CalAmpParameters.pollMinRecords, CalAmpParameters.maxRecPerPoll, CalAmpParameters.pollDelayMillis,
+				CalAmpParameters.pollMaxIdleMillis, CalAmpParameters.pollCatchUpMillis);
+	}
+
+	/**
+	 * @param name metrics prefix
+	 * @param catchUpMillis millis behind the tip from which the shard reads as fast as it can
+	 */
+	public PollController(String name, int minRecords, int maxRecords, long minIdleMillis, long maxIdleMillis,
+			long catchUpMillis) {
+		this.name = name;
+		this.minRecords = Math.min(minRecords, maxRecords);
+		this.maxRecords = maxRecords;
+		this.minIdleMillis = minIdleMillis;
+		this.maxIdleMillis = Math.max(minIdleMillis, maxIdleMillis);
+		this.catchUpMillis = catchUpMillis;
+		// Start as if behind: the first reads find out.
+		this.limit = maxRecords;
+		this.behind = true;
+	}
+
+	/**
+	 * Adjusts the pace after a read.
+	 *
+	 * @param records records the read returned
+	 * @param requested limit the read asked for
+	 * @param millisBehindLatest as reported by GetRecords, or null if not known
+	 */
+	public void observe(int records, int requested, Long millisBehindLatest) {
+		averageRecords += (records - averageRecords) * 0.25;
+		behind = records >= requested || (millisBehindLatest != null && millisBehindLatest > catchUpMillis);
+		if (behind) {
+			emptyInARow = 0;
+			limit = maxRecords;
+			idleMillis = 0;
+		} else if (records == 0) {
+			emptyInARow++;
+			Metrics.add(name + ".emptyPolls", 1);
+			limit = Math.max(minRecords, Math.min(limit, (int) Math.ceil(2 * averageRecords)));
+			idleMillis = Math.min(maxIdleMillis, Math.max(1, minIdleMillis) << Math.min(emptyInARow - 1, 20));
+		} else {
+			emptyInARow = 0;
+			limit = Math.max(minRecords, Math.min(maxRecords, (int) Math.ceil(2 * averageRecords)));
+			idleMillis = minIdleMillis;
+		}
+		Metrics.set(name + ".pollLimit", limit);
+		Metrics.set(name + ".pollIdleMillis", idleMillis);
+		if (millisBehindLatest != null) {
+			Metrics.set(name + ".millisBehindLatest", millisBehindLatest);
+		}
+	}
+
+	/**
+	 * @return records to ask for in the next read
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return how long to wait before the next read
+	 */
+	public long getIdleMillis() {
+		return idleMillis;
+	}
+
+	public boolean isBehind() {
+		return behind;
+	}
+}
@@ -0,0 +1,91 @@
+package com.calamp.services.kinesis.events.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Completion of one KinesisPutSender.send call, which may span several
+ * PutRecords requests. Done when every request has been accepted in full; the
+ * value is the number of records written.
+ */
+public class PutCompletion implements Future<Integer> {
+
+	private final CountDownLatch pending;
+	private final AtomicInteger written = new AtomicInteger();
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	PutCompletion(int requests) {
+		this.pending = new CountDownLatch(requests);
+	}
+
+	void requestDone(int records) {
+		written.addAndGet(records);
+		pending.countDown();
+	}
+
+	void requestFailed(Throwable t) {
+		failure.compareAndSet(null, t);
+		pending.countDown();
+	}
+
+	/**
+	 * Blocks until every request is done, the way the processors wait before
+	 * checkpointing.
+	 *
+	 * @throws AmazonClientException if a request failed or the wait was interrupted
+	 */
+	public int await() {
+		try {
+			return get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while waiting for puts to complete", e);
+		} catch (ExecutionException e) {
+			throw new AmazonClientException("Put to Kinesis failed", e.getCause());
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return pending.getCount() == 0;
+	}
+
+	@Override
+	public Integer get() throws InterruptedException, ExecutionException {
+		pending.await();
+		return result();
+	}
+
+	@Override
+	public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!pending.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	private Integer result() throws ExecutionException {
+		Throwable t = failure.get();
+		if (t != null) {
+			throw new ExecutionException(t);
+		}
+		return written.get();
+	}
+}
@@ -0,0 +1,260 @@
+package com.calamp.services.kinesis.events.utils;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Packs many events into one Kinesis record in the KPL aggregated record
+ * format: the magic bytes F3 89 9A C2, an AggregatedRecord protobuf (a table
+ * of partition keys, a table of explicit hash keys and one length delimited
+ * frame per event) and the MD5 of the protobuf. The KCL de-aggregates such
+ * records before processRecords, and deaggregate does the same for any other
+ * reader.
+ *
+ * Entries are grouped so that every event of a partition key always lands in
+ * an aggregate with the same partition key: the aggregate key is one of
+ * aggregationBuckets keys picked by hashing the event's key, or the event's
+ * explicit hash key if it has one. Events keep their order within a group,
+ * and a sender that keeps each partition key in order (KeyOrderedPutSender)
+ * keeps the aggregates of a group in order, so per key order survives.
+ *
+ * Every event of an aggregate carries the aggregate's explicit hash key, the
+ * MD5 of the aggregate key when the entries have none. The KCL drops a whole
+ * aggregate if any event's hash key is outside the shard it was read from,
+ * and the events' own partition keys hash all over the stream. Aggregates are
+ * cut at aggregationMaxBytes.
+ */
+public class RecordAggregator {
+
+	private static final byte[] MAGIC = { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+	private static final int DIGEST_BYTES = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// Protobuf field keys: field number << 3 | wire type (0 varint, 2 length delimited).
+	private static final byte TABLE_TAG = (1 << 3) | 2;
+	private static final byte HASH_KEY_TABLE_TAG = (2 << 3) | 2;
+	private static final byte RECORDS_TAG = (3 << 3) | 2;
+	private static final byte KEY_INDEX_TAG = (1 << 3) | 0;
+	private static final byte HASH_KEY_INDEX_TAG = (2 << 3) | 0;
+	private static final byte DATA_TAG = (3 << 3) | 2;
+
+	/**
+	 * @return the entries aggregated, or as they are if CalAmpParameters.aggregateRecords is off
+	 */
+	public static List<PutRecordsRequestEntry> aggregate(List<PutRecordsRequestEntry> entries) {
+		if (!CalAmpParameters.aggregateRecords || entries.isEmpty()) {
+			return entries;
+		}
+		return aggregate(entries, CalAmpParameters.aggregationBuckets, CalAmpParameters.aggregationMaxBytes);
+	}
+
+	/**
+	 * @param buckets number of aggregate partition keys the event keys are hashed to
+	 * @param maxBytes largest aggregate, unless a single event is larger
+	 */
+	public static List<PutRecordsRequestEntry> aggregate(List<PutRecordsRequestEntry> entries, int buckets, int maxBytes) {
+		Map<String, List<PutRecordsRequestEntry>> groups = new LinkedHashMap<String, List<PutRecordsRequestEntry>>();
+		for (PutRecordsRequestEntry e : entries) {
+			String group = e.getExplicitHashKey() != null ? e.getExplicitHashKey()
+					: "agg-" + (e.getPartitionKey().hashCode() & Integer.MAX_VALUE) % buckets;
+			List<PutRecordsRequestEntry> g = groups.get(group);
+			if (g == null) {
+				g = new ArrayList<PutRecordsRequestEntry>();
+				groups.put(group, g);
+			}
+			g.add(e);
+		}
+		List<PutRecordsRequestEntry> out = new ArrayList<PutRecordsRequestEntry>();
+		for (Map.Entry<String, List<PutRecordsRequestEntry>> g : groups.entrySet()) {
+			List<PutRecordsRequestEntry> events = g.getValue();
+			String explicitHashKey = events.get(0).getExplicitHashKey();
+			String partitionKey = explicitHashKey != null ? events.get(0).getPartitionKey() : g.getKey();
+			if (explicitHashKey == null) {
+				byte[] key = g.getKey().getBytes(UTF8);
+				explicitHashKey = new BigInteger(1, md5(key, 0, key.length)).toString();
+			}
+			byte[] hashKey = explicitHashKey.getBytes(UTF8);
+			Map<String, Integer> keys = new HashMap<String, Integer>();
+			List<byte[]> keyTable = new ArrayList<byte[]>();
+			int first = 0;
+			int body = fieldBytes(hashKey.length);
+			for (int i = 0; i < events.size(); i++) {
+				PutRecordsRequestEntry e = events.get(i);
+				Integer index = keys.get(e.getPartitionKey());
+				byte[] key = index == null ? e.getPartitionKey().getBytes(UTF8) : null;
+				int size = recordFieldBytes(index != null ? index : keys.size(), e.getData().remaining())
+						+ (key != null ? fieldBytes(key.length) : 0);
+				if (i > first && MAGIC.length + body + size + DIGEST_BYTES > maxBytes) {
+					out.add(entry(events, first, i, keys, keyTable, hashKey, body, partitionKey, explicitHashKey));
+					keys.clear();
+					keyTable.clear();
+					first = i;
+					body = fieldBytes(hashKey.length);
+					index = null;
+					key = e.getPartitionKey().getBytes(UTF8);
+					size = recordFieldBytes(0, e.getData().remaining()) + fieldBytes(key.length);
+				}
+				if (index == null) {
+					keys.put(e.getPartitionKey(), keys.size());
+					keyTable.add(key);
+				}
+				body += size;
+			}
+			out.add(entry(events, first, events.size(), keys, keyTable, hashKey, body, partitionKey, explicitHashKey));
+		}
+		Metrics.add("aggregation.events", entries.size());
+		Metrics.add("aggregation.records", out.size());
+		return out;
+	}
+
+	/**
+	 * Expands aggregated records into one record per event, each with the
+	 * aggregate's sequence number. Returns the list itself if nothing in it is
+	 * aggregated, as when the KCL has already de-aggregated it.
+	 */
+	public static List<Record> deaggregate(List<Record> records) {
+		boolean any = false;
+		for (Record r : records) {
+			if (isAggregated(r.getData())) {
+				any = true;
+				break;
+			}
+		}
+		if (!any) {
+			return records;
+		}
+		return new ArrayList<Record>(UserRecord.deaggregate(records));
+	}
+
+	/**
+	 * Expands aggregated records the way the KCL does for a shard: an
+	 * aggregate holding any event whose hash key is outside
+	 * [startingHashKey, endingHashKey] is dropped whole.
+	 */
+	public static List<Record> deaggregate(List<Record> records, BigInteger startingHashKey, BigInteger endingHashKey) {
+		return new ArrayList<Record>(UserRecord.deaggregate(records, startingHashKey, endingHashKey));
+	}
+
+	/**
+	 * @return Kinesis records a read returned: the events of an aggregated
+	 * record, de-aggregated or not, share its sequence number
+	 */
+	public static int kinesisRecords(List<Record> records) {
+		int n = 0;
+		String last = null;
+		for (Record r : records) {
+			if (!r.getSequenceNumber().equals(last)) {
+				n++;
+				last = r.getSequenceNumber();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return true if the data starts with the aggregated record magic bytes
+	 */
+	public static boolean isAggregated(ByteBuffer data) {
+		if (data.remaining() < MAGIC.length + DIGEST_BYTES) {
+			return false;
+		}
+		int p = data.position();
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data.get(p + i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes events [from, to) as an AggregatedRecord: the partition key table
+	 * (field 1), the explicit hash key table (field 2) with the one hash key,
+	 * then one Record (field 3) per event with its key index (field 1), hash
+	 * key index (field 2) and data (field 3). Each event's data is copied
+	 * once, straight into the record.
+	 */
+	private static PutRecordsRequestEntry entry(List<PutRecordsRequestEntry> events, int from, int to, Map<String, Integer> keys,
+			List<byte[]> keyTable, byte[] hashKey, int body, String partitionKey, String explicitHashKey) {
+		ByteBuffer data = ByteBuffer.allocate(MAGIC.length + body + DIGEST_BYTES);
+		data.put(MAGIC);
+		for (byte[] key : keyTable) {
+			data.put(TABLE_TAG);
+			putVarint(data, key.length);
+			data.put(key);
+		}
+		data.put(HASH_KEY_TABLE_TAG);
+		putVarint(data, hashKey.length);
+		data.put(hashKey);
+		for (int i = from; i < to; i++) {
+			PutRecordsRequestEntry e = events.get(i);
+			int index = keys.get(e.getPartitionKey());
+			int length = e.getData().remaining();
+			data.put(RECORDS_TAG);
+			putVarint(data, recordBytes(index, length));
+			data.put(KEY_INDEX_TAG);
+			putVarint(data, index);
+			data.put(HASH_KEY_INDEX_TAG);
+			data.put((byte) 0);
+			data.put(DATA_TAG);
+			putVarint(data, length);
+			data.put(e.getData().duplicate());
+		}
+		data.put(md5(data.array(), MAGIC.length, body));
+		data.flip();
+		return new PutRecordsRequestEntry().withData(data).withPartitionKey(partitionKey).withExplicitHashKey(explicitHashKey);
+	}
+
+	// Key index, hash key index 0 and data.
+	private static int recordBytes(int index, int dataLength) {
+		return 1 + varintBytes(index) + 2 + fieldBytes(dataLength);
+	}
+
+	private static int recordFieldBytes(int index, int dataLength) {
+		return fieldBytes(recordBytes(index, dataLength));
+	}
+
+	// Tag, length and the bytes of a length delimited field.
+	private static int fieldBytes(int length) {
+		return 1 + varintBytes(length) + length;
+	}
+
+	private static int varintBytes(int value) {
+		int n = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	private static void putVarint(ByteBuffer b, int value) {
+		while ((value & ~0x7F) != 0) {
+			b.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		b.put((byte) value);
+	}
+
+	private static byte[] md5(byte[] b, int offset, int length) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(b, offset, length);
+			return md5.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has MD5.
+			throw new IllegalStateException(e);
+		}
+	}
+}
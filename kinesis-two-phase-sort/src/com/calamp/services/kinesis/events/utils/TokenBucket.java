@@ -0,0 +1,67 @@
+package com.calamp.services.kinesis.events.utils;
+
+/**
+ * Token bucket rate limiter: refills at ratePerSecond up to burst tokens.
+ * A rate of zero or less means no limit.
+ */
+public class TokenBucket {
+
+	private final double ratePerNano;
+	private final double burst;
+	private double tokens;
+	private long lastNanos;
+
+	public TokenBucket(double ratePerSecond, double burst) {
+		this.ratePerNano = ratePerSecond / 1e9;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastNanos = System.nanoTime();
+	}
+
+	public boolean isUnlimited() {
+		return ratePerNano <= 0;
+	}
+
+	/**
+	 * Takes n tokens if that many are available.
+	 *
+	 * @return false, taking nothing, if there are not enough tokens
+	 */
+	public synchronized boolean tryTake(double n) {
+		if (isUnlimited()) {
+			return true;
+		}
+		refill();
+		if (tokens < n) {
+			return false;
+		}
+		tokens -= n;
+		return true;
+	}
+
+	/**
+	 * Takes n tokens, waiting for the bucket to refill if needed. Asking for
+	 * more than the burst size is allowed; the bucket then goes into debt and
+	 * later callers wait it off.
+	 */
+	public void take(double n) throws InterruptedException {
+		if (isUnlimited()) {
+			return;
+		}
+		long waitNanos;
+		synchronized (this) {
+			refill();
+			tokens -= n;
+			waitNanos = tokens >= 0 ? 0 : (long) (-tokens / ratePerNano);
+		}
+		if (waitNanos > 0) {
+			Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastNanos) * ratePerNano);
+		lastNanos = now;
+	}
+}
@@ -0,0 +1,87 @@
+package com.calamp.services.kinesis.events.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Level and sampling for the per record audit lines written by Utils.lazyLog.
+ *
+ * KEYS lines carry only fields the caller already has at hand (stream, shard,
+ * sequence number, partition key, event time and sequence, payload length), so
+ * tracing never decodes a payload. PAYLOAD adds the full event and is meant for
+ * debugging only. Each log file samples on its own: one record in
+ * sampleEvery is considered, and at most maxPerSecond of those are written
+ * (0 for no limit).
+ */
+public final class Trace {
+
+	public enum Level { OFF, KEYS, PAYLOAD }
+
+	private static volatile Level level = CalAmpParameters.traceLevel;
+	private static volatile int sampleEvery = CalAmpParameters.traceSampleEvery;
+	private static volatile int maxPerSecond = CalAmpParameters.traceMaxPerSecond;
+	private static final ConcurrentMap<String, Sampler> SAMPLERS = new ConcurrentHashMap<String, Sampler>();
+
+	private Trace() {
+	}
+
+	/**
+	 * Replaces the settings taken from CalAmpParameters and restarts sampling.
+	 */
+	public static void configure(Level newLevel, int newSampleEvery, int newMaxPerSecond) {
+		level = newLevel;
+		sampleEvery = Math.max(1, newSampleEvery);
+		maxPerSecond = Math.max(0, newMaxPerSecond);
+		SAMPLERS.clear();
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	public static boolean payloads() {
+		return level == Level.PAYLOAD;
+	}
+
+	/**
+	 * @return true if the current record's line for this log should be written
+	 */
+	public static boolean sample(String logPath) {
+		if (level == Level.OFF) {
+			return false;
+		}
+		Sampler s = SAMPLERS.get(logPath);
+		if (s == null) {
+			Sampler fresh = new Sampler();
+			s = SAMPLERS.putIfAbsent(logPath, fresh);
+			if (s == null) {
+				s = fresh;
+			}
+		}
+		return s.admit(sampleEvery, maxPerSecond);
+	}
+
+	private static final class Sampler {
+		private final AtomicLong seen = new AtomicLong();
+		private final AtomicInteger inWindow = new AtomicInteger();
+		private volatile long windowStart;
+
+		boolean admit(int every, int perSecond) {
+			if (every > 1 && seen.getAndIncrement() % every != 0) {
+				return false;
+			}
+			if (perSecond <= 0) {
+				return true;
+			}
+			long now = System.currentTimeMillis();
+			if (now - windowStart >= 1000) {
+				// Racing threads may both reset; that only lets a few extra lines through.
+				windowStart = now;
+				inWindow.set(0);
+			}
+			return inWindow.incrementAndGet() <= perSecond;
+		}
+	}
+}
@@ -9,26 +9,28 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.model.DescribeStreamResult;
 import com.amazonaws.services.kinesis.model.PutRecordRequest;
 import com.amazonaws.services.kinesis.model.PutRecordResult;
-import com.amazonaws.services.kinesis.model.PutRecordsRequest;
 import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
-import com.amazonaws.services.kinesis.model.PutRecordsResult;
-import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
 import com.amazonaws.services.kinesis.model.Record;
 import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
 import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.data.CalAmpEventKey;
 
 public class Utils {
 
 	private static final String pathToLastSeq = "lastSeq.bak";
     private static String prevSeqNum = null;
+    private static final Map<AmazonKinesis, Map<String, KinesisPutSender>> senders = new IdentityHashMap<AmazonKinesis, Map<String, KinesisPutSender>>();
 	
 	public static String getLastSeqNum( ){
 		File f = new File(pathToLastSeq);
@@ -80,54 +82,52 @@ public class Utils {
         }
     }
     public static void putByParts(List<CalAmpEvent> events, String streamName, AmazonKinesis kc, String logPath) {
+    	putByParts(events, streamName, kc, logPath, CalAmpParameters.wireCodec);
+    }
+    public static void putByParts(List<CalAmpEvent> events, String streamName, AmazonKinesis kc, String logPath, CalAmpEventCodec codec) {
 		List<PutRecordsRequestEntry> prres = Collections.synchronizedList( new ArrayList<PutRecordsRequestEntry>() );
 		for (CalAmpEvent e : events){
-			PutRecordsRequestEntry prre = new PutRecordsRequestEntry().withData(ByteBuffer.wrap(e.toJsonAsBytes()));
+			PutRecordsRequestEntry prre = new PutRecordsRequestEntry().withData(ByteBuffer.wrap(codec.encode(e)));
 			prre.setPartitionKey( String.valueOf( e.getMachineId() ) );
 			prres.add(prre);
-			Utils.lazyLog(prre, streamName, logPath);
+			Utils.lazyLog(prre, e, streamName, logPath);
 		}
 		
-		if (prres.size() > 0){
-			int requestNumber = ( events.size() / CalAmpParameters.maxRecordsPerPut );
-			requestNumber += (events.size() % CalAmpParameters.maxRecordsPerPut) == 0 ? 0 : 1;
-			Iterator<PutRecordsRequestEntry> it = prres.iterator();
-			for (int j=0; j<requestNumber; j++){
-				
-				List<PutRecordsRequestEntry> payLoad = new ArrayList<PutRecordsRequestEntry>();
-				while( it.hasNext() && payLoad.size() < CalAmpParameters.maxRecordsPerPut ){
-					payLoad.add(it.next());
-				}
-				PutRecordsRequest putRecords = new PutRecordsRequest( ).withRecords(payLoad);
-				putRecords.setStreamName(streamName);
-				Utils.lazyLog(payLoad, streamName, CalAmpParameters.putLogName, "Start");
-				PutRecordsResult prr = kc.putRecords(putRecords);
-				
-				/** 
-				 * Retry failed "record puts" until success.
-				 */
-				while (prr.getFailedRecordCount() > 0) {
-				    final List<PutRecordsRequestEntry> failedRecordsList = new ArrayList<>();
-				    final List<PutRecordsResultEntry> putRecordsResultEntryList = prr.getRecords();
-				    for (int i = 0; i < putRecordsResultEntryList.size(); i++) {
-				        final PutRecordsRequestEntry putRecordRequestEntry = payLoad.get(i);
-				        final PutRecordsResultEntry putRecordsResultEntry = putRecordsResultEntryList.get(i);
-				        if (putRecordsResultEntry.getErrorCode() != null) {
-				            failedRecordsList.add(putRecordRequestEntry);
-				        }
-				    }
-				    prres = failedRecordsList;
-				    putRecords.setRecords(prres);
-				    prr = kc.putRecords(putRecords);
-				}
-				lazyLog(payLoad, streamName, CalAmpParameters.putLogName, "Stop");
-			}
-		}
+		putRecordsByParts(prres, streamName, kc);
+	}
+    /**
+     * Puts already encoded entries, aggregated if aggregateRecords is set,
+     * through the stream's shared KinesisPutSender and waits until every
+     * entry has been accepted.
+     */
+    public static void putRecordsByParts(List<PutRecordsRequestEntry> prres, String streamName, AmazonKinesis kc) {
+    	if (prres.size() > 0){
+    		senderFor(kc, streamName).send( RecordAggregator.aggregate(prres) ).await();
+    	}
 	}
+    /**
+     * @return the sender shared by all callers putting to this stream through this client
+     */
+    public static synchronized KinesisPutSender senderFor(AmazonKinesis kc, String streamName) {
+    	Map<String, KinesisPutSender> byStream = senders.get(kc);
+    	if (byStream == null){
+    		byStream = new HashMap<String, KinesisPutSender>();
+    		senders.put(kc, byStream);
+    	}
+    	KinesisPutSender sender = byStream.get(streamName);
+    	if (sender == null){
+    		sender = new KinesisPutSender(kc, streamName);
+    		byStream.put(streamName, sender);
+    	}
+    	return sender;
+    }
     public static void putObo(List<CalAmpEvent> events, String streamName, AmazonKinesis kc, String logPath) {
+    	putObo(events, streamName, kc, logPath, CalAmpParameters.wireCodec);
+    }
+    public static void putObo(List<CalAmpEvent> events, String streamName, AmazonKinesis kc, String logPath, CalAmpEventCodec codec) {
 		for (CalAmpEvent e : events){
 			PutRecordRequest prreq = new PutRecordRequest();
-			prreq.setData( ByteBuffer.wrap( e.toJsonAsBytes() ) );
+			prreq.setData( ByteBuffer.wrap( codec.encode(e) ) );
 			prreq.setStreamName( streamName );
 			prreq.setPartitionKey( String.valueOf( e.getMachineId() ) );
 			Utils.lazyLog(prreq, streamName, logPath, "");
@@ -163,33 +163,116 @@ public class Utils {
 	public static void lazyLog(List<PutRecordsRequestEntry> payLoad, String stream, String logPath, String message) {
     	int acc = 0;
     	for (PutRecordsRequestEntry e: payLoad){
-    		acc += e.getData().array().length;
+    		acc += e.getData().remaining();
     	}
     	String myStr;
 		myStr = "PUT (" + payLoad.size() + "," + acc  + ") TO [" + stream + "] " + message;
     	LazyLogger.log(logPath, true, myStr);
     }
-    public static void lazyLog(Record record, String stream, String logPath) {
-    	String myStr = "GET AT [" + stream + "] ";
-    	myStr += " Seq-ID: " + record.getSequenceNumber();
-    	myStr += " Part-K: " + record.getPartitionKey();
-    	myStr += " Data: " + CalAmpEvent.fromJsonAsBytes( record.getData().array() );
-    	LazyLogger.log(logPath, true, myStr);
+    /**
+     * Traces a record read from a stream using its already read sort key; the
+     * payload is only decoded at the PAYLOAD trace level.
+     */
+    public static void lazyLog(Record record, String shardId, CalAmpEventKey key, String stream, String logPath) {
+    	if (!Trace.sample(logPath)) {
+    		return;
+    	}
+    	StringBuilder sb = traceLine("GET AT [", stream, shardId, record.getSequenceNumber(), record.getPartitionKey());
+    	appendKey(sb, key);
+    	sb.append(" Bytes: ").append(record.getData().remaining());
+    	if (Trace.payloads()) {
+    		sb.append(" Data: ").append(CalAmpEventCodec.decode( bytesOf(record.getData()) ));
+    	}
+    	LazyLogger.log(logPath, true, sb.toString());
+    }
+    /**
+     * Traces a record read from a stream that the caller has already decoded.
+     */
+    public static void lazyLog(Record record, String shardId, CalAmpEvent event, String stream, String logPath) {
+    	if (!Trace.sample(logPath)) {
+    		return;
+    	}
+    	StringBuilder sb = traceLine("GET AT [", stream, shardId, record.getSequenceNumber(), record.getPartitionKey());
+    	appendEvent(sb, event);
+    	sb.append(" Bytes: ").append(record.getData().remaining());
+    	LazyLogger.log(logPath, true, sb.toString());
+    }
+    public static void lazyLog(PutRecordsRequestEntry prre, CalAmpEventKey key, String streamName, String logPath) {
+    	if (!Trace.sample(logPath)) {
+    		return;
+    	}
+    	StringBuilder sb = traceLine("PUT TO [", streamName, null, null, prre.getPartitionKey());
+    	appendKey(sb, key);
+    	sb.append(" Bytes: ").append(prre.getData().remaining());
+    	if (Trace.payloads()) {
+    		sb.append(" Data: ").append(CalAmpEventCodec.decode( bytesOf(prre.getData()) ));
+    	}
+    	LazyLogger.log(logPath, true, sb.toString());
+    }
+    /**
+     * Entry that re-emits a received record unchanged: same payload bytes, same partition key.
+     */
+    public static PutRecordsRequestEntry forwardEntry(Record record) {
+    	return new PutRecordsRequestEntry().withData( record.getData().duplicate() ).withPartitionKey( record.getPartitionKey() );
+    }
+    /**
+     * @return the readable bytes of a buffer, without copying when it wraps a whole array.
+     */
+    public static byte[] bytesOf(ByteBuffer data) {
+    	if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length) {
+    		return data.array();
+    	}
+    	byte[] copy = new byte[data.remaining()];
+    	data.duplicate().get(copy);
+    	return copy;
     }
     public static void initLazyLog(String logPath, String initMessage) {
     	LazyLogger.log(logPath, false, initMessage);
     }
-	public static void lazyLog(PutRecordsRequestEntry prre, String streamName, String logPath) {
-    	String myStr = "PUT TO [" + streamName + "] ";
-    	myStr += " Part-K: " + prre.getPartitionKey();
-    	myStr += " Data: " + CalAmpEvent.fromJsonAsBytes( prre.getData().array() );
-    	LazyLogger.log(logPath, true, myStr);
+	public static void lazyLog(PutRecordsRequestEntry prre, CalAmpEvent event, String streamName, String logPath) {
+    	if (!Trace.sample(logPath)) {
+    		return;
+    	}
+    	StringBuilder sb = traceLine("PUT TO [", streamName, null, null, prre.getPartitionKey());
+    	appendEvent(sb, event);
+    	sb.append(" Bytes: ").append(prre.getData().remaining());
+    	LazyLogger.log(logPath, true, sb.toString());
 	}
-	public static void lazyLog(PutRecordRequest putRecord, String logPath) {
-    	String myStr = "PUT TO [" + putRecord.getStreamName() + "] ";
-    	myStr += " Seq-ID: " + putRecord.getSequenceNumberForOrdering();
-    	myStr += " Part-K: " + putRecord.getPartitionKey();
-    	myStr += " Data: " + CalAmpEvent.fromJsonAsBytes( putRecord.getData().array() );
-    	LazyLogger.log(logPath, true, myStr);
+	public static void lazyLog(PutRecordRequest putRecord, CalAmpEvent event, String logPath) {
+    	if (!Trace.sample(logPath)) {
+    		return;
+    	}
+    	StringBuilder sb = traceLine("PUT TO [", putRecord.getStreamName(), null, putRecord.getSequenceNumberForOrdering(), putRecord.getPartitionKey());
+    	appendEvent(sb, event);
+    	sb.append(" Bytes: ").append(putRecord.getData().remaining());
+    	LazyLogger.log(logPath, true, sb.toString());
     }
+	private static StringBuilder traceLine(String verb, String stream, String shardId, String sequenceNumber, String partitionKey) {
+		StringBuilder sb = new StringBuilder(192).append(verb).append(stream).append("] ");
+		if (shardId != null) {
+			sb.append(" Shard: ").append(shardId);
+		}
+		if (sequenceNumber != null) {
+			sb.append(" Seq-ID: ").append(sequenceNumber);
+		}
+		sb.append(" Part-K: ").append(partitionKey);
+		return sb;
+	}
+	private static void appendKey(StringBuilder sb, CalAmpEventKey key) {
+		if (key == null) {
+			sb.append(" Key: null");
+			return;
+		}
+		sb.append(" Time: ").append(key.getTimeStamp()).append(" Seq: ").append(key.getSequenceNumber());
+	}
+	private static void appendEvent(StringBuilder sb, CalAmpEvent event) {
+		if (event == null) {
+			sb.append(" Key: null");
+			return;
+		}
+		sb.append(" Time: ").append(event.getTimeStamp()).append(" Seq: ").append(event.getSequenceNumber());
+		if (Trace.payloads()) {
+			sb.append(" Data: ").append(event);
+		}
+	}
 }
\ No newline at end of file
@@ -15,22 +15,310 @@
 
 package com.calamp.services.kinesis.events.writer;
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 import com.calamp.services.kinesis.events.data.CalAmpEvent;
 
 /**
- * Generates random messages.
+ * Generates random messages, and models a fleet of devices for load tests.
  *
+ * A model instance creates events the way devices do: a device stamps each
+ * event with the time it is created and the next of its own sequence numbers
+ * (wrapping at sequenceModulus, if set), so per device timeStamp and sequence
+ * number agree. Disorder comes from delivery: each event is delivered after a
+ * delay drawn from a Delay profile (none, uniform, exponential or Pareto
+ * heavy tailed), and poll hands out events once their delivery time comes.
+ * Devices go offline with a given probability per event; an offline device
+ * keeps up to maxBuffered events (later ones are lost, leaving a sequence
+ * gap) and delivers them all at once when it reconnects, as a device replays
+ * its backlog. Devices are picked uniformly or with Zipf skewed popularity.
+ *
+ * Generation is cheap: one seeded xorshift generator, one payload shared by
+ * all events (never modified), no per event Random. A model is shared by the
+ * producer threads of a LoadGenerator; generate and poll are synchronized.
  */
-
 public class CalAmpEventGenerator {
-    
+
+    private final int machines;
+    private final byte[] payload;
+    private long state;
+    private Delay delay = Delay.none();
+    private double[] popularity;
+    private int sequenceModulus;
+    private double outagePerEvent;
+    private double meanOutageMillis;
+    private int maxBuffered = Integer.MAX_VALUE;
+    private int[] nextSeq;
+    private long[] offlineUntil;
+    private int[] buffered;
+    private long created;
+    private long lost;
+    private final PriorityQueue<Pending> pending = new PriorityQueue<Pending>(1024, new Comparator<Pending>() {
+        @Override
+        public int compare(Pending a, Pending b) {
+            if (a.deliverAt != b.deliverAt) {
+                return a.deliverAt < b.deliverAt ? -1 : 1;
+            }
+            return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+    });
+
     public static CalAmpEvent getRandomMessage() {
-    	String r1 = UUID.randomUUID().toString();
-    	String r2 = UUID.randomUUID().toString();
-    	String r3 = UUID.randomUUID().toString();
-    	String r4 = UUID.randomUUID().toString();
+    	ThreadLocalRandom rand = ThreadLocalRandom.current();
+    	String r1 = new UUID(rand.nextLong(), rand.nextLong()).toString();
+    	String r2 = new UUID(rand.nextLong(), rand.nextLong()).toString();
+    	String r3 = new UUID(rand.nextLong(), rand.nextLong()).toString();
+    	String r4 = new UUID(rand.nextLong(), rand.nextLong()).toString();
         return new CalAmpEvent(r1, r2, r3, r4);
     }
+
+    /**
+     * @param machines devices, with ids 0 to machines - 1
+     * @param payloadBytes size of the data bytes of every event
+     * @param seed makes runs repeatable
+     */
+    public CalAmpEventGenerator(int machines, int payloadBytes, long seed) {
+        this.machines = machines;
+        this.state = seed == 0 ? 0x9E3779B97F4A7C15L : seed;
+        this.payload = new byte[payloadBytes];
+        for (int i = 0; i < payloadBytes; i++) {
+            payload[i] = (byte) nextLong();
+        }
+        this.nextSeq = new int[machines];
+        this.offlineUntil = new long[machines];
+        this.buffered = new int[machines];
+    }
+
+    /**
+     * Delivery delay of every event; Delay.none() by default.
+     */
+    public synchronized void setDelay(Delay delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Picks device i with probability proportional to 1 / (i + 1)^exponent;
+     * 0, the default, picks them uniformly.
+     */
+    public synchronized void setSkew(double exponent) {
+        if (exponent <= 0) {
+            popularity = null;
+            return;
+        }
+        popularity = new double[machines];
+        double sum = 0;
+        for (int i = 0; i < machines; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            popularity[i] = sum;
+        }
+        for (int i = 0; i < machines; i++) {
+            popularity[i] /= sum;
+        }
+    }
+
+    /**
+     * Sequence numbers wrap to 0 here, as CalAmpParameters.machineSequenceModulus
+     * says devices do; 0, the default, never wraps.
+     */
+    public synchronized void setSequenceModulus(int sequenceModulus) {
+        this.sequenceModulus = sequenceModulus;
+    }
+
+    /**
+     * @param outagePerEvent chance that a device goes offline after creating an event, 0 for never
+     * @param meanOutageMillis mean of the exponentially distributed outage length
+     * @param maxBuffered events a device keeps while offline
+     */
+    public synchronized void setReconnects(double outagePerEvent, double meanOutageMillis, int maxBuffered) {
+        this.outagePerEvent = outagePerEvent;
+        this.meanOutageMillis = meanOutageMillis;
+        this.maxBuffered = maxBuffered;
+    }
+
+    /**
+     * Creates n events at nowMillis, each to be delivered when its delay has
+     * passed or, if its device is offline, when the device reconnects.
+     */
+    public synchronized void generate(int n, long nowMillis) {
+        for (int i = 0; i < n; i++) {
+            int machine = nextMachine();
+            long seq = nextSeq[machine]++;
+            if (sequenceModulus > 0 && nextSeq[machine] >= sequenceModulus) {
+                nextSeq[machine] = 0;
+            }
+            created++;
+            long deliverAt = nowMillis + delay.millis(nextUniform());
+            if (offlineUntil[machine] > nowMillis) {
+                if (buffered[machine] >= maxBuffered) {
+                    lost++;
+                    continue;
+                }
+                buffered[machine]++;
+                deliverAt = Math.max(deliverAt, offlineUntil[machine]);
+            }
+            else if (outagePerEvent > 0 && nextUniform() <= outagePerEvent) {
+                // Offline from here: this event and the next ones wait for the reconnect.
+                offlineUntil[machine] = nowMillis + (long) (-meanOutageMillis * Math.log(nextUniform()));
+                buffered[machine] = 1;
+                deliverAt = Math.max(deliverAt, offlineUntil[machine]);
+            }
+            CalAmpEvent e = new CalAmpEvent("ip-udp", "options", "message", "content", payload, nowMillis, seq,
+                    (nextLong() & 1) == 0, machine);
+            pending.add(new Pending(e, deliverAt, created));
+        }
+    }
+
+    /**
+     * Adds to out, in delivery order, up to max events whose delivery time has come.
+     *
+     * @return events added
+     */
+    public synchronized int poll(long nowMillis, int max, List<CalAmpEvent> out) {
+        int n = 0;
+        while (n < max && !pending.isEmpty() && pending.peek().deliverAt <= nowMillis) {
+            out.add(pending.poll().event);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return events created but not delivered yet
+     */
+    public synchronized int pending() {
+        return pending.size();
+    }
+
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return events lost because their device's buffer was full
+     */
+    public synchronized long getLost() {
+        return lost;
+    }
+
+    private int nextMachine() {
+        if (popularity == null) {
+            return nextInt(machines);
+        }
+        int i = Arrays.binarySearch(popularity, nextUniform());
+        return Math.min(machines - 1, i >= 0 ? i : -i - 1);
+    }
+
+    // xorshift64*
+    private long nextLong() {
+        long x = state;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        state = x;
+        return x * 0x2545F4914F6CDD1DL;
+    }
+
+    private int nextInt(int bound) {
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    // In (0, 1], so that log() of it is finite.
+    private double nextUniform() {
+        return ((nextLong() >>> 11) + 1) * 0x1.0p-53;
+    }
+
+    /**
+     * Distribution of the time from an event's creation to its delivery,
+     * sampled by inverse transform from a uniform value in (0, 1].
+     */
+    public abstract static class Delay {
+
+        public abstract long millis(double u);
+
+        public static Delay none() {
+            return new Delay() {
+                @Override
+                public long millis(double u) {
+                    return 0;
+                }
+            };
+        }
+
+        /**
+         * Uniform in [0, maxMillis).
+         */
+        public static Delay uniform(final long maxMillis) {
+            if (maxMillis <= 0) {
+                return none();
+            }
+            return new Delay() {
+                @Override
+                public long millis(double u) {
+                    return Math.min(maxMillis - 1, (long) ((1 - u) * maxMillis));
+                }
+            };
+        }
+
+        public static Delay exponential(final double meanMillis) {
+            return new Delay() {
+                @Override
+                public long millis(double u) {
+                    return (long) (-meanMillis * Math.log(u));
+                }
+            };
+        }
+
+        /**
+         * Heavy tailed: Pareto with the given shape (smaller is heavier, 1.5
+         * is typical), shifted to start at 0 and scaled so that most delays
+         * are around scaleMillis, capped at maxMillis.
+         */
+        public static Delay pareto(final double scaleMillis, final double shape, final long maxMillis) {
+            return new Delay() {
+                @Override
+                public long millis(double u) {
+                    return (long) Math.min(maxMillis, scaleMillis * (Math.pow(u, -1 / shape) - 1));
+                }
+            };
+        }
+
+        /**
+         * Reads none, uniform:max, exponential:mean or pareto:scale:shape:max.
+         */
+        public static Delay parse(String spec) {
+            String[] p = spec.split(":");
+            String name = p[0].toLowerCase();
+            if (name.equals("none")) {
+                return none();
+            }
+            if (name.equals("uniform") && p.length == 2) {
+                return uniform(Long.parseLong(p[1]));
+            }
+            if (name.equals("exponential") && p.length == 2) {
+                return exponential(Double.parseDouble(p[1]));
+            }
+            if (name.equals("pareto") && p.length == 4) {
+                return pareto(Double.parseDouble(p[1]), Double.parseDouble(p[2]), Long.parseLong(p[3]));
+            }
+            throw new IllegalArgumentException("Unknown delay " + spec
+                    + ", expected none, uniform:max, exponential:mean or pareto:scale:shape:max");
+        }
+    }
+
+    private static final class Pending {
+        final CalAmpEvent event;
+        final long deliverAt;
+        final long id;
+
+        Pending(CalAmpEvent event, long deliverAt, long id) {
+            this.event = event;
+            this.deliverAt = deliverAt;
+            this.id = id;
+        }
+    }
 }
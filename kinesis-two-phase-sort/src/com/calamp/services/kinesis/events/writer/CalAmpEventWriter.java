@@ -15,14 +15,11 @@
 
 package com.calamp.services.kinesis.events.writer;
 
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,6 +34,7 @@ import com.amazonaws.services.kinesis.AmazonKinesisClient;
 import com.amazonaws.services.kinesis.model.PutRecordRequest;
 import com.amazonaws.services.kinesis.model.PutRecordResult;
 import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
 import com.calamp.services.kinesis.events.utils.ConfigurationUtils;
 import com.calamp.services.kinesis.events.utils.CredentialUtils;
 import com.calamp.services.kinesis.events.utils.CalAmpParameters;
@@ -48,12 +46,13 @@ import com.calamp.services.kinesis.events.utils.Utils;
  */
 public class CalAmpEventWriter {
 	static String prevSeqNum = null;
+	static CalAmpEventCodec codec = CalAmpParameters.wireCodec;
     private static final Log LOG = LogFactory.getLog(CalAmpEventWriter.class);
 
     private static void checkUsage(String[] args) {
-        if (args.length != 2) {
+        if (args.length != 2 && args.length != 3) {
             System.err.println("Usage: " + CalAmpEventWriter.class.getSimpleName()
-                    + " <stream name> <region>");
+                    + " <stream name> <region> [JSON|BINARY]");
             System.exit(1);
         }
     }
@@ -67,10 +66,10 @@ public class CalAmpEventWriter {
      * @param streamName Name of stream 
      */
     public static void sendEvent(CalAmpEvent event, AmazonKinesis kinesisClient, String streamName ) {
-        byte[] bytes = event.toJsonAsBytes();
+        byte[] bytes = codec.encode(event);
         // The bytes could be null if there is an issue with the JSON serialization by the Jackson JSON library.
         if (bytes == null) {
-            LOG.warn("Could not get JSON bytes for stock trade");
+            LOG.warn("Could not get " + codec + " bytes for stock trade");
             return;
         }
         
@@ -87,46 +86,43 @@ public class CalAmpEventWriter {
         try {
         	PutRecordResult res = kinesisClient.putRecord(putRecord);
         	prevSeqNum = res.getSequenceNumber();
-        	Utils.lazyLog(putRecord, CalAmpParameters.writeLogName);
+        	Utils.lazyLog(putRecord, event, CalAmpParameters.writeLogName);
         } catch (AmazonClientException ex) {
             LOG.warn("Error sending record to Amazon Kinesis.", ex);
         }
     }
     
+    /**
+     * Reads a whole replay file, JSON lines or framed, onto the heap. To send a
+     * large file use EventReplayer, which streams it instead.
+     */
     public static List<CalAmpEvent> readEventsFromFile(String filePath) throws IOException{
-        // Repeatedly send stock trades with a some milliseconds wait in between
     	ArrayList<CalAmpEvent> eList = new ArrayList<CalAmpEvent>();
-    	Scanner scan = new Scanner(new FileReader(filePath));
-		int count = 0;
-    	while( scan.hasNext() ){
-			CalAmpEvent cae = CalAmpEvent.fromJsonAsString( scan.nextLine());
-			eList.add(cae);
-			
-			if(count % CalAmpParameters.maxRecordsPerPut == 0){
-				System.out.println( cae.toJsonAsString() );
-			}
-			count++;
-			//System.out.println( CalAmpEvent.fromJsonAsString( cae.toJsonAsString()) );
-        }
-		if (scan != null){
-			scan.close();
-		}
+    	EventFileReader reader = new EventFileReader(new File(filePath));
+    	try {
+    		CalAmpEvent cae;
+    		while( (cae = reader.next()) != null ){
+    			eList.add(cae);
+    		}
+    	} finally {
+    		reader.close();
+    	}
 		return eList;
     }
     
     public static void genRandEventsToFile(String filePath, int numToGen) throws IOException{
-        // Repeatedly send stock trades with a some milliseconds wait in between
-    	BufferedWriter bw = new BufferedWriter(new FileWriter(filePath, false));
-        for (int i=0; i<numToGen; i++){
-            CalAmpEvent event = CalAmpEventGenerator.getRandomMessage();
-			bw.write( event.toJsonAsString() );
-			bw.newLine();
-            //System.out.println( event.toJsonAsString() );
-            //System.out.println( CalAmpEvent.fromJsonAsString(event.toJsonAsString()) );
-        }
-		if (bw != null){
-			bw.close();
-		} 
+    	genRandEventsToFile(filePath, numToGen, EventFileFormat.JSON_LINES);
+    }
+    
+    public static void genRandEventsToFile(String filePath, int numToGen, EventFileFormat format) throws IOException{
+    	EventFileWriter writer = new EventFileWriter(new File(filePath), format);
+    	try {
+    		for (int i=0; i<numToGen; i++){
+    			writer.write( CalAmpEventGenerator.getRandomMessage() );
+    		}
+    	} finally {
+    		writer.close();
+    	}
     }
     
     public static void runningLoop (Runnable exec){
@@ -159,6 +155,9 @@ public class CalAmpEventWriter {
     
     public static void main(String[] args) throws Exception {
         checkUsage(args);
+        if (args.length > 2) {
+        	codec = CalAmpEventCodec.fromName(args[2]);
+        }
         String streamName = CalAmpParameters.unorderdStreamName; //args[0];
         String regionName = CalAmpParameters.regionName;
         Region region = RegionUtils.getRegion(regionName);
@@ -180,10 +179,11 @@ public class CalAmpEventWriter {
         String filePath = "kinesis-rand-events.in";
         
         //genRandEventsToFile( filePath, numToGen );
-        List<CalAmpEvent> buffer = readEventsFromFile(filePath);
         Utils.initLazyLog( CalAmpParameters.writeLogName, "Producer Send Start" );
        
-        Utils.putByParts(buffer, CalAmpParameters.unorderdStreamName, kinesisClient, CalAmpParameters.writeLogName);
+        // Streams the file instead of reading it all first; speed 0 sends as fast as the stream takes it.
+        EventReplayer replayer = new EventReplayer(kinesisClient, CalAmpParameters.unorderdStreamName, codec, CalAmpParameters.maxRecordsPerPut);
+        replayer.replay(new File(filePath));
         //Utils.putObo(buffer, CalAmpParameters.unorderdStreamName, kinesisClient, CalAmpParameters.writeLogName);
         
         //runningLoop(new RandomEventSender(kinesisClient, filePath, CalAmpParameters.pollDelayMillis));
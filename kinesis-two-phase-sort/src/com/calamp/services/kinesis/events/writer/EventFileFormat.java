@@ -0,0 +1,30 @@
+package com.calamp.services.kinesis.events.writer;
+
+/**
+ * Layouts of event replay files.
+ *
+ * JSON_LINES is one CalAmpEvent JSON object per line, as genRandEventsToFile
+ * has always written. FRAMED is FILE_MAGIC followed by one frame per event:
+ *
+ * <pre>
+ * length(4) + the event in the BINARY codec
+ * </pre>
+ *
+ * A JSON line always starts with '{', so EventFileReader tells the two apart
+ * by the first bytes of the file.
+ */
+public enum EventFileFormat {
+
+    JSON_LINES,
+    FRAMED;
+
+    /** 'C' 'A' 'E' 'F' and the framed layout's version. */
+    public static final byte[] FILE_MAGIC = { 'C', 'A', 'E', 'F', 1 };
+
+    /**
+     * Picks a format by name, as given on a command line.
+     */
+    public static EventFileFormat fromName(String name) {
+        return EventFileFormat.valueOf(name.trim().toUpperCase());
+    }
+}
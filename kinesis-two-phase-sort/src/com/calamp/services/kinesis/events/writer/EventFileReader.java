@@ -0,0 +1,214 @@
+package com.calamp.services.kinesis.events.writer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+
+/**
+ * Reads the events of a replay file one at a time, without holding the file
+ * on heap.
+ *
+ * The file is memory mapped a window of WINDOW_BYTES at a time, and the
+ * window moves forward when an event runs past its end. So a file of any size
+ * is read with a fixed amount of address space, and the page cache does the
+ * buffering. The format, JSON lines or framed, is recognised from the first
+ * bytes of the file. Blank lines are skipped. Events that cannot be decoded
+ * are skipped and counted. A frame cut short by the end of the file, as left
+ * by a capture that stopped mid write, ends the file with a warning.
+ *
+ * Not thread safe.
+ */
+public class EventFileReader implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(EventFileReader.class);
+    private static final int WINDOW_BYTES = 64 * 1024 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long size;
+    private final EventFileFormat format;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long read;
+    private long skipped;
+
+    public EventFileReader(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.size = channel.size();
+        map(0);
+        if (startsWithMagic()) {
+            format = EventFileFormat.FRAMED;
+            position = EventFileFormat.FILE_MAGIC.length;
+        }
+        else {
+            format = EventFileFormat.JSON_LINES;
+        }
+    }
+
+    /**
+     * @return the next event, or null at the end of the file
+     */
+    public CalAmpEvent next() throws IOException {
+        byte[] bytes;
+        while ((bytes = nextBytes()) != null) {
+            CalAmpEvent e = CalAmpEventCodec.decode(bytes);
+            if (e != null) {
+                read++;
+                return e;
+            }
+            skipped++;
+        }
+        return null;
+    }
+
+    /**
+     * @return the next event still encoded, a JSON line or a BINARY frame's
+     * bytes, or null at the end of the file
+     */
+    public byte[] nextBytes() throws IOException {
+        while (position < size) {
+            byte[] bytes = format == EventFileFormat.FRAMED ? nextFrame() : nextLine();
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+        return null;
+    }
+
+    public EventFileFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return bytes of the file read so far
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getRead() {
+        return read;
+    }
+
+    /**
+     * @return events that could not be decoded
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // A mapping is released when it is collected; dropping it is all Java 7 allows.
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * @return the line at position without its line end, or null if it is blank
+     */
+    private byte[] nextLine() throws IOException {
+        int end = (int) (position - windowStart);
+        while (true) {
+            int limit = window.limit();
+            while (end < limit && window.get(end) != '\n') {
+                end++;
+            }
+            if (end < limit || windowStart + limit == size) {
+                break;
+            }
+            if (windowStart == position) {
+                throw new IOException("Line at byte " + position + " of " + file + " is longer than " + WINDOW_BYTES
+                        + " bytes");
+            }
+            end -= (int) (position - windowStart);
+            map(position);
+        }
+        int from = (int) (position - windowStart);
+        position = Math.min(size, windowStart + end + 1);
+        int length = end - from;
+        if (length > 0 && window.get(end - 1) == '\r') {
+            length--;
+        }
+        return length == 0 ? null : bytes(from, length);
+    }
+
+    private byte[] nextFrame() throws IOException {
+        if (!ensure(position, 4)) {
+            return truncated();
+        }
+        int length = window.getInt((int) (position - windowStart));
+        if (length < 0 || length > WINDOW_BYTES - 4) {
+            throw new IOException("Corrupt frame length " + length + " at byte " + position + " of " + file);
+        }
+        if (!ensure(position, 4 + length)) {
+            return truncated();
+        }
+        byte[] bytes = bytes((int) (position - windowStart) + 4, length);
+        position += 4 + length;
+        return bytes;
+    }
+
+    private byte[] truncated() {
+        LOG.warn("Last frame of " + file + " is cut short at byte " + position + ", ignoring it.");
+        position = size;
+        return null;
+    }
+
+    /**
+     * Moves the window so that it holds [from, from + length).
+     *
+     * @return false if the file ends first
+     */
+    private boolean ensure(long from, int length) throws IOException {
+        if (from + length > size) {
+            return false;
+        }
+        if (from < windowStart || from + length > windowStart + window.limit()) {
+            map(from);
+        }
+        return true;
+    }
+
+    private void map(long from) throws IOException {
+        windowStart = from;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(WINDOW_BYTES, size - from));
+    }
+
+    private byte[] bytes(int from, int length) {
+        byte[] b = new byte[length];
+        ByteBuffer d = window.duplicate();
+        d.position(from);
+        d.get(b);
+        return b;
+    }
+
+    private boolean startsWithMagic() {
+        if (size < EventFileFormat.FILE_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < EventFileFormat.FILE_MAGIC.length; i++) {
+            if (window.get(i) != EventFileFormat.FILE_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,74 @@
+package com.calamp.services.kinesis.events.writer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+
+/**
+ * Writes events to a replay file as they come, through a large buffer, in
+ * either EventFileFormat. EventFileReader reads what it writes.
+ *
+ * Not thread safe.
+ */
+public class EventFileWriter implements Closeable {
+
+    private static final int BUFFER_BYTES = 1024 * 1024;
+
+    private final EventFileFormat format;
+    private final DataOutputStream out;
+    private long written;
+
+    /**
+     * Creates the file, or truncates it if it exists.
+     */
+    public EventFileWriter(File file, EventFileFormat format) throws IOException {
+        this.format = format;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false), BUFFER_BYTES));
+        if (format == EventFileFormat.FRAMED) {
+            out.write(EventFileFormat.FILE_MAGIC);
+        }
+    }
+
+    public void write(CalAmpEvent event) throws IOException {
+        byte[] bytes = format == EventFileFormat.FRAMED ? CalAmpEventCodec.BINARY.encode(event) : event.toJsonAsBytes();
+        if (bytes == null) {
+            throw new IOException("Cannot write " + event + " as JSON");
+        }
+        write(bytes);
+    }
+
+    /**
+     * Writes an event already encoded the way this file holds it: BINARY for
+     * FRAMED, one line of JSON for JSON_LINES.
+     */
+    public void write(byte[] encoded) throws IOException {
+        if (format == EventFileFormat.FRAMED) {
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+        else {
+            out.write(encoded);
+            out.write('\n');
+        }
+        written++;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,233 @@
+package com.calamp.services.kinesis.events.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.local.LocalKinesis;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.ConfigurationUtils;
+import com.calamp.services.kinesis.events.utils.CredentialUtils;
+import com.calamp.services.kinesis.events.utils.Metrics;
+import com.calamp.services.kinesis.events.utils.Utils;
+
+/**
+ * Replays a file of events to a stream without loading the file first.
+ *
+ * A reader thread decodes the file with an EventFileReader into batches and
+ * queues up to readAhead of them. The replaying thread puts batches through
+ * Utils.putByParts, so decoding the next events overlaps putting the current
+ * ones, and heap use is bounded by the read ahead, not the file size. File
+ * order is kept.
+ *
+ * At speed 0 events go out as fast as the stream takes them. At speed s > 0
+ * they are paced by event time: an event is put no sooner than (t - t0) / s
+ * after the start, where t0 is the first event's timeStamp and t the largest
+ * timeStamp seen so far. Taking the largest timeStamp means an out of order
+ * event, already late in the capture, is put at once, not held back. Speed 1
+ * replays at the original rate.
+ *
+ * Progress is published as the replay.* metrics.
+ *
+ * Usage: EventReplayer <stream name> <file> [speed, 0 for as fast as possible]
+ *        [JSON|BINARY] [batchSize] [local shards, to run against LocalKinesis]
+ */
+public class EventReplayer {
+
+    private static final Log LOG = LogFactory.getLog(EventReplayer.class);
+    /** Queued by the reader thread after the last batch. */
+    private static final List<CalAmpEvent> END = new ArrayList<CalAmpEvent>(0);
+
+    private final AmazonKinesis kc;
+    private final String streamName;
+    private final CalAmpEventCodec codec;
+    private final int batchSize;
+    private double speed;
+    private int readAhead = 16;
+
+    /**
+     * @param batchSize events per put
+     */
+    public EventReplayer(AmazonKinesis kc, String streamName, CalAmpEventCodec codec, int batchSize) {
+        this.kc = kc;
+        this.streamName = streamName;
+        this.codec = codec;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param speed event time seconds replayed per second, 0 (the default) for as fast as possible
+     */
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * @param batches decoded batches the reader thread may hold ahead of the puts; 16 by default
+     */
+    public void setReadAhead(int batches) {
+        this.readAhead = Math.max(1, batches);
+    }
+
+    /**
+     * Puts every event of the file and waits until the stream has accepted them.
+     *
+     * @return events put
+     */
+    public long replay(File file) throws IOException, InterruptedException {
+        final EventFileReader reader = new EventFileReader(file);
+        final BlockingQueue<List<CalAmpEvent>> queue = new ArrayBlockingQueue<List<CalAmpEvent>>(readAhead);
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Thread decoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<CalAmpEvent> batch = new ArrayList<CalAmpEvent>(batchSize);
+                    CalAmpEvent e;
+                    while ((e = reader.next()) != null) {
+                        batch.add(e);
+                        if (batch.size() == batchSize) {
+                            queue.put(batch);
+                            batch = new ArrayList<CalAmpEvent>(batchSize);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        queue.put(batch);
+                    }
+                    queue.put(END);
+                } catch (IOException e) {
+                    failure.set(e);
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException ie) {
+                        // The replay stopped.
+                    }
+                } catch (InterruptedException e) {
+                    // The replay stopped.
+                }
+            }
+        }, "replay-read-" + file.getName());
+        decoder.start();
+
+        long startMillis = System.currentTimeMillis();
+        long firstTimeStamp = 0;
+        long maxTimeStamp = Long.MIN_VALUE;
+        long sent = 0;
+        List<CalAmpEvent> out = new ArrayList<CalAmpEvent>(batchSize);
+        try {
+            for (List<CalAmpEvent> batch = queue.take(); batch != END; batch = queue.take()) {
+                for (CalAmpEvent e : batch) {
+                    if (speed > 0) {
+                        if (maxTimeStamp == Long.MIN_VALUE) {
+                            firstTimeStamp = e.getTimeStamp();
+                        }
+                        maxTimeStamp = Math.max(maxTimeStamp, e.getTimeStamp());
+                        long due = startMillis + (long) ((maxTimeStamp - firstTimeStamp) / speed);
+                        if (due > System.currentTimeMillis()) {
+                            // Send what is due now, then wait for this event's time.
+                            sent += put(out);
+                            long wait = due - System.currentTimeMillis();
+                            if (wait > 0) {
+                                Thread.sleep(wait);
+                            }
+                        }
+                        else {
+                            Metrics.set("replay.lagMillis", System.currentTimeMillis() - due);
+                        }
+                    }
+                    out.add(e);
+                    if (out.size() >= batchSize) {
+                        sent += put(out);
+                    }
+                }
+                Metrics.set("replay.readAheadBatches", queue.size());
+                Metrics.set("replay.bytesRead", reader.getPosition());
+            }
+            sent += put(out);
+        } finally {
+            decoder.interrupt();
+            decoder.join();
+            reader.close();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (reader.getSkipped() > 0) {
+            LOG.warn(reader.getSkipped() + " events of " + file + " could not be decoded and were skipped.");
+        }
+        LOG.info("Replayed " + sent + " events of " + file + " (" + reader.getFormat() + ") to " + streamName + " in "
+                + (System.currentTimeMillis() - startMillis) + " ms.");
+        return sent;
+    }
+
+    private int put(List<CalAmpEvent> events) {
+        int n = events.size();
+        if (n > 0) {
+            Utils.putByParts(events, streamName, kc, CalAmpParameters.writeLogName, codec);
+            events.clear();
+            Metrics.add("replay.sentEvents", n);
+            Metrics.reportIfDue();
+        }
+        return n;
+    }
+
+    private static void checkUsage(String[] args) {
+        if (args.length < 2 || args.length > 6) {
+            System.err.println("Usage: " + EventReplayer.class.getSimpleName()
+                    + " <stream name> <file> [speed, 0 for as fast as possible] [JSON|BINARY] [batchSize] [local shards]");
+            System.exit(1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkUsage(args);
+        String streamName = args[0];
+        File file = new File(args[1]);
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        CalAmpEventCodec codec = args.length > 3 ? CalAmpEventCodec.fromName(args[3]) : CalAmpParameters.wireCodec;
+        int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : CalAmpParameters.maxRecordsPerPut;
+        int localShards = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+
+        AmazonKinesis kinesisClient;
+        if (localShards > 0) {
+            LocalKinesis local = new LocalKinesis();
+            local.setShardLimits(1000, 1024 * 1024, 5);
+            local.setMaxRecordsPerShard(100000);
+            local.createStream(streamName, localShards);
+            kinesisClient = local.client();
+        } else {
+            Region region = RegionUtils.getRegion(CalAmpParameters.regionName);
+            if (region == null) {
+                System.err.println(CalAmpParameters.regionName + " is not a valid AWS region.");
+                System.exit(1);
+            }
+            AWSCredentials credentials = CredentialUtils.getCredentialsProvider().getCredentials();
+            ClientConfiguration ccuo = ConfigurationUtils.getClientConfigWithUserAgent(true);
+            kinesisClient = new AmazonKinesisClient(credentials, ccuo);
+            kinesisClient.setRegion(region);
+            Utils.validateStream(kinesisClient, streamName);
+        }
+        Utils.initLazyLog(CalAmpParameters.writeLogName, "Replay Start");
+
+        EventReplayer replayer = new EventReplayer(kinesisClient, streamName, codec, batchSize);
+        replayer.setSpeed(speed);
+        long sent = replayer.replay(file);
+        Utils.senderFor(kinesisClient, streamName).shutdown();
+        System.out.println("Replay Done: " + sent + " events");
+    }
+}
@@ -0,0 +1,429 @@
+package com.calamp.services.kinesis.events.writer;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.calamp.services.kinesis.events.data.CalAmpEvent;
+import com.calamp.services.kinesis.events.data.CalAmpEventCodec;
+import com.calamp.services.kinesis.events.local.LocalKinesis;
+import com.calamp.services.kinesis.events.sort.DisorderSketch;
+import com.calamp.services.kinesis.events.utils.CalAmpParameters;
+import com.calamp.services.kinesis.events.utils.ConfigurationUtils;
+import com.calamp.services.kinesis.events.utils.CredentialUtils;
+import com.calamp.services.kinesis.events.utils.KinesisPutSender;
+import com.calamp.services.kinesis.events.utils.Metrics;
+import com.calamp.services.kinesis.events.utils.RecordAggregator;
+import com.calamp.services.kinesis.events.utils.TokenBucket;
+import com.calamp.services.kinesis.events.utils.Utils;
+
+/**
+ * Puts generated events to a stream from several producer threads at a
+ * target rate, to load the sorter harder than CalAmpEventWriter can.
+ *
+ * Producers share a token bucket (one token per event, a tenth of a second of
+ * burst) and a KinesisPutSender with one request in flight per producer. Each
+ * takes tokens for a batch, builds the batch and waits for it to be accepted;
+ * the wait is the put latency. Events come from a CalAmpEventGenerator
+ * workload model: producers create events there at the target rate and put
+ * the ones whose delivery time has come, in batches of at most batchSize, so
+ * delayed and replayed events arrive late and reconnect backlogs arrive in
+ * bursts. Once maxEvents have been created the producers put what is still
+ * pending and stop. The partition key is the machine
+ * id; with shard aware partitioning each machine is also given the starting
+ * hash key of one open shard, round robin, so every shard gets the same
+ * number of machines instead of what the key hash happens to give it.
+ *
+ * A reporter prints, every reportMillis, the rate achieved over the interval
+ * and the put latency percentiles, and publishes them as load.* metrics.
+ *
+ * Usage: LoadGenerator <stream name> [eventsPerSecond] [threads] [batchSize]
+ *        [seconds, 0 for no limit] [JSON|BINARY] [local shards, to run against LocalKinesis]
+ *        [payloadBytes] [delay: none, uniform:max, exponential:mean or pareto:scale:shape:max]
+ *        [machine popularity Zipf exponent, 0 for uniform] [reconnects outagePerEvent:meanOutageMillis:maxBuffered]
+ */
+public class LoadGenerator {
+
+    private static final Log LOG = LogFactory.getLog(LoadGenerator.class);
+
+    private final AmazonKinesis kc;
+    private final String streamName;
+    private final CalAmpEventCodec codec;
+    private final double eventsPerSecond;
+    private final int threads;
+    private final int batchSize;
+    private CalAmpEventGenerator workload;
+    private long maxEvents = Long.MAX_VALUE;
+    private boolean shardAware = true;
+    private long reportMillis = 1000;
+    private PrintStream report = System.out;
+
+    private final AtomicLong remaining = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private String[] hashKeys;
+    private TokenBucket pacer;
+    private int createBatch;
+    private KinesisPutSender sender;
+    private DisorderSketch latencies = new DisorderSketch(Long.MAX_VALUE);
+    private final DisorderSketch totalLatencies = new DisorderSketch(Long.MAX_VALUE);
+    private Thread[] producers;
+    private Thread reporter;
+    private volatile boolean stopped;
+    private long startMillis;
+
+    /**
+     * @param eventsPerSecond target rate over all producers, 0 for as fast as the stream takes them
+     * @param batchSize events per put, up to maxRecordsPerPut
+     */
+    public LoadGenerator(AmazonKinesis kc, String streamName, CalAmpEventCodec codec, double eventsPerSecond, int threads,
+            int batchSize) {
+        this.kc = kc;
+        this.streamName = streamName;
+        this.codec = codec;
+        this.eventsPerSecond = eventsPerSecond;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, Math.min(batchSize, CalAmpParameters.maxRecordsPerPut));
+    }
+
+    /**
+     * Where events come from; by default 1000 machines with 2 KB payloads and no delay.
+     */
+    public void setWorkload(CalAmpEventGenerator workload) {
+        this.workload = workload;
+    }
+
+    /**
+     * Stops after this many events have been created and delivered.
+     */
+    public void setMaxEvents(long maxEvents) {
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * Spreads machines evenly over the open shards with explicit hash keys
+     * instead of leaving it to the partition key hash. On by default.
+     */
+    public void setShardAware(boolean shardAware) {
+        this.shardAware = shardAware;
+    }
+
+    /**
+     * @param report where the per interval lines go, or null for metrics only
+     */
+    public void setReport(PrintStream report, long reportMillis) {
+        this.report = report;
+        this.reportMillis = reportMillis;
+    }
+
+    public synchronized void start() {
+        startMillis = System.currentTimeMillis();
+        remaining.set(maxEvents);
+        if (workload == null) {
+            workload = new CalAmpEventGenerator(1000, 2048, startMillis);
+        }
+        hashKeys = shardAware ? hashKeys() : null;
+        pacer = new TokenBucket(eventsPerSecond, Math.max(1, eventsPerSecond / 10));
+        createBatch = pacer.isUnlimited() ? batchSize : (int) Math.min(batchSize, Math.max(1, eventsPerSecond / 10));
+        sender = new KinesisPutSender(kc, streamName, threads);
+        producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            producers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    produce();
+                }
+            }, "load-" + streamName + "-" + t);
+            producers[t].start();
+        }
+        reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reportLoop();
+            }
+        }, "load-report-" + streamName);
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Waits until the producers have created maxEvents events and put all that were not lost, or been stopped.
+     */
+    public void awaitDone() throws InterruptedException {
+        for (Thread p : producers) {
+            p.join();
+        }
+    }
+
+    public boolean isDone() {
+        for (Thread p : producers) {
+            if (p.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the producers after their current batch and waits for them.
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        awaitDone();
+    }
+
+    /**
+     * Stops the reporter and the sender's threads. Call after awaitDone or stop.
+     */
+    public void shutdown() {
+        stopped = true;
+        reporter.interrupt();
+        sender.shutdown();
+    }
+
+    /**
+     * @return events accepted by the stream so far
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return put latency of a batch at quantile q over the whole run
+     */
+    public long getLatencyMillis(double q) {
+        synchronized (totalLatencies) {
+            return totalLatencies.quantile(q);
+        }
+    }
+
+    private void produce() {
+        List<CalAmpEvent> events = new ArrayList<CalAmpEvent>(batchSize);
+        while (!stopped) {
+            events.clear();
+            long now = System.currentTimeMillis();
+            workload.poll(now, batchSize, events);
+            // Events already due go out at once, without waiting for tokens for new ones,
+            // and new ones are created a burst at a time so producers come back for due ones often.
+            int n = events.isEmpty() ? take(createBatch) : 0;
+            if (n > 0) {
+                try {
+                    pacer.take(n);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                now = System.currentTimeMillis();
+                workload.generate(n, now);
+                workload.poll(now, batchSize, events);
+            }
+            if (events.isEmpty()) {
+                if (remaining.get() == 0 && workload.pending() == 0) {
+                    return;
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            put(events);
+        }
+    }
+
+    private void put(List<CalAmpEvent> events) {
+        List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>(events.size());
+        for (CalAmpEvent e : events) {
+            PutRecordsRequestEntry prre = new PutRecordsRequestEntry().withData(ByteBuffer.wrap(codec.encode(e)))
+                    .withPartitionKey(String.valueOf(e.getMachineId()));
+            if (hashKeys != null) {
+                prre.setExplicitHashKey(hashKeys[(int) (e.getMachineId() % hashKeys.length)]);
+            }
+            Utils.lazyLog(prre, e, streamName, CalAmpParameters.writeLogName);
+            entries.add(prre);
+        }
+        long start = System.currentTimeMillis();
+        try {
+            sender.send(RecordAggregator.aggregate(entries)).await();
+        } catch (RuntimeException e) {
+            // Not retryable (stream gone, bad request); count it and go on.
+            failedBatches.incrementAndGet();
+            LOG.warn("Batch of " + events.size() + " events to " + streamName + " failed.", e);
+            return;
+        }
+        long millis = System.currentTimeMillis() - start;
+        accepted.addAndGet(events.size());
+        synchronized (totalLatencies) {
+            latencies.record(millis);
+            totalLatencies.record(millis);
+        }
+    }
+
+    private int take(int max) {
+        while (true) {
+            long r = remaining.get();
+            int n = (int) Math.min(r, max);
+            if (n <= 0 || remaining.compareAndSet(r, r - n)) {
+                return n;
+            }
+        }
+    }
+
+    /**
+     * @return the starting hash key of each open shard in hash key order, or
+     * null to fall back to the partition key hash
+     */
+    private String[] hashKeys() {
+        List<Shard> open = new ArrayList<Shard>();
+        try {
+            for (Shard s : kc.describeStream(streamName).getStreamDescription().getShards()) {
+                if (s.getSequenceNumberRange() == null || s.getSequenceNumberRange().getEndingSequenceNumber() == null) {
+                    open.add(s);
+                }
+            }
+        } catch (AmazonClientException e) {
+            LOG.warn("Cannot list the shards of " + streamName + ", partitioning by partition key hash.", e);
+            return null;
+        }
+        if (open.isEmpty()) {
+            return null;
+        }
+        Collections.sort(open, new Comparator<Shard>() {
+            @Override
+            public int compare(Shard a, Shard b) {
+                return new BigInteger(a.getHashKeyRange().getStartingHashKey())
+                        .compareTo(new BigInteger(b.getHashKeyRange().getStartingHashKey()));
+            }
+        });
+        String[] keys = new String[open.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = open.get(i).getHashKeyRange().getStartingHashKey();
+        }
+        return keys;
+    }
+
+    private void reportLoop() {
+        long last = accepted.get();
+        long lastMillis = System.currentTimeMillis();
+        while (!stopped) {
+            try {
+                Thread.sleep(reportMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long total = accepted.get();
+            DisorderSketch interval;
+            synchronized (totalLatencies) {
+                interval = latencies;
+                latencies = new DisorderSketch(Long.MAX_VALUE);
+            }
+            long rate = (total - last) * 1000 / Math.max(1, now - lastMillis);
+            Metrics.set("load.eventsPerSecond", rate);
+            Metrics.set("load.acceptedEvents", total);
+            Metrics.set("load.failedBatches", failedBatches.get());
+            Metrics.set("load.pendingEvents", workload.pending());
+            Metrics.set("load.putP50Millis", interval.quantile(0.5));
+            Metrics.set("load.putP99Millis", interval.quantile(0.99));
+            Metrics.set("load.putMaxMillis", interval.getMax());
+            Metrics.reportIfDue();
+            if (report != null) {
+                report.println(String.format("%6.1fs  %7d events/s (target %.0f)  total %d  put ms p50 %d p90 %d p99 %d max %d  pending %d  failed batches %d",
+                        (now - startMillis) / 1000.0, rate, eventsPerSecond, total, interval.quantile(0.5),
+                        interval.quantile(0.9), interval.quantile(0.99), interval.getMax(), workload.pending(), failedBatches.get()));
+            }
+            last = total;
+            lastMillis = now;
+        }
+    }
+
+    private static void checkUsage(String[] args) {
+        if (args.length < 1 || args.length > 11) {
+            System.err.println("Usage: " + LoadGenerator.class.getSimpleName()
+                    + " <stream name> [eventsPerSecond] [threads] [batchSize] [seconds] [JSON|BINARY] [local shards] [payloadBytes]"
+                    + " [delay] [skew] [outagePerEvent:meanOutageMillis:maxBuffered]");
+            System.exit(1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkUsage(args);
+        String streamName = args[0];
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 10000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : CalAmpParameters.maxRecordsPerPut;
+        long seconds = args.length > 4 ? Long.parseLong(args[4]) : 60;
+        CalAmpEventCodec codec = args.length > 5 ? CalAmpEventCodec.fromName(args[5]) : CalAmpParameters.wireCodec;
+        int localShards = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+        int payloadBytes = args.length > 7 ? Integer.parseInt(args[7]) : 2048;
+        CalAmpEventGenerator workload = new CalAmpEventGenerator(1000, payloadBytes, System.currentTimeMillis());
+        workload.setSequenceModulus(CalAmpParameters.machineSequenceModulus);
+        if (args.length > 8) {
+            workload.setDelay(CalAmpEventGenerator.Delay.parse(args[8]));
+        }
+        if (args.length > 9) {
+            workload.setSkew(Double.parseDouble(args[9]));
+        }
+        if (args.length > 10) {
+            String[] r = args[10].split(":");
+            workload.setReconnects(Double.parseDouble(r[0]), Double.parseDouble(r[1]), Integer.parseInt(r[2]));
+        }
+
+        AmazonKinesis kinesisClient;
+        if (localShards > 0) {
+            LocalKinesis local = new LocalKinesis();
+            local.setShardLimits(1000, 1024 * 1024, 5);
+            // Only the puts matter here; keep the stand-in from growing without bound.
+            local.setMaxRecordsPerShard(100000);
+            local.createStream(streamName, localShards);
+            kinesisClient = local.client();
+        } else {
+            Region region = RegionUtils.getRegion(CalAmpParameters.regionName);
+            if (region == null) {
+                System.err.println(CalAmpParameters.regionName + " is not a valid AWS region.");
+                System.exit(1);
+            }
+            AWSCredentials credentials = CredentialUtils.getCredentialsProvider().getCredentials();
+            ClientConfiguration ccuo = ConfigurationUtils.getClientConfigWithUserAgent(true);
+            kinesisClient = new AmazonKinesisClient(credentials, ccuo);
+            kinesisClient.setRegion(region);
+            Utils.validateStream(kinesisClient, streamName);
+        }
+        Utils.initLazyLog(CalAmpParameters.writeLogName, "Load Generator Start");
+
+        LoadGenerator load = new LoadGenerator(kinesisClient, streamName, codec, rate, threads, batchSize);
+        load.setWorkload(workload);
+        load.start();
+        if (seconds > 0) {
+            Thread.sleep(seconds * 1000);
+            load.stop();
+        }
+        else {
+            load.awaitDone();
+        }
+        load.shutdown();
+        System.out.println(String.format("Load Generator Done: %d events (%d created, %d lost in device buffers), put ms p50 %d p99 %d max %d",
+                load.getAccepted(), workload.getCreated(), workload.getLost(), load.getLatencyMillis(0.5),
+                load.getLatencyMillis(0.99), load.getLatencyMillis(1.0)));
+    }
+}